@@ -0,0 +1,77 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.OutputStream;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+
+/**
+ * Messages and helpers shared by the benchmarks.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class BenchmarkMessages {
+	
+	public static final String SENDER_EMAIL = "sender@helianto.org";
+	
+	public static final String SENDER_NAME = "Helianto Sender";
+	
+	private BenchmarkMessages() {
+	}
+	
+	/**
+	 * Template message with per recipient substitutions.
+	 * 
+	 * @param recipients
+	 */
+	public static SendGridMessageAdapter create(int recipients) {
+		String[] emails = new String[recipients];
+		String[] firstNames = new String[recipients];
+		String[] lastNames = new String[recipients];
+		String[] tokens = new String[recipients];
+		for (int i = 0; i < recipients; i++) {
+			emails[i] = "recipient"+i+"@helianto.org";
+			firstNames[i] = "José "+i;
+			lastNames[i] = "Conceição";
+			tokens[i] = "http://www.helianto.org/confirm?token=" + Integer.toHexString(i * 7919);
+		}
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		email.setFrom(SENDER_EMAIL);
+		email.setFromName(SENDER_NAME);
+		email.setSubject("Confirmação de cadastro");
+		email.setText("Confirmação de cadastro");
+		email.setHtml("<p></p>");
+		email.addTo(SENDER_EMAIL);
+		email.setSMTPAPITos(emails);
+		email.addSubstitution("${recipientEmail}", emails);
+		email.addSubstitution("${recipientFirstName}", firstNames);
+		email.addSubstitution("${recipientLastName}", lastNames);
+		email.addSubstitution("${confirmationuri}", tokens);
+		email.addFilter("templates", "enabled", "1");
+		email.addFilter("templates", "template_id", "0c4a9d3e-benchmark");
+		return email;
+	}
+	
+	/**
+	 * Discards bytes, counting them.
+	 */
+	public static final class CountingOutputStream extends OutputStream {
+		
+		private long count;
+		
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+	}
+
+}
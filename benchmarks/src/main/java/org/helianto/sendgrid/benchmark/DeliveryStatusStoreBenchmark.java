@@ -0,0 +1,88 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.status.DeliveryState;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link DeliveryStatusStore} lookups and updates on a filled store; run with -prof gc to check
+ * that neither allocates.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx1g", "-XX:MaxDirectMemorySize=2g" })
+public class DeliveryStatusStoreBenchmark {
+	
+	private static final int LOOKUPS = 4096;
+	
+	@Param({ "10000000" })
+	public int entries;
+	
+	private DeliveryStatusStore statusStore;
+	
+	private UUID[] known;
+	
+	private UUID[] unknown;
+	
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		statusStore = new DeliveryStatusStore(entries, TimeUnit.DAYS.toMillis(1));
+		known = new UUID[LOOKUPS];
+		unknown = new UUID[LOOKUPS];
+		for (int i = 0; i < entries; i++) {
+			UUID messageId = DeliveryStatusStore.newMessageId();
+			statusStore.update(messageId, DeliveryState.SENT);
+			if (i % (entries / LOOKUPS)==0 && i / (entries / LOOKUPS) < LOOKUPS) {
+				known[i / (entries / LOOKUPS)] = messageId;
+			}
+		}
+		for (int i = 0; i < LOOKUPS; i++) {
+			unknown[i] = DeliveryStatusStore.newMessageId();
+		}
+		System.out.printf("%n%d entries, %d MB off-heap, %d evictions%n"
+				, statusStore.getOccupied(), statusStore.getOffHeapBytes() >> 20, statusStore.getEvictions());
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.printf("%n%d entries, %d evictions%n", statusStore.getOccupied(), statusStore.getEvictions());
+	}
+	
+	@Benchmark
+	public DeliveryState getKnown() {
+		return statusStore.getState(known[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public DeliveryState getUnknown() {
+		return statusStore.getState(unknown[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public boolean update() {
+		return statusStore.update(known[next++ & (LOOKUPS - 1)], DeliveryState.DELIVERED);
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helianto.sendgrid.benchmark.LoadDriver.LoadTemplateSender;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.dispatch.SendDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Time to complete a burst of concurrent template sends, each caller on a platform thread of its
+ * own as today, against the same sends submitted to a {@link SendDispatcher}.
+ * 
+ * The stand-in server answers after a fixed latency and both models share the connection pool
+ * limit, so the difference is the cost of parking thousands of blocked threads. The dispatcher
+ * uses virtual threads when run on JDK 21 or later, platform threads before.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xss256k")
+public class DispatchBenchmark {
+	
+	private static final String[] PARAMS = { "confirmationToken", "4f2a9c1e77d0", "entityAlias", "Helianto" };
+	
+	@Param({ "10000" })
+	public int sends;
+	
+	@Param({ "256" })
+	public int connections;
+	
+	@Param({ "20" })
+	public int latency;
+	
+	private StubSendGridServer server;
+	
+	private SendGridSender sender;
+	
+	private SendDispatcher dispatcher;
+	
+	private AnnotationConfigApplicationContext context;
+	
+	private LoadTemplateSender templateSender;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new StubSendGridServer(16).setLatency(LatencyDistribution.fixed(latency));
+		sender = new SendGridSender("benchmark", "benchmark")
+				.setConnectionPool(new SendGridConnectionPool(connections, connections))
+				.setUrl(server.getUrl());
+		dispatcher = new SendDispatcher(connections, connections, TimeUnit.MINUTES.toMillis(1));
+		context = new AnnotationConfigApplicationContext();
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("helianto.sendgrid.template.load", "0c4a9d3e-load");
+		context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+		context.getBeanFactory().registerSingleton("sendGridSender", sender);
+		context.getBeanFactory().registerSingleton("sendDispatcher", dispatcher);
+		context.register(LoadTemplateSender.class);
+		context.refresh();
+		templateSender = context.getBean(LoadTemplateSender.class);
+		System.out.printf("%nDispatching on %s threads%n", dispatcher.isVirtual() ? "virtual" : "platform");
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		context.close();
+		dispatcher.close();
+		sender.close();
+		server.stop();
+	}
+	
+	/**
+	 * One platform thread per concurrent caller, each blocked in send().
+	 */
+	@Benchmark
+	public int callerThreads() throws InterruptedException {
+		final AtomicInteger sent = new AtomicInteger();
+		Thread[] callers = new Thread[sends];
+		for (int i = 0; i < sends; i++) {
+			final int n = i;
+			callers[i] = new Thread(() -> {
+				if (templateSender.send("recipient"+n+"@helianto.org", "José", "Conceição", "Confirmação de cadastro", PARAMS)) {
+					sent.incrementAndGet();
+				}
+			});
+			callers[i].start();
+		}
+		for (Thread caller: callers) {
+			caller.join();
+		}
+		return sent.get();
+	}
+	
+	/**
+	 * Every send submitted to the dispatcher from a single thread.
+	 */
+	@Benchmark
+	public int dispatched() {
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] futures = new CompletableFuture[sends];
+		for (int i = 0; i < sends; i++) {
+			futures[i] = templateSender.submit("recipient"+i+"@helianto.org", "José", "Conceição", "Confirmação de cadastro", PARAMS);
+		}
+		int sent = 0;
+		for (CompletableFuture<Boolean> future: futures) {
+			if (future.join()) {
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+}
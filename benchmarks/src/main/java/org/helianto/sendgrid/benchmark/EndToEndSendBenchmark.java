@@ -0,0 +1,68 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sendgrid.SendGridException;
+
+/**
+ * End to end {@link SendGridSender#send(SendGridMessageAdapter)} against a local stub server.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class EndToEndSendBenchmark {
+	
+	@Param({ "1", "100" })
+	public int recipients;
+	
+	private StubSendGridServer server;
+	
+	private SendGridSender sender;
+	
+	private SendGridMessageAdapter email;
+	
+	@Setup
+	public void setUp() throws IOException {
+		server = new StubSendGridServer(16);
+		sender = new SendGridSender("benchmark", "benchmark")
+				.setConnectionPool(new SendGridConnectionPool(32, 32))
+				.setUrl(server.getUrl());
+		email = BenchmarkMessages.create(recipients);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		sender.close();
+		server.stop();
+	}
+	
+	@Benchmark
+	public int send() throws SendGridException {
+		return sender.send(email).getCode();
+	}
+
+}
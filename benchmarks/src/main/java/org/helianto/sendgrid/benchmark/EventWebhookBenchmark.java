@@ -0,0 +1,67 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.event.EventAggregator;
+import org.helianto.sendgrid.message.event.EventStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Streaming parse and aggregation of a webhook event batch; run with -prof gc to check that
+ * allocation per batch grows with the events, not with the body held in memory.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventWebhookBenchmark {
+	
+	private static final String[] EVENTS = { "processed", "delivered", "open", "click", "bounce", "dropped" };
+	
+	@Param({ "5000" })
+	public int events;
+	
+	private String batch;
+	
+	private EventAggregator aggregator;
+	
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder(events * 256).append('[');
+		for (int i = 0; i < events; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append("{\"email\":\"recipient").append(i).append("@helianto.org\"")
+				.append(",\"timestamp\":").append(1420070400 + i)
+				.append(",\"event\":\"").append(EVENTS[i % EVENTS.length]).append('"')
+				.append(",\"category\":[\"notification\",\"tenant-").append(i % 20).append("\"]")
+				.append(",\"template\":\"template-").append(i % 50).append('"')
+				.append(",\"sg_event_id\":\"").append(Integer.toHexString(i * 7919)).append('"')
+				.append(",\"sg_message_id\":\"14c5d75ce93.dfd.64b469.filter0001.16648.5515E0B88.").append(i).append("\"}");
+		}
+		batch = builder.append(']').toString();
+		aggregator = new EventAggregator();
+	}
+	
+	@Benchmark
+	public int ingest() {
+		return EventStream.forEach(new StringReader(batch), aggregator::record);
+	}
+
+}
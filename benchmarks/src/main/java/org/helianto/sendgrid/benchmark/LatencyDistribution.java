@@ -0,0 +1,61 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response latency simulated by {@link StubSendGridServer}.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public interface LatencyDistribution {
+	
+	/**
+	 * No added latency.
+	 */
+	LatencyDistribution NONE = () -> 0;
+	
+	/**
+	 * Next latency, in nanoseconds.
+	 */
+	long nextNanos();
+	
+	/**
+	 * Always the same latency.
+	 * 
+	 * @param millis
+	 */
+	static LatencyDistribution fixed(double millis) {
+		final long nanos = toNanos(millis);
+		return () -> nanos;
+	}
+	
+	/**
+	 * Uniform latency between min and max.
+	 * 
+	 * @param minMillis
+	 * @param maxMillis
+	 */
+	static LatencyDistribution uniform(double minMillis, double maxMillis) {
+		final long min = toNanos(minMillis);
+		final long max = toNanos(maxMillis);
+		return () -> min + (long) (ThreadLocalRandom.current().nextDouble() * (max - min));
+	}
+	
+	/**
+	 * Log-normal latency, a long right tail like real network services; with sigma 0.5 the p99 is 
+	 * about 3.2 times the median, with sigma 1 about 10 times.
+	 * 
+	 * @param medianMillis
+	 * @param sigma
+	 */
+	static LatencyDistribution logNormal(double medianMillis, final double sigma) {
+		final double mu = Math.log(toNanos(medianMillis));
+		return () -> (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+	}
+	
+	static long toNanos(double millis) {
+		return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+}
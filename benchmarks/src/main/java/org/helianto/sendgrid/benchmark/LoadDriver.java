@@ -0,0 +1,224 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.helianto.sendgrid.message.sender.AbstractTemplateSender;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.retry.RetryPolicy;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Pushes e-mails through an {@link AbstractTemplateSender} at a target rate and reports the
+ * sustained throughput and latency percentiles.
+ * 
+ * Sends are started on a fixed schedule, whatever the previous ones took, and latency is measured
+ * from the scheduled start; time spent queued behind slow sends is therefore counted instead of
+ * hidden (no coordinated omission).
+ * 
+ * Run against the stand-in server with key=value arguments, all optional:
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar org.helianto.sendgrid.benchmark.LoadDriver \
+ *     rate=500 duration=30 warmup=5 threads=64 latency=80 sigma=0.5 \
+ *     throttle=0.01 error=0.01 timeout=0.001 retries=3
+ * </pre>
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class LoadDriver {
+	
+	private static final String TEMPLATE_NAME = "load";
+	
+	private static final String[] PARAMS = { "confirmationToken", "4f2a9c1e77d0", "entityAlias", "Helianto" };
+	
+	private final AbstractTemplateSender templateSender;
+	
+	private final int threads;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param templateSender
+	 * @param threads maximum concurrent sends
+	 */
+	public LoadDriver(AbstractTemplateSender templateSender, int threads) {
+		super();
+		this.templateSender = templateSender;
+		this.threads = threads;
+	}
+	
+	/**
+	 * Send at the given rate for the given duration, then wait for every send to complete.
+	 * 
+	 * @param rate sends per second
+	 * @param seconds
+	 */
+	public Result run(double rate, int seconds) throws InterruptedException {
+		final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		final int total = (int) (rate * seconds);
+		final long[] latencies = new long[total];
+		final AtomicInteger recorded = new AtomicInteger();
+		final LongAdder failures = new LongAdder();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < total; i++) {
+			final long scheduled = start + i * interval;
+			final int n = i;
+			long wait = scheduled - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			executor.execute(() -> {
+				boolean sent = templateSender.send("recipient"+n+"@helianto.org", "José", "Conceição"
+						, "Confirmação de cadastro", PARAMS);
+				latencies[recorded.getAndIncrement()] = System.nanoTime() - scheduled;
+				if (!sent) {
+					failures.increment();
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		return new Result(rate, System.nanoTime() - start, latencies, failures.sum());
+	}
+	
+	/**
+	 * Run against the stand-in server.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg: args) {
+			int index = arg.indexOf('=');
+			if (index<0) {
+				throw new IllegalArgumentException("Expected key=value, got "+arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+		double rate = option(options, "rate", 500);
+		int duration = (int) option(options, "duration", 30);
+		int warmup = (int) option(options, "warmup", 5);
+		int threads = (int) option(options, "threads", 64);
+		
+		StubSendGridServer server = new StubSendGridServer(16)
+				.setLatency(LatencyDistribution.logNormal(option(options, "latency", 80), option(options, "sigma", 0.5)))
+				.setThrottleRate(option(options, "throttle", 0))
+				.setErrorRate(option(options, "error", 0))
+				.setTimeoutRate(option(options, "timeout", 0))
+				.setTimeoutDelay(10000);
+		SendGridSender sender = new SendGridSender("load", "load")
+				.setConnectionPool(new SendGridConnectionPool(threads, threads).setReadTimeout(2000))
+				.setRetryPolicy(new RetryPolicy((int) option(options, "retries", 1), 100, 2000))
+				.setUrl(server.getUrl());
+		
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("helianto.sendgrid.template."+TEMPLATE_NAME, "0c4a9d3e-load");
+		context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("load", properties));
+		context.getBeanFactory().registerSingleton("sendGridSender", sender);
+		context.register(LoadTemplateSender.class);
+		context.refresh();
+		try {
+			LoadDriver driver = new LoadDriver(context.getBean(LoadTemplateSender.class), threads);
+			if (warmup > 0) {
+				driver.run(rate, warmup);
+				server.reset();
+			}
+			Result result = driver.run(rate, duration);
+			System.out.println(result);
+			System.out.printf("server: %d requests, %d accepted, %d throttled, %d errors, %d timeouts, %d recipients, %.1f MB received%n"
+					, server.getRequestCount(), server.getResponseCount(200), server.getResponseCount(429)
+					, server.getResponseCount(500), server.getTimeoutCount(), server.getRecipientCount()
+					, server.getBytesReceived() / 1e6);
+		} finally {
+			context.close();
+			sender.close();
+			server.stop();
+		}
+	}
+	
+	private static double option(Map<String, String> options, String name, double defaultValue) {
+		String value = options.get(name);
+		return value==null ? defaultValue : Double.parseDouble(value);
+	}
+	
+	/**
+	 * Template sender driven by the load driver.
+	 */
+	public static class LoadTemplateSender extends AbstractTemplateSender {
+		
+		public LoadTemplateSender() {
+			super(BenchmarkMessages.SENDER_EMAIL, BenchmarkMessages.SENDER_NAME, TEMPLATE_NAME);
+		}
+		
+		@Override
+		protected String getConfirmationUri(String confirmationToken) {
+			return "http://www.helianto.org/confirm?token=" + confirmationToken;
+		}
+	
+	}
+	
+	/**
+	 * Outcome of a run.
+	 */
+	public static final class Result {
+		
+		private final double targetRate;
+		
+		private final long elapsedNanos;
+		
+		private final long[] latencies;
+		
+		private final long failures;
+		
+		Result(double targetRate, long elapsedNanos, long[] latencies, long failures) {
+			this.targetRate = targetRate;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			this.failures = failures;
+		}
+		
+		/**
+		 * Completed sends per second, including the time to drain the backlog.
+		 */
+		public double getThroughput() {
+			return latencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		}
+		
+		/**
+		 * Latency at the given percentile, in milliseconds.
+		 * 
+		 * @param percentile between 0 and 100
+		 */
+		public double getLatency(double percentile) {
+			if (latencies.length==0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1e6;
+		}
+		
+		public long getFailures() {
+			return failures;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("target %.0f/s, sustained %.1f/s, %d sent, %d failed, latency ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f"
+					, targetRate, getThroughput(), latencies.length, failures
+					, getLatency(50), getLatency(90), getLatency(99), getLatency(99.9), getLatency(100));
+		}
+	
+	}
+
+}
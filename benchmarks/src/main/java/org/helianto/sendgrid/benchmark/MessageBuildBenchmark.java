@@ -0,0 +1,51 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message construction and x-smtpapi JSON generation.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBuildBenchmark {
+	
+	@Param({ "1", "100", "1000" })
+	public int recipients;
+	
+	private SendGridMessageAdapter email;
+	
+	@Setup
+	public void setUp() {
+		email = BenchmarkMessages.create(recipients);
+	}
+	
+	@Benchmark
+	public SendGridMessageAdapter build() {
+		return BenchmarkMessages.create(recipients);
+	}
+	
+	@Benchmark
+	public String smtpapiJson() {
+		return email.getSMTPAPI().jsonString();
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.form.PooledFormEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multipart body construction and serialization by {@link SendGridSender#buildBody(SendGridMessageAdapter)},
+ * against the httpmime builder it replaced; run with -prof gc to compare the garbage per send.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBodyBenchmark {
+	
+	@Param({ "1", "100", "1000" })
+	public int recipients;
+	
+	private SendGridSender sender;
+	
+	private SendGridMessageAdapter email;
+	
+	@Setup
+	public void setUp() {
+		sender = new SendGridSender("benchmark", "benchmark");
+		email = BenchmarkMessages.create(recipients);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		sender.close();
+	}
+	
+	@Benchmark
+	public long serialize() throws IOException {
+		PooledFormEntity body = sender.buildBody(email);
+		try {
+			BenchmarkMessages.CountingOutputStream out = new BenchmarkMessages.CountingOutputStream();
+			body.writeTo(out);
+			return out.getCount();
+		} finally {
+			body.release();
+		}
+	}
+	
+	@Benchmark
+	public long httpmime() throws IOException {
+		ContentType utf8 = ContentType.create("text/plain", "UTF-8");
+		MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+		builder.addTextBody("api_user", "benchmark");
+		builder.addTextBody("api_key", "benchmark");
+		String[] tos = email.getTos();
+		for (int i = 0; i < tos.length; i++) {
+			builder.addTextBody(String.format("to[%d]", i), tos[i]);
+		}
+		builder.addTextBody("from", email.getFrom());
+		builder.addTextBody("fromname", email.getFromName(), utf8);
+		builder.addTextBody("subject", email.getSubject(), utf8);
+		builder.addTextBody("html", email.getHtml(), utf8);
+		builder.addTextBody("text", email.getText(), utf8);
+		builder.addTextBody("x-smtpapi", email.getSMTPAPI().jsonString());
+		HttpEntity body = builder.build();
+		BenchmarkMessages.CountingOutputStream out = new BenchmarkMessages.CountingOutputStream();
+		body.writeTo(out);
+		return out.getCount();
+	}
+
+}
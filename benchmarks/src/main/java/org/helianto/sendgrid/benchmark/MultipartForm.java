@@ -0,0 +1,187 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fields and file sizes of a multipart/form-data body, as produced by 
+ * {@link org.helianto.sendgrid.message.sender.SendGridSender#buildBody(org.helianto.sendgrid.message.SendGridMessageAdapter)}.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class MultipartForm {
+	
+	private static final byte[] CRLF = { '\r', '\n' };
+	
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+	
+	private final Map<String, List<String>> fields = new LinkedHashMap<>();
+	
+	private final Map<String, Integer> files = new LinkedHashMap<>();
+	
+	private MultipartForm() {
+	}
+	
+	/**
+	 * Boundary from a multipart content type, or null.
+	 * 
+	 * @param contentType
+	 */
+	public static String boundary(String contentType) {
+		if (contentType==null || !contentType.startsWith("multipart/form-data")) {
+			return null;
+		}
+		int index = contentType.indexOf("boundary=");
+		if (index<0) {
+			return null;
+		}
+		String boundary = contentType.substring(index + 9);
+		int end = boundary.indexOf(';');
+		if (end>=0) {
+			boundary = boundary.substring(0, end);
+		}
+		return boundary.replace("\"", "").trim();
+	}
+	
+	/**
+	 * Parse.
+	 * 
+	 * @param body
+	 * @param boundary
+	 * @throws IllegalArgumentException if the body is malformed
+	 */
+	public static MultipartForm parse(byte[] body, String boundary) {
+		MultipartForm form = new MultipartForm();
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] partEnd = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		int position = indexOf(body, delimiter, 0);
+		if (position<0) {
+			throw new IllegalArgumentException("Multipart boundary not found.");
+		}
+		position += delimiter.length;
+		while (true) {
+			if (startsWith(body, position, "--")) {
+				return form;
+			}
+			if (!startsWith(body, position, "\r\n")) {
+				throw new IllegalArgumentException("Malformed multipart delimiter at "+position);
+			}
+			int headerStart = position + CRLF.length;
+			int headerEnd = indexOf(body, HEADER_END, headerStart);
+			if (headerEnd<0) {
+				throw new IllegalArgumentException("Unterminated part headers at "+headerStart);
+			}
+			int contentStart = headerEnd + HEADER_END.length;
+			int contentEnd = indexOf(body, partEnd, contentStart);
+			if (contentEnd<0) {
+				throw new IllegalArgumentException("Unterminated part at "+contentStart);
+			}
+			form.addPart(new String(body, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8)
+					, body, contentStart, contentEnd - contentStart);
+			position = contentEnd + partEnd.length;
+		}
+	}
+	
+	private void addPart(String headers, byte[] body, int offset, int length) {
+		String name = null;
+		String filename = null;
+		for (String header: headers.split("\r\n")) {
+			if (header.regionMatches(true, 0, "Content-Disposition:", 0, 20)) {
+				name = parameter(header, "name");
+				filename = parameter(header, "filename");
+			}
+		}
+		if (name==null) {
+			throw new IllegalArgumentException("Part without a name: "+headers);
+		}
+		if (filename!=null) {
+			files.put(name, length);
+		}
+		else {
+			fields.computeIfAbsent(name, key -> new ArrayList<>(1))
+				.add(new String(body, offset, length, StandardCharsets.UTF_8));
+		}
+	}
+	
+	private static String parameter(String header, String parameter) {
+		String prefix = " " + parameter + "=\"";
+		int start = header.indexOf(prefix);
+		if (start<0) {
+			prefix = ";" + parameter + "=\"";
+			start = header.indexOf(prefix);
+		}
+		if (start<0) {
+			return null;
+		}
+		start += prefix.length();
+		int end = header.indexOf('"', start);
+		return end<0 ? null : header.substring(start, end);
+	}
+	
+	private static boolean startsWith(byte[] body, int position, String prefix) {
+		if (position + prefix.length() > body.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (body[position + i]!=prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int indexOf(byte[] body, byte[] pattern, int from) {
+		int last = body.length - pattern.length;
+		outer:
+		for (int i = from; i <= last; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (body[i + j]!=pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * First value of a field, or null.
+	 * 
+	 * @param name
+	 */
+	public String getField(String name) {
+		List<String> values = fields.get(name);
+		return values==null ? null : values.get(0);
+	}
+	
+	/**
+	 * Number of fields whose name starts with the prefix, like "to[" for the recipients.
+	 * 
+	 * @param prefix
+	 */
+	public int countFields(String prefix) {
+		int count = 0;
+		for (Map.Entry<String, List<String>> field: fields.entrySet()) {
+			if (field.getKey().startsWith(prefix)) {
+				count += field.getValue().size();
+			}
+		}
+		return count;
+	}
+	
+	public Map<String, List<String>> getFields() {
+		return Collections.unmodifiableMap(fields);
+	}
+	
+	/**
+	 * File part sizes by part name.
+	 */
+	public Map<String, Integer> getFiles() {
+		return Collections.unmodifiableMap(files);
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.outbox.MailOutbox;
+import org.helianto.sendgrid.message.sender.outbox.OutboxDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+/**
+ * Time to drain a filled {@link MailOutbox} on an embedded H2 database, with dispatchers standing
+ * for several nodes claiming the same table.
+ * 
+ * H2 has no SKIP LOCKED, so rows are claimed through the lease columns. The stand-in server must
+ * receive exactly one request per row, which is checked after each iteration.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutboxBenchmark {
+	
+	@Param({ "10000" })
+	public int rows;
+	
+	@Param({ "2" })
+	public int nodes;
+	
+	@Param({ "2" })
+	public int workers;
+	
+	@Param({ "50" })
+	public int batchSize;
+	
+	private StubSendGridServer server;
+	
+	private SendGridSender sender;
+	
+	private JdbcConnectionPool dataSource;
+	
+	private MailOutbox outbox;
+	
+	private OutboxDispatcher[] dispatchers;
+	
+	private long start;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new StubSendGridServer(16).setLatency(LatencyDistribution.fixed(5));
+		sender = new SendGridSender("benchmark", "benchmark")
+				.setConnectionPool(new SendGridConnectionPool(256, 256))
+				.setMaxInFlight(nodes * workers * batchSize)
+				.setUrl(server.getUrl());
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:outbox;DB_CLOSE_DELAY=-1", "sa", "");
+		dataSource.setMaxConnections(nodes * workers + 4);
+		DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource("META-INF/sendgrid-outbox.sql")), dataSource);
+		outbox = new MailOutbox(dataSource, false);
+	}
+	
+	@Setup(Level.Iteration)
+	public void fill() throws IOException {
+		new JdbcTemplate(dataSource).update("DELETE FROM sendgrid_outbox");
+		server.reset();
+		SendGridMessageAdapter email = BenchmarkMessages.create(1);
+		for (int i = 0; i < rows; i++) {
+			outbox.add(email);
+		}
+		dispatchers = new OutboxDispatcher[nodes];
+		for (int i = 0; i < nodes; i++) {
+			// one dispatcher per node, each with its own claim owners
+			dispatchers[i] = new OutboxDispatcher(outbox, sender, workers).setBatchSize(batchSize).setPollInterval(5);
+		}
+		start = System.nanoTime();
+	}
+	
+	@TearDown(Level.Iteration)
+	public void check() throws IOException {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (OutboxDispatcher dispatcher: dispatchers) {
+			dispatcher.close();
+		}
+		long requests = server.getRequestCount();
+		System.out.printf("%n%d rows, %d requests, %.0f rows/s%n", rows, requests, rows / seconds);
+		if (requests!=rows) {
+			throw new IllegalStateException("Expected "+rows+" requests, got "+requests);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		sender.close();
+		server.stop();
+		dataSource.dispose();
+	}
+	
+	@Benchmark
+	public long drain() throws InterruptedException {
+		for (OutboxDispatcher dispatcher: dispatchers) {
+			dispatcher.start();
+		}
+		long done;
+		while ((done = outbox.count(MailOutbox.DONE)) < rows) {
+			Thread.sleep(10);
+		}
+		return done;
+	}
+
+}
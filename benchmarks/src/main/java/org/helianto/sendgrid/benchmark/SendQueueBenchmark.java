@@ -0,0 +1,103 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.journal.MailJournal;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.helianto.sendgrid.message.sender.queue.RejectionPolicy;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enqueue latency of an overloaded {@link SendQueue}, for each rejection policy.
+ * 
+ * Producers offer far more bulk mail than the workers can send to the slow stand-in server, so the
+ * queue stays full; the time callers spend in submit is bounded by the policy instead of growing
+ * with the backlog. Rejections, drops and spills are printed after the trial.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(8)
+@Fork(1)
+public class SendQueueBenchmark {
+	
+	@Param({ "BLOCK", "REJECT", "DROP_OLDEST_BULK", "SPILL_TO_DISK" })
+	public RejectionPolicy policy;
+	
+	@Param({ "256" })
+	public int capacity;
+	
+	@Param({ "4" })
+	public int workers;
+	
+	private StubSendGridServer server;
+	
+	private SendGridSender sender;
+	
+	private SendQueue queue;
+	
+	private File spillDir;
+	
+	private SendGridMessageAdapter email;
+	
+	@Setup
+	public void setUp() throws IOException {
+		server = new StubSendGridServer(16).setLatency(LatencyDistribution.fixed(20));
+		sender = new SendGridSender("benchmark", "benchmark")
+				.setConnectionPool(new SendGridConnectionPool(workers + 1, workers + 1))
+				.setUrl(server.getUrl());
+		queue = new SendQueue(sender, capacity, workers, policy, null).setBlockTimeout(10);
+		if (policy==RejectionPolicy.SPILL_TO_DISK) {
+			spillDir = Files.createTempDirectory("sendgrid-spill").toFile();
+			queue.setSpillJournal(new MailJournal(spillDir, 64 * 1024 * 1024, 10), 30000);
+		}
+		queue.start();
+		email = BenchmarkMessages.create(1);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		System.out.printf("%n%s: %d rejected, %d dropped, %d spilled, %d sent%n", policy, queue.getRejectedCount()
+				, queue.getDroppedCount(), queue.getSpilledCount(), server.getRequestCount());
+		queue.close();
+		sender.close();
+		server.stop();
+		if (spillDir!=null) {
+			for (File segment: spillDir.listFiles()) {
+				segment.delete();
+			}
+			spillDir.delete();
+		}
+	}
+	
+	@Benchmark
+	public CompletableFuture<Response> submit() {
+		return queue.submit(Lane.BULK, email);
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sendgrid.SendGridException;
+
+/**
+ * Send throughput through a {@link SendGridSenderPool} as accounts are added, each account capped
+ * by its own rate limiter as SendGrid caps it.
+ * 
+ * Accounts are told apart only by their limiters, the stand-in server answers all of them; with
+ * tenant routing, sends come from a thousand tenants.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+public class SenderPoolBenchmark {
+	
+	@Param({ "1", "3" })
+	public int accounts;
+	
+	@Param({ "TENANT", "WEIGHTED_ROUND_ROBIN", "LEAST_OUTSTANDING" })
+	public SendGridSenderPool.Routing routing;
+	
+	@Param({ "100" })
+	public int rateLimit;
+	
+	private StubSendGridServer server;
+	
+	private SendGridSenderPool pool;
+	
+	private SendGridMessageAdapter email;
+	
+	@Setup
+	public void setUp() throws IOException {
+		server = new StubSendGridServer(16).setLatency(LatencyDistribution.fixed(5));
+		pool = new SendGridSenderPool(routing);
+		for (int i = 0; i < accounts; i++) {
+			pool.addAccount("account-"+i, new SendGridSender("benchmark"+i, "benchmark")
+					.setConnectionPool(new SendGridConnectionPool(16, 16))
+					.setRateLimiter(new RateLimiter(rateLimit, 1), 1000)
+					.setUrl(server.getUrl()), 1);
+		}
+		email = BenchmarkMessages.create(1);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		pool.close();
+		server.stop();
+	}
+	
+	@Benchmark
+	public int send() throws SendGridException {
+		return pool.send("tenant"+ThreadLocalRandom.current().nextInt(1000), email).getCode();
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SmtpApiHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sendgrid.smtpapi.SMTPAPI;
+
+/**
+ * x-smtpapi header built and written to the request body: the SendGrid library SMTPAPI,
+ * serialized twice as the sender used to, against {@link SmtpApiHeader}.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmtpApiHeaderBenchmark {
+	
+	@Param({ "1000", "10000" })
+	public int recipients;
+	
+	private String[] emails;
+	
+	private String[] names;
+	
+	private String[] tokens;
+	
+	@Setup
+	public void setUp() {
+		emails = new String[recipients];
+		names = new String[recipients];
+		tokens = new String[recipients];
+		for (int i = 0; i < recipients; i++) {
+			emails[i] = "recipient"+i+"@helianto.org";
+			names[i] = "José Conceição "+i;
+			tokens[i] = "http://www.helianto.org/confirm?token=" + Integer.toHexString(i * 7919);
+		}
+	}
+	
+	@Benchmark
+	public long smtpapi() throws IOException {
+		SMTPAPI header = new SMTPAPI();
+		header.setTos(emails);
+		header.addSubstitutions("${recipientEmail}", emails);
+		header.addSubstitutions("${recipientFirstName}", names);
+		header.addSubstitutions("${confirmationuri}", tokens);
+		header.addFilter("templates", "enabled", 1);
+		if (header.jsonString().equals("{}")) {
+			return 0;
+		}
+		BenchmarkMessages.CountingOutputStream out = new BenchmarkMessages.CountingOutputStream();
+		out.write(header.jsonString().getBytes("ISO-8859-1"));
+		return out.getCount();
+	}
+	
+	@Benchmark
+	public long smtpApiHeader() throws IOException {
+		SmtpApiHeader header = new SmtpApiHeader();
+		header.setTos(emails);
+		header.addSubstitutions("${recipientEmail}", emails);
+		header.addSubstitutions("${recipientFirstName}", names);
+		header.addSubstitutions("${confirmationuri}", tokens);
+		header.addFilter("templates", "enabled", 1);
+		if (header.isEmpty()) {
+			return 0;
+		}
+		BenchmarkMessages.CountingOutputStream out = new BenchmarkMessages.CountingOutputStream();
+		header.toContentBody().writeTo(out);
+		return out.getCount();
+	}
+
+}
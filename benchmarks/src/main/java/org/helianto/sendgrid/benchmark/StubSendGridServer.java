@@ -0,0 +1,315 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server standing in for SendGrid /api/mail.send.json.
+ * 
+ * The multipart form is parsed and validated like SendGrid does, answering 400 for missing
+ * credentials, recipients, sender, subject or body. Responses are delayed according to a
+ * {@link LatencyDistribution} without holding a request thread, and a share of the requests can
+ * be answered with 429 (with Retry-After) or 500, or never answered until the connection is
+ * closed after the timeout delay. Requests, recipients, bytes and responses are counted.
+ * 
+ * Error rates and latency are read on every request and can be changed while running.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class StubSendGridServer {
+	
+	public static final String ENDPOINT = "/api/mail.send.json";
+	
+	private static final byte[] SUCCESS = "{\"message\":\"success\"}".getBytes(StandardCharsets.UTF_8);
+	
+	private static final byte[] THROTTLED = error("Too many requests");
+	
+	private static final byte[] SERVER_ERROR = error("Internal server error");
+	
+	private final HttpServer server;
+	
+	private final ExecutorService executor;
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private volatile LatencyDistribution latency = LatencyDistribution.NONE;
+	
+	private volatile boolean parseBody = true;
+	
+	private volatile double throttleRate;
+	
+	private volatile double errorRate;
+	
+	private volatile double timeoutRate;
+	
+	private volatile long timeoutDelay = 60000;
+	
+	private final LongAdder requests = new LongAdder();
+	
+	private final LongAdder recipients = new LongAdder();
+	
+	private final LongAdder bytesReceived = new LongAdder();
+	
+	private final LongAdder timeouts = new LongAdder();
+	
+	private final Map<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+	
+	/**
+	 * Start on an ephemeral local port.
+	 * 
+	 * @param threads
+	 */
+	public StubSendGridServer(int threads) throws IOException {
+		super();
+		// otherwise Nagle and delayed acks add 40 ms to every response
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		executor = Executors.newFixedThreadPool(threads);
+		scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "stub-sendgrid-responder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext(ENDPOINT, this::handle);
+		server.start();
+	}
+	
+	/**
+	 * Latency added to every response.
+	 */
+	public StubSendGridServer setLatency(LatencyDistribution latency) {
+		this.latency = latency;
+		return this;
+	}
+	
+	/**
+	 * Parse and validate the form, true by default; otherwise the body is only drained.
+	 */
+	public StubSendGridServer setParseBody(boolean parseBody) {
+		this.parseBody = parseBody;
+		return this;
+	}
+	
+	/**
+	 * Share of requests answered with 429.
+	 */
+	public StubSendGridServer setThrottleRate(double throttleRate) {
+		this.throttleRate = throttleRate;
+		return this;
+	}
+	
+	/**
+	 * Share of requests answered with 500.
+	 */
+	public StubSendGridServer setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+	
+	/**
+	 * Share of requests never answered.
+	 */
+	public StubSendGridServer setTimeoutRate(double timeoutRate) {
+		this.timeoutRate = timeoutRate;
+		return this;
+	}
+	
+	/**
+	 * Time before an unanswered request is closed, in milliseconds; keep it above the client read timeout.
+	 */
+	public StubSendGridServer setTimeoutDelay(long timeoutDelay) {
+		this.timeoutDelay = timeoutDelay;
+		return this;
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		byte[] body = readFully(exchange.getRequestBody());
+		requests.increment();
+		bytesReceived.add(body.length);
+		double dice = ThreadLocalRandom.current().nextDouble();
+		if ((dice -= timeoutRate) < 0) {
+			timeouts.increment();
+			scheduler.schedule(exchange::close, timeoutDelay, TimeUnit.MILLISECONDS);
+			return;
+		}
+		int code;
+		byte[] response;
+		if ((dice -= throttleRate) < 0) {
+			code = 429;
+			response = THROTTLED;
+			exchange.getResponseHeaders().set("Retry-After", "1");
+		}
+		else if ((dice -= errorRate) < 0) {
+			code = 500;
+			response = SERVER_ERROR;
+		}
+		else {
+			String problem = parseBody ? validate(exchange, body) : null;
+			code = problem==null ? 200 : 400;
+			response = problem==null ? SUCCESS : error(problem);
+		}
+		long delay = latency.nextNanos() - (System.nanoTime() - start);
+		if (delay > 0) {
+			scheduler.schedule(() -> respond(exchange, code, response), delay, TimeUnit.NANOSECONDS);
+		}
+		else {
+			respond(exchange, code, response);
+		}
+	}
+	
+	/**
+	 * Problem SendGrid would report, or null if the message is accepted.
+	 */
+	private String validate(HttpExchange exchange, byte[] body) {
+		String boundary = MultipartForm.boundary(exchange.getRequestHeaders().getFirst("Content-Type"));
+		if (boundary==null) {
+			return "Expected multipart/form-data";
+		}
+		MultipartForm form;
+		try {
+			form = MultipartForm.parse(body, boundary);
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		if (form.getField("api_user")==null || form.getField("api_key")==null) {
+			return "Bad username / password";
+		}
+		int count = form.countFields("to[");
+		if (count==0) {
+			return "Missing destination email";
+		}
+		if (form.getField("from")==null) {
+			return "Empty from email address (required)";
+		}
+		if (form.getField("subject")==null) {
+			return "Missing subject";
+		}
+		if (form.getField("text")==null && form.getField("html")==null) {
+			return "Missing email body";
+		}
+		String smtpapi = form.getField("x-smtpapi");
+		if (smtpapi!=null) {
+			try {
+				JSONArray tos = new JSONObject(smtpapi).optJSONArray("to");
+				if (tos!=null) {
+					count = tos.length();
+				}
+			} catch (JSONException e) {
+				return "Invalid JSON in x-smtpapi";
+			}
+		}
+		recipients.add(count);
+		return null;
+	}
+	
+	private void respond(HttpExchange exchange, int code, byte[] response) {
+		responses.computeIfAbsent(code, key -> new LongAdder()).increment();
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(code, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		} catch (IOException e) {
+			// the client gave up
+			exchange.close();
+		}
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer))!=-1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static byte[] error(String message) {
+		return new JSONObject().put("message", "error").put("errors", new JSONArray().put(message))
+				.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Base url, to be passed to SendGridSender.setUrl().
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+	
+	public long getRequestCount() {
+		return requests.sum();
+	}
+	
+	/**
+	 * Recipients in accepted messages.
+	 */
+	public long getRecipientCount() {
+		return recipients.sum();
+	}
+	
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+	
+	/**
+	 * Requests left unanswered.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+	
+	/**
+	 * Responses sent with the given code.
+	 * 
+	 * @param code
+	 */
+	public long getResponseCount(int code) {
+		LongAdder count = responses.get(code);
+		return count==null ? 0 : count.sum();
+	}
+	
+	/**
+	 * Zero all counters.
+	 */
+	public void reset() {
+		requests.reset();
+		recipients.reset();
+		bytesReceived.reset();
+		timeouts.reset();
+		responses.clear();
+	}
+	
+	public void stop() {
+		server.stop(0);
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+}
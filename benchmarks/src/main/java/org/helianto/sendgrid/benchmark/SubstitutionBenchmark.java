@@ -0,0 +1,163 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeUtility;
+
+import org.helianto.sendgrid.message.event.EventAggregator;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.AbstractTemplateSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Substitution building in {@link AbstractTemplateSender}; run with -prof gc to compare allocation per send.
+ * 
+ * The baseline methods reproduce the previous path, where the default map was rebuilt 2N+1 times per
+ * message and every value was copied through new String(getBytes()); parameters are not printed to
+ * System.err, as they were, so that only allocation is compared.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubstitutionBenchmark {
+	
+	private static final String[] PARAMS = { "confirmationToken", "4f2a9c1e77d0"
+			, "entityAlias", "Helianto", "tempPassword", "x9Kq2mZt", "locale", "pt_BR" };
+	
+	private BenchmarkTemplateSender sender;
+	
+	private Map<String, String> paramMap;
+	
+	@Setup
+	public void setUp() {
+		sender = new BenchmarkTemplateSender();
+		paramMap = sender.params(PARAMS);
+	}
+	
+	@Benchmark
+	public Map<String, String> defaultSubstitutions() {
+		return sender.substitutions(paramMap);
+	}
+	
+	@Benchmark
+	public Map<String, String> baselineDefaultSubstitutions() {
+		return sender.previousSubstitutions(paramMap);
+	}
+	
+	@Benchmark
+	public SendGridMessageAdapter createMessage() throws UnsupportedEncodingException {
+		return sender.create();
+	}
+	
+	@Benchmark
+	public SendGridMessageAdapter baselineCreateMessage() throws UnsupportedEncodingException {
+		return sender.previousCreate();
+	}
+	
+	/**
+	 * Exposes message construction without a Spring context.
+	 */
+	static class BenchmarkTemplateSender extends AbstractTemplateSender {
+		
+		BenchmarkTemplateSender() {
+			super(BenchmarkMessages.SENDER_EMAIL, BenchmarkMessages.SENDER_NAME, "benchmark");
+		}
+		
+		Map<String, String> params(String... params) {
+			return decodeParams(params);
+		}
+		
+		Map<String, String> substitutions(Map<String, String> paramMap) {
+			return getDefaultSubstitutions(paramMap);
+		}
+		
+		SendGridMessageAdapter create() throws UnsupportedEncodingException {
+			return createMessage("0c4a9d3e-benchmark", "recipient@helianto.org", "José", "Conceição"
+					, "Confirmação de cadastro", PARAMS);
+		}
+		
+		/**
+		 * Message construction before substitutions were planned per template.
+		 */
+		SendGridMessageAdapter previousCreate() throws UnsupportedEncodingException {
+			String subject = "Confirmação de cadastro";
+			SendGridMessageAdapter sendGridEmail = new SendGridMessageAdapter();
+			sendGridEmail.setTemplateName("benchmark");
+			Map<String, String> paramMap = decodeParams(PARAMS);
+			sendGridEmail.setSubject(subject);
+			sendGridEmail.setHtml(getBody(paramMap));
+			sendGridEmail.addTo("recipient@helianto.org");
+			sendGridEmail.addToName("José".trim()+" "+"Conceição");
+			sendGridEmail.setFrom(BenchmarkMessages.SENDER_EMAIL);
+			sendGridEmail.setFromName(BenchmarkMessages.SENDER_NAME);
+			sendGridEmail.setText(subject);
+			
+			int size = 1;
+			sendGridEmail.setSubject(new String(MimeUtility.encodeText(subject)));
+			sendGridEmail.setText(new String(MimeUtility.encodeText(subject)));
+			sendGridEmail.addSubstitution("${recipientEmail}", previousEncodeAll(new String[] { "recipient@helianto.org" }));
+			sendGridEmail.addSubstitution("${recipientFirstName}", previousEncodeAll(new String[] { "José" }));
+			sendGridEmail.addSubstitution("${recipientLastName}", previousEncodeAll(new String[] { "Conceição" }));
+			for (String key: previousSubstitutions(paramMap).keySet()) {
+				String[] values = new String[size];
+				Arrays.fill(values, new String(previousSubstitutions(paramMap).get(key).getBytes()));
+				sendGridEmail.addSubstitution(key, values);
+			}
+			sendGridEmail.addUniqueArg(EventAggregator.TEMPLATE_ARG, "benchmark");
+			sendGridEmail.getSMTPAPI().addFilter("templates", "enabled", 1);
+			sendGridEmail.addFilter("templates", "template_id", "0c4a9d3e-benchmark");
+			return sendGridEmail;
+		}
+		
+		/**
+		 * Default substitutions as they were built before tokens were cached.
+		 */
+		Map<String, String> previousSubstitutions(Map<String, String> paramMap) {
+			Map<String, String> substitutions = new HashMap<>();
+			if (paramMap.containsKey("confirmationToken")) {
+				String internalConfirmationUri = getConfirmationUri(paramMap.get("confirmationToken"));
+				if (internalConfirmationUri!=null && !internalConfirmationUri.isEmpty()) {
+					substitutions.put("${confirmationuri}", internalConfirmationUri);
+				}
+			}
+			substitutions.put("${senderEmail}", BenchmarkMessages.SENDER_EMAIL);
+			for (String param: paramMap.keySet()) {
+				substitutions.put("${"+param+"}", paramMap.get(param));
+			}
+			return substitutions;
+		}
+		
+		private static String[] previousEncodeAll(String[] values) throws UnsupportedEncodingException {
+			String[] encoded = new String[values.length];
+			for (int i = 0; i < values.length; i++) {
+				encoded[i] = new String(MimeUtility.encodeText(values[i]));
+			}
+			return encoded;
+		}
+		
+		@Override
+		protected String getConfirmationUri(String confirmationToken) {
+			return "http://www.helianto.org/confirm?token=" + confirmationToken;
+		}
+		
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.helianto.sendgrid.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.suppression.SuppressionList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SuppressionList} lookups of suppressed and of deliverable addresses.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SuppressionListBenchmark {
+	
+	private static final int LOOKUPS = 1024;
+	
+	@Param({ "1000000" })
+	public int entries;
+	
+	private SuppressionList suppressionList;
+	
+	private String[] suppressed;
+	
+	private String[] deliverable;
+	
+	private int next;
+	
+	@Setup
+	public void setUp() {
+		suppressionList = new SuppressionList(entries, 0.01);
+		for (int i = 0; i < entries; i++) {
+			suppressionList.add("bounced"+i+"@helianto.org");
+		}
+		suppressed = new String[LOOKUPS];
+		deliverable = new String[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			suppressed[i] = "bounced"+(i * 977 % entries)+"@helianto.org";
+			deliverable[i] = "member"+i+"@helianto.org";
+		}
+		System.out.printf("%n%d entries, filter %d KB, estimated footprint %d KB%n"
+				, suppressionList.size(), suppressionList.getFilterBytes() / 1024, suppressionList.getMemoryFootprint() / 1024);
+	}
+	
+	@Benchmark
+	public boolean suppressed() {
+		return suppressionList.contains(suppressed[next++ & (LOOKUPS - 1)]);
+	}
+	
+	@Benchmark
+	public boolean deliverable() {
+		return suppressionList.contains(deliverable[next++ & (LOOKUPS - 1)]);
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.helianto.sendgrid.config;
+
+import java.util.Locale;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Multiple SendGrid accounts configuration.
+ * 
+ * Import along with {@link SendGridConfig} to spread template mail over the accounts given by
+ * indexed properties, from 'helianto.sendgrid.accounts[0].user' and
+ * 'helianto.sendgrid.accounts[0].password' on, up to the first missing index. Each account may
+ * set its name, weight, rateLimit, rateBurst and connections, like
+ * helianto.sendgrid.accounts[1].weight=2; the 'helianto.sendgrid.accounts.routing' property is one
+ * of TENANT, WEIGHTED_ROUND_ROBIN or LEAST_OUTSTANDING.
+ * 
+ * Every account gets a sender of its own, with its own circuit breaker and rate limiter, and the
+ * retry and pool settings of {@link SendGridConfig}. Templates sent through the coalescer, lanes
+ * or send queue do not reach the pool, so do not import their configurations along with this one.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridAccountsConfig {
+	
+	/**
+	 * String to prefix all account properties.
+	 */
+	protected String accountsPrefix = "helianto.sendgrid.accounts";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private SendGridConfig sendGridConfig;
+	
+	@Autowired(required=false)
+	private SendGridMetrics sendGridMetrics;
+	
+	/**
+	 * Sender pool, tenant routing unless set by property; accounts have weight 1, 50 connections
+	 * and the rate limit of the single account properties unless set by their own.
+	 */
+	@Bean(destroyMethod="close")
+	public SendGridSenderPool sendGridSenderPool() {
+		SendGridSenderPool pool = new SendGridSenderPool(SendGridSenderPool.Routing.valueOf(
+				env.getProperty(accountsPrefix+".routing", SendGridSenderPool.Routing.TENANT.name()).trim().toUpperCase(Locale.ROOT)));
+		for (int i = 0; env.containsProperty(accountsPrefix+"["+i+"].user"); i++) {
+			String prefix = accountsPrefix+"["+i+"].";
+			int connections = env.getProperty(prefix+"connections", Integer.class, 50);
+			String name = env.getProperty(prefix+"name", "account-"+i);
+			SendGridSender sender = sendGridConfig.createSendGridSender(name, null, env.getProperty(prefix+"user")
+					, env.getRequiredProperty(prefix+"password")
+					, sendGridConfig.sendGridConnectionPool(connections, connections)
+					, sendGridConfig.sendGridCircuitBreaker(), rateLimiter(prefix));
+			pool.addAccount(name, sender, env.getProperty(prefix+"weight", Integer.class, 1));
+		}
+		if (pool.getAccounts().isEmpty()) {
+			throw new IllegalArgumentException("Unable to create sender pool. Please, provide at least the '"
+					+accountsPrefix+"[0].user' and '"+accountsPrefix+"[0].password' properties");
+		}
+		if (sendGridMetrics!=null) {
+			sendGridMetrics.bind(pool);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Account rate limiter, from the account properties or else the single account ones.
+	 */
+	protected RateLimiter rateLimiter(String prefix) {
+		double rateLimit = env.getProperty(prefix+"rateLimit", Double.class, 0d);
+		if (rateLimit<=0) {
+			return sendGridConfig.sendGridRateLimiter();
+		}
+		return new RateLimiter(rateLimit
+				, env.getProperty(prefix+"rateBurst", Integer.class, (int) Math.max(1, rateLimit)));
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.helianto.sendgrid.config;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.coalesce.SendCoalescer;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Send coalescing configuration.
+ * 
+ * Import along with {@link SendGridConfig} to merge template sends arriving within a short
+ * window into multi-recipient requests.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridCoalescerConfig {
+	
+	/**
+	 * String to prefix all coalescer properties.
+	 */
+	protected String coalescePrefix = "helianto.sendgrid.coalesce.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private SendGridSender sendGridSender;
+	
+	/**
+	 * Optional, see {@link SendGridStatusConfig}.
+	 */
+	@Autowired(required=false)
+	private DeliveryStatusStore deliveryStatusStore;
+	
+	/**
+	 * Coalescer, 20 ms window and 1000 recipients per request unless set by properties.
+	 */
+	@Bean(destroyMethod="close")
+	public SendCoalescer sendCoalescer() {
+		return new SendCoalescer(sendGridSender
+				, env.getProperty(coalescePrefix+"window", Long.class, 20L)
+				, env.getProperty(coalescePrefix+"maxBatchSize", Integer.class, 1000))
+				.setStatusStore(deliveryStatusStore);
+	}
+	
+}
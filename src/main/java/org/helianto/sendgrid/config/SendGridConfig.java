@@ -1,10 +1,19 @@
 package org.helianto.sendgrid.config;
 
+import org.helianto.sendgrid.message.sender.SendGridConnectionPool;
 import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.TemplateRegistry;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.helianto.sendgrid.message.sender.retry.CircuitBreaker;
+import org.helianto.sendgrid.message.sender.retry.RetryPolicy;
 import org.helianto.sendgrid.message.sender.SendGridWebMailSender;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.Environment;
 
 /**
@@ -27,9 +36,67 @@ public class SendGridConfig  {
 	 */
 	protected String sendGridPasswordProperty = "helianto.sendgrid.password";
 	
+	/**
+	 * Maximum number of async requests in flight.
+	 */
+	protected String sendGridMaxInFlightProperty = "helianto.sendgrid.async.maxInFlight";
+	
+	/**
+	 * SendGrid request rate limit, in requests per second.
+	 */
+	protected String sendGridRateLimitProperty = "helianto.sendgrid.rateLimit";
+	
+	/**
+	 * SendGrid requests allowed at once, above the steady rate.
+	 */
+	protected String sendGridRateBurstProperty = "helianto.sendgrid.rateBurst";
+	
+	/**
+	 * Maximum wait for a rate limit permit, in milliseconds; zero rejects at once.
+	 */
+	protected String sendGridRateTimeoutProperty = "helianto.sendgrid.rateTimeout";
+	
+	/**
+	 * String to prefix all template names.
+	 */
+	protected String sendGridTemplatePrefix = "helianto.sendgrid.template.";
+	
+	/**
+	 * Interval between template registry refreshes, in milliseconds; zero disables it.
+	 */
+	protected String sendGridTemplateRefreshProperty = "helianto.sendgrid.templateRefreshInterval";
+	
+	/**
+	 * String to prefix all connection pool properties.
+	 */
+	protected String sendGridPoolPrefix = "helianto.sendgrid.pool.";
+	
+	/**
+	 * String to prefix all retry policy properties.
+	 */
+	protected String sendGridRetryPrefix = "helianto.sendgrid.retry.";
+	
+	/**
+	 * String to prefix all circuit breaker properties.
+	 */
+	protected String sendGridBreakerPrefix = "helianto.sendgrid.breaker.";
+	
 	@Autowired
 	private Environment env;
 	
+	/**
+	 * Optional, declare a {@link org.helianto.sendgrid.message.sender.metrics.MicrometerSendGridMetrics} 
+	 * bean to publish SendGrid metrics.
+	 */
+	@Autowired(required=false)
+	private SendGridMetrics sendGridMetrics;
+	
+	/**
+	 * Optional, see {@link SendGridStatusConfig}.
+	 */
+	@Autowired(required=false)
+	private DeliveryStatusStore deliveryStatusStore;
+	
 	/**
 	 * Mail sender.
 	 * @deprecated
@@ -48,14 +115,151 @@ public class SendGridConfig  {
 	 */
 	@Bean
 	public SendGridSender sendGridSender() {
-		String sendGridUser = env.getProperty(sendGridUserProperty);
-		String sendGridPassword = env.getProperty(sendGridPasswordProperty);
+		return createSendGridSender(sendGridConnectionPool(), sendGridCircuitBreaker(), sendGridRateLimiter());
+	}
+	
+	/**
+	 * Create a sender; senders sharing the account should share the circuit breaker and rate limiter.
+	 * 
+	 * @param connectionPool
+	 * @param circuitBreaker
+	 * @param rateLimiter
+	 */
+	protected SendGridSender createSendGridSender(SendGridConnectionPool connectionPool
+			, CircuitBreaker circuitBreaker, RateLimiter rateLimiter) {
+		return createSendGridSender(null, connectionPool, circuitBreaker, rateLimiter);
+	}
+	
+	/**
+	 * Create a sender for a lane of the account.
+	 * 
+	 * @param lane none if null
+	 * @param connectionPool
+	 * @param circuitBreaker
+	 * @param rateLimiter
+	 */
+	protected SendGridSender createSendGridSender(String lane, SendGridConnectionPool connectionPool
+			, CircuitBreaker circuitBreaker, RateLimiter rateLimiter) {
+		return createSendGridSender(null, lane, env.getProperty(sendGridUserProperty), env.getProperty(sendGridPasswordProperty)
+				, connectionPool, circuitBreaker, rateLimiter);
+	}
+	
+	/**
+	 * Create a sender for the given account.
+	 * 
+	 * @param sendGridUser
+	 * @param sendGridPassword
+	 * @param connectionPool
+	 * @param circuitBreaker
+	 * @param rateLimiter
+	 */
+	protected SendGridSender createSendGridSender(String sendGridUser, String sendGridPassword
+			, SendGridConnectionPool connectionPool, CircuitBreaker circuitBreaker, RateLimiter rateLimiter) {
+		return createSendGridSender(null, null, sendGridUser, sendGridPassword, connectionPool, circuitBreaker, rateLimiter);
+	}
+	
+	/**
+	 * Create a sender for the given account, its metrics tagged by account and lane.
+	 * 
+	 * @param account default if null
+	 * @param lane none if null
+	 * @param sendGridUser
+	 * @param sendGridPassword
+	 * @param connectionPool
+	 * @param circuitBreaker
+	 * @param rateLimiter
+	 */
+	protected SendGridSender createSendGridSender(String account, String lane, String sendGridUser, String sendGridPassword
+			, SendGridConnectionPool connectionPool, CircuitBreaker circuitBreaker, RateLimiter rateLimiter) {
 		if (sendGridUser!=null && !sendGridUser.isEmpty() 
 				&& sendGridPassword!=null && !sendGridPassword.isEmpty()) {
-			return new SendGridSender(sendGridUser, sendGridPassword);		
+			return new SendGridSender(sendGridUser, sendGridPassword)
+					.setConnectionPool(connectionPool)
+					.setRetryPolicy(sendGridRetryPolicy())
+					.setCircuitBreaker(circuitBreaker)
+					.setRateLimiter(rateLimiter, env.getProperty(sendGridRateTimeoutProperty, Long.class, 1000L))
+					.setMaxInFlight(env.getProperty(sendGridMaxInFlightProperty, Integer.class, 64))
+					.setStatusStore(deliveryStatusStore)
+					.setMetricTags(account, lane)
+					.setMetrics(sendGridMetrics!=null ? sendGridMetrics : NoOpSendGridMetrics.INSTANCE);
 		}
 		throw new IllegalArgumentException("Unable to create sender. Please, provide valid "
 				+ "'helianto.sendgrid.user' and/or 'helianto.sendgrid.password' properties");
 	}
 	
+	/**
+	 * SendGrid template registry.
+	 */
+	@Bean
+	public TemplateRegistry templateRegistry() {
+		if (!(env instanceof ConfigurableEnvironment)) {
+			throw new IllegalArgumentException("Unable to create template registry, environment is not configurable.");
+		}
+		TemplateRegistry templateRegistry = new TemplateRegistry((ConfigurableEnvironment) env, sendGridTemplatePrefix);
+		templateRegistry.setRefreshInterval(env.getProperty(sendGridTemplateRefreshProperty, Long.class, 0L));
+		return templateRegistry;
+	}
+	
+	/**
+	 * SendGrid connection pool, closed with the sender.
+	 */
+	protected SendGridConnectionPool sendGridConnectionPool() {
+		return sendGridConnectionPool(getPoolProperty("maxTotal", Integer.class, 50)
+				, getPoolProperty("maxPerRoute", Integer.class, 50));
+	}
+	
+	/**
+	 * SendGrid connection pool of the given size, other settings from the pool properties.
+	 * 
+	 * @param maxTotal
+	 * @param maxPerRoute
+	 */
+	protected SendGridConnectionPool sendGridConnectionPool(int maxTotal, int maxPerRoute) {
+		return new SendGridConnectionPool(maxTotal, maxPerRoute)
+			.setConnectTimeout(getPoolProperty("connectTimeout", Integer.class, 5000))
+			.setReadTimeout(getPoolProperty("readTimeout", Integer.class, 30000))
+			.setLeaseTimeout(getPoolProperty("leaseTimeout", Integer.class, 5000))
+			.setIdleTimeout(getPoolProperty("idleTimeout", Long.class, 30000L))
+			.setTimeToLive(getPoolProperty("timeToLive", Long.class, 300000L))
+			.setKeepAlive(getPoolProperty("keepAlive", Long.class, 30000L))
+			.setEvictionInterval(getPoolProperty("evictionInterval", Long.class, 5000L));
+	}
+	
+	/**
+	 * SendGrid retry policy, three attempts unless set by properties.
+	 */
+	protected RetryPolicy sendGridRetryPolicy() {
+		return new RetryPolicy(env.getProperty(sendGridRetryPrefix+"maxAttempts", Integer.class, 3)
+				, env.getProperty(sendGridRetryPrefix+"baseDelay", Long.class, 200L)
+				, env.getProperty(sendGridRetryPrefix+"maxDelay", Long.class, 10000L));
+	}
+	
+	/**
+	 * SendGrid circuit breaker, none if the failure threshold is set to zero.
+	 */
+	protected CircuitBreaker sendGridCircuitBreaker() {
+		int failureThreshold = env.getProperty(sendGridBreakerPrefix+"failureThreshold", Integer.class, 5);
+		if (failureThreshold<=0) {
+			return null;
+		}
+		return new CircuitBreaker(failureThreshold
+				, env.getProperty(sendGridBreakerPrefix+"openDuration", Long.class, 30000L));
+	}
+	
+	/**
+	 * SendGrid rate limiter, none unless the rate limit is set.
+	 */
+	protected RateLimiter sendGridRateLimiter() {
+		double rateLimit = env.getProperty(sendGridRateLimitProperty, Double.class, 0d);
+		if (rateLimit<=0) {
+			return null;
+		}
+		return new RateLimiter(rateLimit
+				, env.getProperty(sendGridRateBurstProperty, Integer.class, (int) Math.max(1, rateLimit)));
+	}
+	
+	private <T> T getPoolProperty(String name, Class<T> type, T defaultValue) {
+		return env.getProperty(sendGridPoolPrefix+name, type, defaultValue);
+	}
+	
 }
@@ -0,0 +1,41 @@
+package org.helianto.sendgrid.config;
+
+import org.helianto.sendgrid.message.sender.dispatch.SendDispatcher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Send dispatch configuration.
+ * 
+ * Import along with {@link SendGridConfig} to run template sends submitted through
+ * {@link org.helianto.sendgrid.message.sender.AbstractTemplateSender#submit(String, String, String, String, String...)}
+ * on virtual threads, or on a platform thread pool before JDK 21.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridDispatchConfig {
+	
+	/**
+	 * String to prefix all dispatch properties.
+	 */
+	protected String dispatchPrefix = "helianto.sendgrid.dispatch.";
+	
+	@Autowired
+	private Environment env;
+	
+	/**
+	 * Dispatcher, 64 sends at once, 64 platform threads and 1 s wait for a permit unless set by
+	 * properties; keep the concurrency within the connection pool size.
+	 */
+	@Bean(destroyMethod="close")
+	public SendDispatcher sendDispatcher() {
+		return new SendDispatcher(
+				env.getProperty(dispatchPrefix+"maxConcurrency", Integer.class, 64)
+				, env.getProperty(dispatchPrefix+"threads", Integer.class, 64)
+				, env.getProperty(dispatchPrefix+"timeout", Long.class, 1000L));
+	}
+
+}
@@ -0,0 +1,55 @@
+package org.helianto.sendgrid.config;
+
+import java.util.Arrays;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.deadline.HedgedSender;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.util.StringUtils;
+
+/**
+ * Hedged send configuration.
+ * 
+ * Import along with {@link SendGridConfig} to hedge the templates listed, comma separated, in the
+ * 'helianto.sendgrid.hedge.templates' property; these are sent directly, bypassing lanes, queue
+ * and account pool, within their 'helianto.sendgrid.deadline.&lt;template&gt;' deadline.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridHedgeConfig {
+	
+	/**
+	 * String to prefix all hedging properties.
+	 */
+	protected String hedgePrefix = "helianto.sendgrid.hedge.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private SendGridSender sendGridSender;
+	
+	@Autowired(required=false)
+	private SendGridMetrics sendGridMetrics;
+	
+	/**
+	 * Hedged sender; unless set by properties, templates without a deadline get 10 s, and the
+	 * second attempt waits 500 ms until 20 latencies give the p95, never less than 10 ms.
+	 */
+	@Bean(destroyMethod="close")
+	public HedgedSender hedgedSender() {
+		return new HedgedSender(sendGridSender
+				, Arrays.asList(StringUtils.trimArrayElements(StringUtils.commaDelimitedListToStringArray(env.getProperty(hedgePrefix+"templates", ""))))
+				, sendGridMetrics)
+				.setTimeout(env.getProperty(hedgePrefix+"timeout", Long.class, 10000L))
+				.setInitialDelay(env.getProperty(hedgePrefix+"initialDelay", Long.class, 500L)
+						, env.getProperty(hedgePrefix+"minSamples", Integer.class, 20))
+				.setMinDelay(env.getProperty(hedgePrefix+"minDelay", Long.class, 10L));
+	}
+
+}
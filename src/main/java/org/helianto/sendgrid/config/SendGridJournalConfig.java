@@ -0,0 +1,57 @@
+package org.helianto.sendgrid.config;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.journal.JournalDispatcher;
+import org.helianto.sendgrid.message.sender.journal.MailJournal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Outbound mail journal configuration.
+ *
+ * Import along with {@link SendGridConfig} to journal every message before dispatch;
+ * requires the 'helianto.sendgrid.journal.dir' property.
+ *
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridJournalConfig {
+
+	/**
+	 * String to prefix all journal properties.
+	 */
+	protected String journalPrefix = "helianto.sendgrid.journal.";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private SendGridSender sendGridSender;
+
+	/**
+	 * Journal.
+	 */
+	@Bean(destroyMethod="close")
+	public MailJournal mailJournal() throws IOException {
+		return new MailJournal(new File(env.getRequiredProperty(journalPrefix+"dir"))
+				, env.getProperty(journalPrefix+"segmentSize", Integer.class, 64 * 1024 * 1024)
+				, env.getProperty(journalPrefix+"flushInterval", Long.class, 10L));
+	}
+
+	/**
+	 * Journal dispatcher.
+	 */
+	@Bean(initMethod="start", destroyMethod="close")
+	public JournalDispatcher journalDispatcher() throws IOException {
+		return new JournalDispatcher(mailJournal(), sendGridSender
+				, env.getProperty(journalPrefix+"workers", Integer.class, 4)
+				, env.getProperty(journalPrefix+"retryDelay", Long.class, 30000L))
+				.setMaxAttempts(env.getProperty(journalPrefix+"maxAttempts", Integer.class, 10));
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.helianto.sendgrid.config;
+
+import java.util.Locale;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.helianto.sendgrid.message.sender.lane.LaneDispatcher;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Priority lanes configuration.
+ * 
+ * Import along with {@link SendGridConfig} to send template mail through lanes; a template goes
+ * to the lane named by its 'helianto.sendgrid.lane.&lt;template&gt;' property, like
+ * helianto.sendgrid.lane.confirmation=TRANSACTIONAL, or to the default lane.
+ * 
+ * Each lane gets a sender of its own, with a connection pool partition sized by the
+ * 'helianto.sendgrid.lanes.&lt;lane&gt;.connections' property and the pool settings of
+ * {@link SendGridConfig}; lane senders share the circuit breaker and the rate limit of the main
+ * sender, as they share the account, but bulk mail leaves the last permits of the burst, a share
+ * set by the 'helianto.sendgrid.lanes.transactional.rateReserve' property, 0.2 by default, to
+ * transactional mail, so that bulk bursts never hold it back.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridLaneConfig {
+	
+	/**
+	 * String to prefix all lane properties.
+	 */
+	protected String lanesPrefix = "helianto.sendgrid.lanes.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private SendGridConfig sendGridConfig;
+	
+	@Autowired
+	private SendGridSender sendGridSender;
+	
+	@Autowired(required=false)
+	private SendGridMetrics sendGridMetrics;
+	
+	/**
+	 * Lane dispatcher; unless set by properties, the transactional lane has 10 connections, the bulk
+	 * lane 40, one worker per connection, 10000 queued messages each, and bulk is the default lane.
+	 */
+	@Bean(destroyMethod="close")
+	public LaneDispatcher laneDispatcher() {
+		LaneDispatcher laneDispatcher = new LaneDispatcher(sendGridMetrics)
+				.setDefaultLane(Lane.valueOf(env.getProperty(lanesPrefix+"default", Lane.BULK.name()).trim().toUpperCase(Locale.ROOT)));
+		for (Lane lane: Lane.values()) {
+			String prefix = lanesPrefix+lane.name().toLowerCase(Locale.ROOT)+".";
+			int connections = env.getProperty(prefix+"connections", Integer.class, lane==Lane.TRANSACTIONAL ? 10 : 40);
+			SendGridSender sender = sendGridConfig.createSendGridSender(lane.name().toLowerCase(Locale.ROOT)
+					, sendGridConfig.sendGridConnectionPool(connections, connections)
+					, sendGridSender.getCircuitBreaker(), laneRateLimiter(lane, sendGridSender.getRateLimiter()));
+			laneDispatcher.addLane(lane, sender
+					, env.getProperty(prefix+"workers", Integer.class, connections)
+					, env.getProperty(prefix+"queueCapacity", Integer.class, 10000));
+		}
+		laneDispatcher.start();
+		return laneDispatcher;
+	}
+	
+	/**
+	 * Lane share of the account rate limiter, none if the account has no rate limit.
+	 * 
+	 * @param lane
+	 * @param rateLimiter the account rate limiter
+	 */
+	protected RateLimiter laneRateLimiter(Lane lane, RateLimiter rateLimiter) {
+		if (rateLimiter==null) {
+			return null;
+		}
+		if (lane==Lane.TRANSACTIONAL) {
+			return rateLimiter.share(0);
+		}
+		double reserve = env.getProperty(lanesPrefix+"transactional.rateReserve", Double.class, 0.2d);
+		int reserved = (int) Math.round(rateLimiter.getBurst() * Math.min(1, Math.max(0, reserve)));
+		return rateLimiter.share(Math.max(0, Math.min(rateLimiter.getBurst() - 1, reserved)));
+	}
+
+}
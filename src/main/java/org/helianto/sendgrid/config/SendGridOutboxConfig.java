@@ -0,0 +1,63 @@
+package org.helianto.sendgrid.config;
+
+import javax.sql.DataSource;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.outbox.MailOutbox;
+import org.helianto.sendgrid.message.sender.outbox.OutboxDispatcher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Outbox configuration.
+ * 
+ * Import along with {@link SendGridConfig} to insert every message in the outbox table, in the
+ * transaction of the caller, and dispatch it from any node; requires a {@link DataSource} bean
+ * and the table from META-INF/sendgrid-outbox.sql. Set 'helianto.sendgrid.outbox.skipLocked'
+ * on databases supporting FOR UPDATE SKIP LOCKED, like PostgreSQL 9.5 or MySQL 8.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridOutboxConfig {
+	
+	/**
+	 * String to prefix all outbox properties.
+	 */
+	protected String outboxPrefix = "helianto.sendgrid.outbox.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private DataSource dataSource;
+	
+	@Autowired
+	private SendGridSender sendGridSender;
+	
+	/**
+	 * Outbox, rows failing after 10 attempts unless set by property.
+	 */
+	@Bean
+	public MailOutbox mailOutbox() {
+		return new MailOutbox(dataSource, env.getProperty(outboxPrefix+"skipLocked", Boolean.class, false))
+			.setMaxAttempts(env.getProperty(outboxPrefix+"maxAttempts", Integer.class, 10));
+	}
+	
+	/**
+	 * Outbox dispatcher, 2 workers claiming 32 rows for 5 minutes unless set by properties, so that
+	 * together they fill the default sender in flight limit of 64.
+	 */
+	@Bean(initMethod="start", destroyMethod="close")
+	public OutboxDispatcher outboxDispatcher() {
+		return new OutboxDispatcher(mailOutbox(), sendGridSender
+				, env.getProperty(outboxPrefix+"workers", Integer.class, 2))
+			.setBatchSize(env.getProperty(outboxPrefix+"batchSize", Integer.class, 32))
+			.setLease(env.getProperty(outboxPrefix+"lease", Long.class, 300000L))
+			.setPollInterval(env.getProperty(outboxPrefix+"pollInterval", Long.class, 500L))
+			.setRetryDelay(env.getProperty(outboxPrefix+"retryDelay", Long.class, 30000L));
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.helianto.sendgrid.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.journal.MailJournal;
+import org.helianto.sendgrid.message.sender.queue.RejectionPolicy;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Send queue configuration.
+ * 
+ * Import along with {@link SendGridConfig} to send template mail through a bounded queue; templates
+ * pick their lane with the 'helianto.sendgrid.lane.&lt;template&gt;' property, bulk by default.
+ * The 'helianto.sendgrid.queue.policy' property chooses what happens when a lane is full, one of
+ * BLOCK, REJECT, DROP_OLDEST_BULK or SPILL_TO_DISK; the latter requires the
+ * 'helianto.sendgrid.queue.spill.dir' property.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridQueueConfig {
+	
+	/**
+	 * String to prefix all queue properties.
+	 */
+	protected String queuePrefix = "helianto.sendgrid.queue.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired
+	private SendGridSender sendGridSender;
+	
+	@Autowired(required=false)
+	private SendGridMetrics sendGridMetrics;
+	
+	/**
+	 * Send queue; unless set by properties, 1024 messages per lane, 50 workers as the default
+	 * connection pool, and callers wait up to 1 s for room before rejection.
+	 */
+	@Bean(destroyMethod="close")
+	public SendQueue sendQueue() throws IOException {
+		RejectionPolicy policy = RejectionPolicy.valueOf(env.getProperty(queuePrefix+"policy", RejectionPolicy.BLOCK.name())
+				.trim().toUpperCase(Locale.ROOT));
+		SendQueue sendQueue = new SendQueue(sendGridSender
+				, env.getProperty(queuePrefix+"capacity", Integer.class, 1024)
+				, env.getProperty(queuePrefix+"workers", Integer.class, 50)
+				, policy, sendGridMetrics)
+				.setBlockTimeout(env.getProperty(queuePrefix+"blockTimeout", Long.class, 1000L));
+		if (policy==RejectionPolicy.SPILL_TO_DISK) {
+			sendQueue.setSpillJournal(new MailJournal(new File(env.getRequiredProperty(queuePrefix+"spill.dir"))
+					, env.getProperty(queuePrefix+"spill.segmentSize", Integer.class, 64 * 1024 * 1024)
+					, env.getProperty(queuePrefix+"spill.flushInterval", Long.class, 10L))
+					, env.getProperty(queuePrefix+"spill.retryDelay", Long.class, 30000L));
+		}
+		sendQueue.start();
+		return sendQueue;
+	}
+
+}
@@ -0,0 +1,41 @@
+package org.helianto.sendgrid.config;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Delivery status configuration.
+ * 
+ * Import along with {@link SendGridConfig} to assign an id to every message and keep its latest
+ * delivery state, updated by the send outcome and by the event webhook.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridStatusConfig {
+	
+	/**
+	 * String to prefix all status properties.
+	 */
+	protected String statusPrefix = "helianto.sendgrid.status.";
+	
+	@Autowired
+	private Environment env;
+	
+	/**
+	 * Status store, sized for ten million messages kept for seven days unless set by properties;
+	 * entries take 24 to 48 bytes off-heap, as the table size is rounded up to a power of two.
+	 */
+	@Bean
+	public DeliveryStatusStore deliveryStatusStore() {
+		return new DeliveryStatusStore(
+				env.getProperty(statusPrefix+"capacity", Long.class, 10000000L)
+				, env.getProperty(statusPrefix+"ttl", Long.class, TimeUnit.DAYS.toMillis(7)));
+	}
+
+}
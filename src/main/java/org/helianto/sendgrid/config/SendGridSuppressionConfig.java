@@ -0,0 +1,46 @@
+package org.helianto.sendgrid.config;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.helianto.sendgrid.message.suppression.SuppressionList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Suppression list configuration.
+ * 
+ * Import along with {@link SendGridConfig} to skip suppressed recipients before sending;
+ * the list is loaded from the 'helianto.sendgrid.suppression.file' property, if any.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Configuration
+public class SendGridSuppressionConfig {
+	
+	/**
+	 * String to prefix all suppression properties.
+	 */
+	protected String suppressionPrefix = "helianto.sendgrid.suppression.";
+	
+	@Autowired
+	private Environment env;
+	
+	/**
+	 * Suppression list, sized for a million entries and 1% false positives unless set by properties.
+	 */
+	@Bean
+	public SuppressionList suppressionList() throws IOException {
+		SuppressionList suppressionList = new SuppressionList(
+				env.getProperty(suppressionPrefix+"expectedEntries", Integer.class, 1000000)
+				, env.getProperty(suppressionPrefix+"falsePositiveRate", Double.class, 0.01));
+		String file = env.getProperty(suppressionPrefix+"file");
+		if (file!=null && !file.isEmpty()) {
+			suppressionList.load(new File(file));
+		}
+		return suppressionList;
+	}
+	
+}
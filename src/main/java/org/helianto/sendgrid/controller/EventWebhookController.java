@@ -0,0 +1,214 @@
+package org.helianto.sendgrid.controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.event.EventAggregator;
+import org.helianto.sendgrid.message.event.EventStream;
+import org.helianto.sendgrid.message.status.DeliveryState;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.helianto.sendgrid.message.suppression.SuppressionList;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * SendGrid event webhook controller.
+ * 
+ * Events are parsed one at a time from the request body and counted; addresses that bounced,
+ * reported spam or unsubscribed, or were dropped as such, are added to the suppression list, if any, and
+ * events carrying a message id update the delivery status store, if any.
+ * Requests must carry the 'helianto.sendgrid.webhook.token' property as the token parameter of
+ * the webhook url; while the property is not set, every request is refused.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+@Controller
+@RequestMapping("/webhook")
+public class EventWebhookController {
+	
+	private static final Logger logger = LoggerFactory.getLogger(EventWebhookController.class);
+	
+	private static final Set<String> SUPPRESSING_EVENTS = new HashSet<>(Arrays.asList("bounce", "dropped", "spamreport", "unsubscribe"));
+	
+	/**
+	 * Reasons of drops due to the address; others, like "Invalid SMTPAPI header" or "Spam Content",
+	 * are due to the message.
+	 */
+	private static final Set<String> SUPPRESSING_DROP_REASONS = new HashSet<>(Arrays.asList("Bounced Address"
+			, "Unsubscribed Address", "Spam Reporting Address"));
+	
+	/**
+	 * Shared secret expected as the token parameter.
+	 */
+	protected String webhookTokenProperty = "helianto.sendgrid.webhook.token";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired(required=false)
+	private EventAggregator eventAggregator = new EventAggregator();
+	
+	@Autowired(required=false)
+	private SuppressionList suppressionList;
+	
+	@Autowired(required=false)
+	private DeliveryStatusStore statusStore;
+	
+	/**
+	 * Receive a batch of events.
+	 * 
+	 * @param request
+	 * @param token
+	 */
+	@RequestMapping(value="/event", method=RequestMethod.POST)
+	public ResponseEntity<String> event(HttpServletRequest request, @RequestParam(required=false) String token) throws IOException {
+		if (!isAuthorized(token)) {
+			return new ResponseEntity<String>(HttpStatus.FORBIDDEN);
+		}
+		try {
+			int count = EventStream.forEach(request.getReader(), this::process);
+			logger.debug("Received {} SendGrid events.", count);
+			return new ResponseEntity<String>(HttpStatus.OK);
+		} catch (JSONException e) {
+			logger.warn("Malformed SendGrid event batch: {}", e.getMessage());
+			return new ResponseEntity<String>(HttpStatus.BAD_REQUEST);
+		}
+	}
+	
+	/**
+	 * Count and apply a single event.
+	 * 
+	 * @param event
+	 */
+	protected void process(JSONObject event) {
+		eventAggregator.record(event);
+		if (suppressionList!=null && isSuppressing(event)) {
+			String email = event.optString("email", null);
+			if (email!=null && suppressionList.add(email)) {
+				logger.debug("Suppressed {} after {} event.", email, event.optString("event"));
+			}
+		}
+		if (statusStore!=null) {
+			updateStatus(event);
+		}
+	}
+	
+	/**
+	 * Update the delivery status from an event carrying a message id.
+	 * 
+	 * @param event
+	 */
+	protected void updateStatus(JSONObject event) {
+		String messageId = event.optString(SendGridMessageAdapter.MESSAGE_ID_ARG, null);
+		DeliveryState state = DeliveryState.forEvent(event.optString("event", null));
+		if (messageId==null || state==null) {
+			return;
+		}
+		try {
+			long timestamp = event.optLong("timestamp", 0);
+			statusStore.update(UUID.fromString(messageId), state
+					, timestamp > 0 ? TimeUnit.SECONDS.toMillis(timestamp) : System.currentTimeMillis());
+		} catch (IllegalArgumentException e) {
+			logger.debug("Ignored event with message id {}.", messageId);
+		}
+	}
+	
+	/**
+	 * True for permanent failures and opt-outs; blocked bounces are temporary, and drops suppress
+	 * only when due to a bounced, unsubscribed or spam reporting address.
+	 * 
+	 * @param event
+	 */
+	protected boolean isSuppressing(JSONObject event) {
+		String type = event.optString("event");
+		if ("dropped".equals(type)) {
+			return SUPPRESSING_DROP_REASONS.contains(event.optString("reason").trim());
+		}
+		return SUPPRESSING_EVENTS.contains(type) && !"blocked".equals(event.optString("type"));
+	}
+	
+	/**
+	 * Event counts per type, template and category.
+	 * 
+	 * @param token
+	 */
+	@RequestMapping(value="/event/stats", method=RequestMethod.GET, produces="application/json")
+	public ResponseEntity<String> stats(@RequestParam(required=false) String token) {
+		if (!isAuthorized(token)) {
+			return new ResponseEntity<String>(HttpStatus.FORBIDDEN);
+		}
+		return new ResponseEntity<String>(eventAggregator.toJson().toString(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Latest delivery state of a message.
+	 * 
+	 * @param messageId
+	 * @param token
+	 */
+	@RequestMapping(value="/status/{messageId}", method=RequestMethod.GET, produces="application/json")
+	public ResponseEntity<String> status(@PathVariable String messageId, @RequestParam(required=false) String token) {
+		if (!isAuthorized(token)) {
+			return new ResponseEntity<String>(HttpStatus.FORBIDDEN);
+		}
+		if (statusStore==null) {
+			return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+		}
+		UUID id;
+		try {
+			id = UUID.fromString(messageId);
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>(HttpStatus.BAD_REQUEST);
+		}
+		DeliveryState state = statusStore.getState(id);
+		if (state==null) {
+			return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+		}
+		JSONObject status = new JSONObject()
+				.put(SendGridMessageAdapter.MESSAGE_ID_ARG, messageId)
+				.put("state", state.name())
+				.put("updated", statusStore.getUpdated(id));
+		return new ResponseEntity<String>(status.toString(), HttpStatus.OK);
+	}
+	
+	/**
+	 * True if the token matches the configured one, compared in constant time; false when none
+	 * is configured.
+	 * 
+	 * @param token
+	 */
+	private boolean isAuthorized(String token) {
+		String expectedToken = env.getProperty(webhookTokenProperty);
+		if (expectedToken==null || expectedToken.isEmpty()) {
+			logger.warn("SendGrid webhook request refused, set {} to accept it.", webhookTokenProperty);
+			return false;
+		}
+		return token!=null && MessageDigest.isEqual(expectedToken.getBytes(StandardCharsets.UTF_8)
+				, token.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public EventAggregator getEventAggregator() {
+		return eventAggregator;
+	}
+
+}
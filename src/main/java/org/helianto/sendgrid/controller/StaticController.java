@@ -1,55 +1,137 @@
 package org.helianto.sendgrid.controller;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.MatrixVariable;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.ViewResolver;
+import org.springframework.web.servlet.support.RequestContextUtils;
 
 /**
  * Static page controller.
  * 
+ * Pages are rendered once per template, matrix variables, uri parameters and locale, and served
+ * from a {@link StaticPageCache} afterwards, with a strong ETag, Last-Modified and Cache-Control,
+ * answering conditional requests with 304. Without a view resolver in the context, pages are
+ * rendered by the dispatcher on every request.
+ * 
  * @author mauriciofernandesdecastro
  */
 @Controller
 @RequestMapping("/static")
 public class StaticController {
-
+	
 	private static final Logger logger = LoggerFactory.getLogger(StaticController.class);
 	
+	private static final String STATIC_VIEW = "frame-static";
+	
+	/**
+	 * String to prefix all static page cache properties.
+	 */
+	protected String cachePrefix = "helianto.sendgrid.static.cache.";
+	
+	@Autowired
+	private Environment env;
+	
+	@Autowired(required=false)
+	private List<ViewResolver> viewResolvers = Collections.emptyList();
+	
+	private StaticPageCache pageCache;
+	
+	private long maxAge;
+	
+	/**
+	 * Page cache; unless set by properties, 1000 pages within 16 MB, each kept for an hour, and
+	 * browsers may keep them for an hour as well.
+	 */
+	@PostConstruct
+	public void init() {
+		viewResolvers = new ArrayList<>(viewResolvers);
+		AnnotationAwareOrderComparator.sort(viewResolvers);
+		pageCache = new StaticPageCache(env.getProperty(cachePrefix+"maxEntries", Integer.class, 1000)
+				, env.getProperty(cachePrefix+"maxBytes", Long.class, 16L * 1024 * 1024)
+				, env.getProperty(cachePrefix+"timeToLive", Long.class, 3600000L));
+		maxAge = env.getProperty(cachePrefix+"maxAge", Long.class, 3600L);
+	}
+	
 	/**
 	 * Build e-mail page.
 	 * 
-	 * @param model
 	 * @param templateId
 	 * @param matrixVars
+	 * @param confirmationuri
+	 * @param rejecturi
+	 * @param request
+	 * @param response
+	 * @return null once the page is written, otherwise the view to render
 	 */
 	@RequestMapping(value="/template/{templateId}", method=RequestMethod.GET)
-	public String message(Model model, @PathVariable String templateId, @MatrixVariable Map<String, LinkedList<String>> matrixVars
-			, @RequestParam(required=false) String confirmationuri, @RequestParam(required=false) String rejecturi) {
+	public ModelAndView message(@PathVariable String templateId, @MatrixVariable Map<String, LinkedList<String>> matrixVars
+			, @RequestParam(required=false) String confirmationuri, @RequestParam(required=false) String rejecturi
+			, HttpServletRequest request, HttpServletResponse response) throws Exception {
 		logger.debug("Static content from template: {}", templateId);
-		System.err.println("StaticController");
 		
+		Locale locale = RequestContextUtils.getLocale(request);
+		String key = cacheKey(templateId, matrixVars, confirmationuri, rejecturi, locale);
+		StaticPageCache.Page page = pageCache.get(key);
+		if (page==null) {
+			ModelMap model = buildModel(templateId, matrixVars, confirmationuri, rejecturi);
+			page = render(model, locale, request, response);
+			if (page==null) {
+				return new ModelAndView(STATIC_VIEW, model);
+			}
+			pageCache.put(key, page);
+		}
+		write(page, request, response);
+		return null;
+	}
+	
+	/**
+	 * Model of the static view.
+	 */
+	protected ModelMap buildModel(String templateId, Map<String, LinkedList<String>> matrixVars
+			, String confirmationuri, String rejecturi) {
+		ModelMap model = new ModelMap();
 		model.addAttribute("staticuri", "#");
 		
 		model.addAttribute("staticContent", "/sendgrid/"+templateId);
-
+		
 		model.addAllAttributes(matrixVars);
-		System.err.println("Size: " + matrixVars.size());
 		for (Entry<String, LinkedList<String>> entry : matrixVars.entrySet())
 		{
-			for (String string : entry.getValue()) {
-				System.err.println("entry: " + string);
-				model.addAttribute(entry.getKey(), string);
-				break;
+			if (!entry.getValue().isEmpty()) {
+				model.addAttribute(entry.getKey(), entry.getValue().getFirst());
 			}
 		}
 		if(confirmationuri!=null){
@@ -58,8 +140,190 @@ public class StaticController {
 		if(rejecturi!=null){
 			model.addAttribute("rejecturi", rejecturi);
 		}
+		return model;
+	}
+	
+	/**
+	 * Cache key; matrix variables are sorted by name, as their order does not change the page.
+	 */
+	private static String cacheKey(String templateId, Map<String, LinkedList<String>> matrixVars
+			, String confirmationuri, String rejecturi, Locale locale) {
+		StringBuilder key = new StringBuilder(templateId).append('\u0000').append(locale);
+		for (Entry<String, LinkedList<String>> entry: new TreeMap<>(matrixVars).entrySet()) {
+			key.append('\u0000').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		key.append('\u0000').append(confirmationuri).append('\u0000').append(rejecturi);
+		return key.toString();
+	}
+	
+	/**
+	 * Render the static view into memory, null if no resolver knows it or it fails to render.
+	 */
+	private StaticPageCache.Page render(ModelMap model, Locale locale, HttpServletRequest request
+			, HttpServletResponse response) throws Exception {
+		View view = null;
+		for (ViewResolver viewResolver: viewResolvers) {
+			view = viewResolver.resolveViewName(STATIC_VIEW, locale);
+			if (view!=null) {
+				break;
+			}
+		}
+		if (view==null) {
+			return null;
+		}
+		CapturingResponse capture = new CapturingResponse(response);
+		view.render(model, request, capture);
+		if (capture.status!=HttpServletResponse.SC_OK) {
+			logger.warn("Static view rendered with status {}, not cached.", capture.status);
+			return null;
+		}
+		return new StaticPageCache.Page(capture.toByteArray(), capture.getContentType());
+	}
+	
+	private void write(StaticPageCache.Page page, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setHeader("ETag", page.getEtag());
+		response.setDateHeader("Last-Modified", page.getLastModified());
+		response.setHeader("Cache-Control", "public, max-age="+maxAge);
+		if (isNotModified(page, request)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		if (page.getContentType()!=null) {
+			response.setContentType(page.getContentType());
+		}
+		response.setContentLength(page.getBody().length);
+		response.getOutputStream().write(page.getBody());
+	}
+	
+	/**
+	 * True if the client copy is current; If-None-Match wins over If-Modified-Since.
+	 */
+	private static boolean isNotModified(StaticPageCache.Page page, HttpServletRequest request) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch!=null) {
+			for (String etag: ifNoneMatch.split(",")) {
+				etag = etag.trim();
+				if (etag.equals("*") || etag.equals(page.getEtag())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			return ifModifiedSince >= page.getLastModified();
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	public StaticPageCache getPageCache() {
+		return pageCache;
+	}
+	
+	/**
+	 * Keeps whatever the view writes, either as bytes or as characters.
+	 */
+	private static final class CapturingResponse extends HttpServletResponseWrapper {
+		
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		
+		private ServletOutputStream outputStream;
+		
+		private PrintWriter writer;
+		
+		private String contentType;
+		
+		private int status = SC_OK;
+		
+		CapturingResponse(HttpServletResponse response) {
+			super(response);
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() {
+			if (outputStream==null) {
+				outputStream = new ServletOutputStream() {
+					public void write(int b) {
+						buffer.write(b);
+					}
+					public void write(byte[] b, int off, int len) {
+						buffer.write(b, off, len);
+					}
+					public boolean isReady() {
+						return true;
+					}
+					public void setWriteListener(WriteListener writeListener) {
+					}
+				};
+			}
+			return outputStream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws UnsupportedEncodingException {
+			if (writer==null) {
+				writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+			}
+			return writer;
+		}
 		
-		return "frame-static";
+		@Override
+		public void setContentType(String contentType) {
+			this.contentType = contentType;
+			super.setContentType(contentType);
+		}
+		
+		@Override
+		public String getContentType() {
+			return contentType!=null ? contentType : super.getContentType();
+		}
+		
+		@Override
+		public void setStatus(int status) {
+			this.status = status;
+		}
+		
+		@Override
+		public void sendError(int status) {
+			this.status = status;
+		}
+		
+		@Override
+		public void sendError(int status, String message) {
+			this.status = status;
+		}
+		
+		@Override
+		public void sendRedirect(String location) {
+			this.status = SC_FOUND;
+		}
+		
+		@Override
+		public void setContentLength(int length) {
+		}
+		
+		@Override
+		public void setContentLengthLong(long length) {
+		}
+		
+		@Override
+		public void flushBuffer() {
+			if (writer!=null) {
+				writer.flush();
+			}
+		}
+		
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+		
+		byte[] toByteArray() {
+			flushBuffer();
+			return buffer.toByteArray();
+		}
+	
 	}
 
 }
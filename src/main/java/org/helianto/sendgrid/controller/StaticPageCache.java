@@ -0,0 +1,161 @@
+package org.helianto.sendgrid.controller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.springframework.util.DigestUtils;
+
+/**
+ * Rendered static pages, least recently used evicted first.
+ * 
+ * The cache is bounded both by entries and by bytes held; pages also expire after their time to
+ * live, so template changes show up eventually.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class StaticPageCache {
+	
+	private final int maxEntries;
+	
+	private final long maxBytes;
+	
+	private final long timeToLive;
+	
+	private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(64, 0.75f, true);
+	
+	private long bytes;
+	
+	private long hits;
+	
+	private long misses;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxEntries
+	 * @param maxBytes page bodies held at most
+	 * @param timeToLive in milliseconds
+	 */
+	public StaticPageCache(int maxEntries, long maxBytes, long timeToLive) {
+		super();
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxBytes = maxBytes;
+		this.timeToLive = timeToLive;
+	}
+	
+	/**
+	 * Cached page, null if absent or expired.
+	 * 
+	 * @param key
+	 */
+	public synchronized Page get(String key) {
+		Page page = pages.get(key);
+		if (page!=null && System.currentTimeMillis() - page.created > timeToLive) {
+			remove(key);
+			page = null;
+		}
+		if (page==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return page;
+	}
+	
+	/**
+	 * Cache a page, unless larger than the whole cache.
+	 * 
+	 * @param key
+	 * @param page
+	 */
+	public synchronized void put(String key, Page page) {
+		if (page.body.length > maxBytes) {
+			return;
+		}
+		remove(key);
+		pages.put(key, page);
+		bytes += page.body.length;
+		Iterator<Page> eldest = pages.values().iterator();
+		while (pages.size() > maxEntries || bytes > maxBytes) {
+			bytes -= eldest.next().body.length;
+			eldest.remove();
+		}
+	}
+	
+	private void remove(String key) {
+		Page removed = pages.remove(key);
+		if (removed!=null) {
+			bytes -= removed.body.length;
+		}
+	}
+	
+	public synchronized void clear() {
+		pages.clear();
+		bytes = 0;
+	}
+	
+	public synchronized int size() {
+		return pages.size();
+	}
+	
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Rendered page with its validators.
+	 */
+	public static final class Page {
+		
+		private final byte[] body;
+		
+		private final String contentType;
+		
+		private final String etag;
+		
+		private final long lastModified;
+		
+		private final long created = System.currentTimeMillis();
+		
+		/**
+		 * Constructor; the strong entity tag is the body digest, as Spring's ShallowEtagHeaderFilter
+		 * computes it.
+		 * 
+		 * @param body
+		 * @param contentType
+		 */
+		public Page(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = "\"0"+DigestUtils.md5DigestAsHex(body)+"\"";
+			// HTTP dates have a resolution of seconds
+			this.lastModified = created / 1000 * 1000;
+		}
+		
+		public byte[] getBody() {
+			return body;
+		}
+		
+		public String getContentType() {
+			return contentType;
+		}
+		
+		public String getEtag() {
+			return etag;
+		}
+		
+		public long getLastModified() {
+			return lastModified;
+		}
+	
+	}
+
+}
@@ -1,8 +1,6 @@
 package org.helianto.sendgrid.message;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,7 +8,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.helianto.sendgrid.message.attachment.FileRegionBody;
 import org.json.JSONObject;
 
 import com.sendgrid.smtpapi.SMTPAPI;
@@ -22,7 +26,12 @@ import com.sendgrid.smtpapi.SMTPAPI;
  */
 public class SendGridMessageAdapter {
 	
-    private SMTPAPI smtpapi;
+    /**
+     * Unique arg carrying the message id.
+     */
+    public static final String MESSAGE_ID_ARG = "message_id";
+    
+    private SmtpApiHeader smtpapi;
     
     private String from;
     
@@ -44,20 +53,24 @@ public class SendGridMessageAdapter {
     
     private String html;
     
-    private Map<String, InputStream> attachments;
+    private Map<String, ContentBody> attachments;
     
     private Map<String, String> headers;
+    
+    private String templateName;
+    
+    private UUID messageId;
 
     /**
      * Constructor.
      */
     public SendGridMessageAdapter () {
-      this.smtpapi = new SMTPAPI();
+      this.smtpapi = new SmtpApiHeader();
       this.to = new ArrayList<String>();
       this.toname = new ArrayList<String>();
       this.cc = new ArrayList<String>();
       this.bcc = new ArrayList<String>();
-      this.attachments = new HashMap<String, InputStream>();
+      this.attachments = new HashMap<String, ContentBody>();
       this.headers = new HashMap<String, String>();
     }
 
@@ -88,6 +101,21 @@ public class SendGridMessageAdapter {
       return this.to.toArray(new String[this.to.size()]);
     }
 
+    /**
+     * Recipients only in the x-smtpapi header, where SendGrid expands one e-mail per address.
+     */
+    public SendGridMessageAdapter setSMTPAPITos(String[] tos) {
+      this.smtpapi.setTos(tos);
+      return this;
+    }
+
+    /**
+     * Recipients SendGrid delivers this message to.
+     */
+    public int getRecipientCount() {
+      return Math.max(this.smtpapi.getToCount(), this.to.size());
+    }
+
     public SendGridMessageAdapter addToName(String toname) {
       this.toname.add(toname);
       return this;
@@ -200,9 +228,7 @@ public class SendGridMessageAdapter {
     }
 
     public SendGridMessageAdapter dropSMTPAPITos() {
-      JSONObject oldHeader = new JSONObject(this.smtpapi.jsonString());
-      oldHeader.remove("to");
-      this.smtpapi = new SMTPAPI(oldHeader);
+      this.smtpapi.setTos(null);
       return this;
     }
 
@@ -251,20 +277,34 @@ public class SendGridMessageAdapter {
       return this.smtpapi.getFilters();
     }
 
+    /**
+     * File attachment, streamed from disk on every send.
+     */
     public SendGridMessageAdapter addAttachment(String name, File file) throws IOException, FileNotFoundException {
-      return this.addAttachment(name, new FileInputStream(file));
+      return this.addAttachment(name, new FileRegionBody(file));
     }
 
     public SendGridMessageAdapter addAttachment(String name, String file) throws IOException {
-      return this.addAttachment(name, new ByteArrayInputStream(file.getBytes()));
+      return this.addAttachment(name, new ByteArrayBody(file.getBytes(), ContentType.DEFAULT_BINARY, null));
     }
 
+    /**
+     * Stream attachment, which can be read only once, so a message carrying it is never retried.
+     */
     public SendGridMessageAdapter addAttachment(String name, InputStream file) throws IOException {
-      this.attachments.put(name, file);
+      return this.addAttachment(name, new InputStreamBody(file, ContentType.DEFAULT_BINARY));
+    }
+
+    /**
+     * Attachment body; bodies with a known length, like {@link FileRegionBody} or 
+     * {@link org.helianto.sendgrid.message.attachment.MappedRegionBody}, are repeatable.
+     */
+    public SendGridMessageAdapter addAttachment(String name, ContentBody body) {
+      this.attachments.put(name, body);
       return this;
     }
 
-    public Map getAttachments() {
+    public Map<String, ContentBody> getAttachments() {
       return this.attachments;
     }
 
@@ -277,8 +317,60 @@ public class SendGridMessageAdapter {
       return this.headers;
     }
 
-    public SMTPAPI getSMTPAPI() {
+    public SmtpApiHeader getSMTPAPI() {
       return this.smtpapi;
     }
+
+    public SendGridMessageAdapter setSMTPAPI(SmtpApiHeader smtpapi) {
+      this.smtpapi = smtpapi;
+      this.messageId = parseMessageId(smtpapi.getUniqueArg(MESSAGE_ID_ARG));
+      return this;
+    }
+
+    /**
+     * Message id of a unique arg, null unless a UUID, as when a caller set the arg on its own.
+     */
+    private static UUID parseMessageId(String messageId) {
+      if (messageId == null) {
+        return null;
+      }
+      try {
+        return UUID.fromString(messageId);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Copy a header built with the SendGrid library.
+     */
+    public SendGridMessageAdapter setSMTPAPI(SMTPAPI smtpapi) {
+      return setSMTPAPI(SmtpApiHeader.parse(smtpapi.jsonString()));
+    }
+
+    /**
+     * Name of the template the message was created from, used to tag metrics; not sent.
+     */
+    public SendGridMessageAdapter setTemplateName(String templateName) {
+      this.templateName = templateName;
+      return this;
+    }
+
+    public String getTemplateName() {
+      return this.templateName;
+    }
+
+    /**
+     * Id to track the delivery state, sent as a unique arg so that webhook events carry it.
+     */
+    public SendGridMessageAdapter setMessageId(UUID messageId) {
+      this.messageId = messageId;
+      this.smtpapi.addUniqueArg(MESSAGE_ID_ARG, messageId.toString());
+      return this;
+    }
+
+    public UUID getMessageId() {
+      return this.messageId;
+    }
     
   }
\ No newline at end of file
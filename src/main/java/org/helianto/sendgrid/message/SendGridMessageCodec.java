@@ -0,0 +1,152 @@
+package org.helianto.sendgrid.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * Binary form of a {@link SendGridMessageAdapter}, used to persist messages before dispatch.
+ *
+ * Attachments are copied into the encoded form; stream attachments are consumed while encoding.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public final class SendGridMessageCodec {
+
+	private static final byte VERSION = 1;
+
+	private SendGridMessageCodec() {
+	}
+
+	/**
+	 * Encode.
+	 *
+	 * @param email
+	 */
+	@SuppressWarnings("unchecked")
+	public static byte[] encode(SendGridMessageAdapter email) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		writeString(out, email.getFrom());
+		writeString(out, email.getFromName());
+		writeString(out, email.getReplyTo());
+		writeString(out, email.getSubject());
+		writeString(out, email.getText());
+		writeString(out, email.getHtml());
+		writeStrings(out, email.getTos());
+		writeStrings(out, email.getToNames());
+		writeStrings(out, email.getCcs());
+		writeStrings(out, email.getBccs());
+		Map<String, String> headers = email.getHeaders();
+		out.writeInt(headers.size());
+		for (Map.Entry<String, String> header: headers.entrySet()) {
+			writeString(out, header.getKey());
+			writeString(out, header.getValue());
+		}
+		writeString(out, email.getSMTPAPI().jsonString());
+		Map<String, ContentBody> attachments = email.getAttachments();
+		out.writeInt(attachments.size());
+		for (Map.Entry<String, ContentBody> attachment: attachments.entrySet()) {
+			writeString(out, attachment.getKey());
+			writeBytes(out, readFully(attachment.getValue()));
+		}
+		writeString(out, email.getTemplateName());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode.
+	 *
+	 * @param payload
+	 */
+	public static SendGridMessageAdapter decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte version = in.readByte();
+		if (version!=VERSION) {
+			throw new IOException("Unknown message encoding version "+version);
+		}
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		email.setFrom(readString(in));
+		email.setFromName(readString(in));
+		email.setReplyTo(readString(in));
+		email.setSubject(readString(in));
+		email.setText(readString(in));
+		email.setHtml(readString(in));
+		email.setTo(readStrings(in));
+		email.setToName(readStrings(in));
+		email.setCc(readStrings(in));
+		email.setBcc(readStrings(in));
+		int headerCount = in.readInt();
+		for (int i = 0; i < headerCount; i++) {
+			email.addHeader(readString(in), readString(in));
+		}
+		email.setSMTPAPI(SmtpApiHeader.parse(readString(in)));
+		int attachmentCount = in.readInt();
+		for (int i = 0; i < attachmentCount; i++) {
+			email.addAttachment(readString(in), new ByteArrayBody(readBytes(in), ContentType.DEFAULT_BINARY, null));
+		}
+		email.setTemplateName(readString(in));
+		return email;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value==null ? null : value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes==null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+		out.writeInt(values.length);
+		for (String value: values) {
+			writeString(out, value);
+		}
+	}
+
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		String[] values = new String[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = readString(in);
+		}
+		return values;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes==null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length<0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] readFully(ContentBody body) throws IOException {
+		long length = body.getContentLength();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 8192);
+		body.writeTo(out);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,520 @@
+package org.helianto.sendgrid.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The x-smtpapi header.
+ * 
+ * Replaces com.sendgrid.smtpapi.SMTPAPI, whose methods it keeps, with plain collections: emptiness
+ * is known without serializing, and the JSON is written once, straight to ASCII bytes with non
+ * ASCII characters escaped, then reused by every request body and retry until the header changes.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SmtpApiHeader {
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private List<String> to;
+	
+	private Map<String, List<String>> sub;
+	
+	private Map<String, String> uniqueArgs;
+	
+	private List<String> categories;
+	
+	private Map<String, String> sections;
+	
+	private Map<String, Map<String, Object>> filters;
+	
+	/**
+	 * Serialized header, valid while not null; bodies handed out keep their own reference, so a
+	 * new buffer is allocated on each serialization.
+	 */
+	private byte[] json;
+	
+	private int jsonLength;
+	
+	/**
+	 * Parse a header, as written by {@link #jsonString()} or by SMTPAPI.
+	 * 
+	 * @param json
+	 */
+	public static SmtpApiHeader parse(String json) {
+		return parse(new JSONObject(json));
+	}
+	
+	/**
+	 * Copy a parsed header; keys this model does not know are dropped.
+	 * 
+	 * @param header
+	 */
+	public static SmtpApiHeader parse(JSONObject header) {
+		SmtpApiHeader parsed = new SmtpApiHeader();
+		JSONArray tos = header.optJSONArray("to");
+		if (tos!=null) {
+			parsed.setTos(strings(tos));
+		}
+		JSONObject sub = header.optJSONObject("sub");
+		if (sub!=null) {
+			for (Iterator<?> keys = sub.keys(); keys.hasNext(); ) {
+				String key = (String) keys.next();
+				parsed.addSubstitutions(key, strings(sub.getJSONArray(key)));
+			}
+		}
+		JSONObject uniqueArgs = header.optJSONObject("unique_args");
+		if (uniqueArgs!=null) {
+			for (Iterator<?> keys = uniqueArgs.keys(); keys.hasNext(); ) {
+				String key = (String) keys.next();
+				parsed.addUniqueArg(key, uniqueArgs.getString(key));
+			}
+		}
+		JSONArray categories = header.optJSONArray("category");
+		if (categories!=null) {
+			for (String category: strings(categories)) {
+				parsed.addCategory(category);
+			}
+		}
+		JSONObject sections = header.optJSONObject("section");
+		if (sections!=null) {
+			for (Iterator<?> keys = sections.keys(); keys.hasNext(); ) {
+				String key = (String) keys.next();
+				parsed.addSection(key, sections.getString(key));
+			}
+		}
+		JSONObject filters = header.optJSONObject("filters");
+		if (filters!=null) {
+			for (Iterator<?> names = filters.keys(); names.hasNext(); ) {
+				String name = (String) names.next();
+				JSONObject settings = filters.getJSONObject(name).optJSONObject("settings");
+				if (settings==null) {
+					continue;
+				}
+				for (Iterator<?> keys = settings.keys(); keys.hasNext(); ) {
+					String key = (String) keys.next();
+					Object value = settings.get(key);
+					parsed.filter(name).put(key, value instanceof Number ? Integer.valueOf(((Number) value).intValue()) : value.toString());
+				}
+			}
+		}
+		return parsed;
+	}
+	
+	private static String[] strings(JSONArray array) {
+		String[] values = new String[array.length()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = array.getString(i);
+		}
+		return values;
+	}
+	
+	public SmtpApiHeader addTo(String to) {
+		if (this.to==null) {
+			this.to = new ArrayList<>();
+		}
+		this.to.add(to);
+		return changed();
+	}
+	
+	public SmtpApiHeader addTos(String[] tos) {
+		if (this.to==null) {
+			this.to = new ArrayList<>(tos.length);
+		}
+		this.to.addAll(Arrays.asList(tos));
+		return changed();
+	}
+	
+	/**
+	 * Replace the recipients, none if null.
+	 */
+	public SmtpApiHeader setTos(String[] tos) {
+		this.to = tos==null ? null : new ArrayList<>(Arrays.asList(tos));
+		return changed();
+	}
+	
+	public String[] getTos() {
+		return to==null ? new String[0] : to.toArray(new String[to.size()]);
+	}
+	
+	/**
+	 * Recipients, without copying them.
+	 */
+	public int getToCount() {
+		return to==null ? 0 : to.size();
+	}
+	
+	public SmtpApiHeader addSubstitution(String key, String value) {
+		substitution(key, 1).add(value);
+		return changed();
+	}
+	
+	public SmtpApiHeader addSubstitutions(String key, String[] values) {
+		substitution(key, values.length).addAll(Arrays.asList(values));
+		return changed();
+	}
+	
+	/**
+	 * Same value for the next count recipients, without building an array.
+	 */
+	public SmtpApiHeader addSubstitution(String key, String value, int count) {
+		List<String> values = substitution(key, count);
+		for (int i = 0; i < count; i++) {
+			values.add(value);
+		}
+		return changed();
+	}
+	
+	private List<String> substitution(String key, int size) {
+		if (sub==null) {
+			sub = new LinkedHashMap<>();
+		}
+		List<String> values = sub.get(key);
+		if (values==null) {
+			values = new ArrayList<>(size);
+			sub.put(key, values);
+		}
+		return values;
+	}
+	
+	public JSONObject getSubstitutions() {
+		JSONObject substitutions = new JSONObject();
+		if (sub!=null) {
+			for (Map.Entry<String, List<String>> entry: sub.entrySet()) {
+				substitutions.put(entry.getKey(), new JSONArray(entry.getValue()));
+			}
+		}
+		return substitutions;
+	}
+	
+	public SmtpApiHeader addUniqueArg(String key, String value) {
+		if (uniqueArgs==null) {
+			uniqueArgs = new LinkedHashMap<>();
+		}
+		uniqueArgs.put(key, value);
+		return changed();
+	}
+	
+	/**
+	 * A unique arg, null if absent.
+	 * 
+	 * @param key
+	 */
+	public String getUniqueArg(String key) {
+		return uniqueArgs==null ? null : uniqueArgs.get(key);
+	}
+	
+	public JSONObject getUniqueArgs() {
+		return uniqueArgs==null ? new JSONObject() : new JSONObject(uniqueArgs);
+	}
+	
+	public SmtpApiHeader addCategory(String category) {
+		if (categories==null) {
+			categories = new ArrayList<>();
+		}
+		categories.add(category);
+		return changed();
+	}
+	
+	public String[] getCategories() {
+		return categories==null ? new String[0] : categories.toArray(new String[categories.size()]);
+	}
+	
+	public SmtpApiHeader addSection(String key, String value) {
+		if (sections==null) {
+			sections = new LinkedHashMap<>();
+		}
+		sections.put(key, value);
+		return changed();
+	}
+	
+	public JSONObject getSections() {
+		return sections==null ? new JSONObject() : new JSONObject(sections);
+	}
+	
+	public SmtpApiHeader addFilter(String filterName, String parameterName, String parameterValue) {
+		filter(filterName).put(parameterName, parameterValue);
+		return changed();
+	}
+	
+	public SmtpApiHeader addFilter(String filterName, String parameterName, int parameterValue) {
+		filter(filterName).put(parameterName, parameterValue);
+		return changed();
+	}
+	
+	private Map<String, Object> filter(String name) {
+		if (filters==null) {
+			filters = new LinkedHashMap<>();
+		}
+		Map<String, Object> settings = filters.get(name);
+		if (settings==null) {
+			settings = new LinkedHashMap<>();
+			filters.put(name, settings);
+		}
+		return settings;
+	}
+	
+	public JSONObject getFilters() {
+		JSONObject json = new JSONObject();
+		if (filters!=null) {
+			for (Map.Entry<String, Map<String, Object>> filter: filters.entrySet()) {
+				json.put(filter.getKey(), new JSONObject().put("settings", new JSONObject(filter.getValue())));
+			}
+		}
+		return json;
+	}
+	
+	private SmtpApiHeader changed() {
+		json = null;
+		return this;
+	}
+	
+	/**
+	 * True if nothing would be sent, without serializing.
+	 */
+	public boolean isEmpty() {
+		return to==null && sub==null && uniqueArgs==null && categories==null && sections==null && filters==null;
+	}
+	
+	/**
+	 * Header JSON.
+	 */
+	public String jsonString() {
+		serialize();
+		return new String(json, 0, jsonLength, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Header JSON as a multipart body, sharing the serialized bytes.
+	 */
+	public ContentBody toContentBody() {
+		serialize();
+		return new JsonBody(json, jsonLength);
+	}
+	
+	/**
+	 * Serialized length in bytes.
+	 */
+	public int getJsonLength() {
+		serialize();
+		return jsonLength;
+	}
+	
+	private void serialize() {
+		if (json!=null) {
+			return;
+		}
+		Writer writer = new Writer(estimateLength());
+		writer.raw('{');
+		if (to!=null) {
+			writer.key("to").strings(to);
+		}
+		if (sub!=null) {
+			writer.key("sub").raw('{');
+			for (Map.Entry<String, List<String>> entry: sub.entrySet()) {
+				writer.key(entry.getKey()).strings(entry.getValue());
+			}
+			writer.close('}');
+		}
+		if (uniqueArgs!=null) {
+			writer.key("unique_args").map(uniqueArgs);
+		}
+		if (categories!=null) {
+			writer.key("category").strings(categories);
+		}
+		if (sections!=null) {
+			writer.key("section").map(sections);
+		}
+		if (filters!=null) {
+			writer.key("filters").raw('{');
+			for (Map.Entry<String, Map<String, Object>> filter: filters.entrySet()) {
+				writer.key(filter.getKey()).raw('{').key("settings").map(filter.getValue()).close('}');
+			}
+			writer.close('}');
+		}
+		writer.close('}');
+		json = writer.buffer;
+		// without the comma that follows every value
+		jsonLength = writer.length - 1;
+	}
+	
+	/**
+	 * The previous length, else a guess from the recipient and substitution counts.
+	 */
+	private int estimateLength() {
+		if (jsonLength > 0) {
+			return jsonLength + 64;
+		}
+		int values = getToCount();
+		if (sub!=null) {
+			for (List<String> value: sub.values()) {
+				values += value.size();
+			}
+		}
+		return 256 + values * 32;
+	}
+	
+	/**
+	 * Writes JSON as ASCII into a growing buffer, adding commas between members.
+	 */
+	private static final class Writer {
+		
+		byte[] buffer;
+		
+		int length;
+		
+		Writer(int capacity) {
+			this.buffer = new byte[capacity];
+		}
+		
+		Writer raw(char c) {
+			ensure(1);
+			buffer[length++] = (byte) c;
+			return this;
+		}
+		
+		/**
+		 * Close an object or array, dropping a trailing comma, and start the next value.
+		 */
+		Writer close(char c) {
+			if (buffer[length - 1]==',') {
+				length--;
+			}
+			raw(c);
+			return raw(',');
+		}
+		
+		Writer key(String key) {
+			return string(key).raw(':');
+		}
+		
+		Writer strings(List<String> values) {
+			raw('[');
+			for (String value: values) {
+				string(value).raw(',');
+			}
+			return close(']');
+		}
+		
+		Writer map(Map<String, ?> values) {
+			raw('{');
+			for (Map.Entry<String, ?> entry: values.entrySet()) {
+				key(entry.getKey());
+				Object value = entry.getValue();
+				if (value instanceof Number) {
+					ascii(value.toString());
+				}
+				else {
+					string(value==null ? null : value.toString());
+				}
+				raw(',');
+			}
+			return close('}');
+		}
+		
+		Writer string(String value) {
+			if (value==null) {
+				return ascii("null");
+			}
+			int size = value.length();
+			ensure(size + 2);
+			buffer[length++] = '"';
+			for (int i = 0; i < size; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x20 && c < 0x7f && c!='"' && c!='\\') {
+					ensure(2);
+					buffer[length++] = (byte) c;
+				}
+				else {
+					escape(c);
+				}
+			}
+			ensure(1);
+			buffer[length++] = '"';
+			return this;
+		}
+		
+		private void escape(char c) {
+			ensure(6);
+			buffer[length++] = '\\';
+			switch (c) {
+			case '"': buffer[length++] = '"'; return;
+			case '\\': buffer[length++] = '\\'; return;
+			case '\n': buffer[length++] = 'n'; return;
+			case '\r': buffer[length++] = 'r'; return;
+			case '\t': buffer[length++] = 't'; return;
+			case '\b': buffer[length++] = 'b'; return;
+			case '\f': buffer[length++] = 'f'; return;
+			default:
+				buffer[length++] = 'u';
+				buffer[length++] = (byte) HEX[(c >> 12) & 0xf];
+				buffer[length++] = (byte) HEX[(c >> 8) & 0xf];
+				buffer[length++] = (byte) HEX[(c >> 4) & 0xf];
+				buffer[length++] = (byte) HEX[c & 0xf];
+			}
+		}
+		
+		private Writer ascii(String value) {
+			ensure(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				buffer[length++] = (byte) value.charAt(i);
+			}
+			return this;
+		}
+		
+		private void ensure(int extra) {
+			if (length + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+			}
+		}
+	
+	}
+	
+	/**
+	 * Text part over the serialized bytes, with the headers httpmime gives text bodies.
+	 */
+	private static final class JsonBody extends AbstractContentBody {
+		
+		private final byte[] bytes;
+		
+		private final int length;
+		
+		JsonBody(byte[] bytes, int length) {
+			super(ContentType.DEFAULT_TEXT);
+			this.bytes = bytes;
+			this.length = length;
+		}
+		
+		public String getFilename() {
+			return null;
+		}
+		
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, 0, length);
+		}
+		
+		public String getTransferEncoding() {
+			return MIME.ENC_8BIT;
+		}
+		
+		public long getContentLength() {
+			return length;
+		}
+	
+	}
+
+}
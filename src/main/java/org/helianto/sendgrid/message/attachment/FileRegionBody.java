@@ -0,0 +1,96 @@
+package org.helianto.sendgrid.message.attachment;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Attachment streamed from a region of a file.
+ * 
+ * The file is opened on every write and transferred by the channel, so the body is repeatable 
+ * for retries, may be shared by many messages, and never holds the file content in the heap.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class FileRegionBody extends AbstractContentBody {
+	
+	private final File file;
+	
+	private final long position;
+	
+	private final long count;
+	
+	private final String filename;
+	
+	/**
+	 * Whole file constructor.
+	 * 
+	 * @param file
+	 */
+	public FileRegionBody(File file) throws FileNotFoundException {
+		this(file, ContentType.DEFAULT_BINARY, 0, file.length());
+	}
+	
+	/**
+	 * Full constructor.
+	 * 
+	 * @param file
+	 * @param contentType
+	 * @param position
+	 * @param count
+	 */
+	public FileRegionBody(File file, ContentType contentType, long position, long count) throws FileNotFoundException {
+		super(contentType);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		if (position < 0 || count < 0 || position + count > file.length()) {
+			throw new IllegalArgumentException("Region outside of file "+file);
+		}
+		this.file = file;
+		this.position = position;
+		this.count = count;
+		this.filename = file.getName();
+	}
+	
+	public String getFilename() {
+		return filename;
+	}
+	
+	public void writeTo(OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long written = 0;
+			while (written < count) {
+				long transferred = channel.transferTo(position + written, count - written, target);
+				if (transferred <= 0) {
+					throw new IOException("File "+file+" truncated while sending.");
+				}
+				written += transferred;
+			}
+		}
+		out.flush();
+	}
+	
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+	
+	public long getContentLength() {
+		return count;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+
+}
@@ -0,0 +1,78 @@
+package org.helianto.sendgrid.message.attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Attachment written from a memory mapped (or any read only) buffer.
+ * 
+ * Map a large file once with {@link #map(File, ContentType)} and attach the same body to every 
+ * message: each write reads a private view of the shared buffer, so the content is neither copied
+ * to the heap nor consumed, and retries can write it again.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class MappedRegionBody extends AbstractContentBody {
+	
+	private final ByteBuffer region;
+	
+	private final String filename;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param region written from its position to its limit
+	 * @param contentType
+	 * @param filename
+	 */
+	public MappedRegionBody(ByteBuffer region, ContentType contentType, String filename) {
+		super(contentType);
+		this.region = region.asReadOnlyBuffer();
+		this.filename = filename;
+	}
+	
+	/**
+	 * Map a whole file.
+	 * 
+	 * @param file
+	 * @param contentType
+	 */
+	public static MappedRegionBody map(File file, ContentType contentType) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteBuffer region = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new MappedRegionBody(region, contentType, file.getName());
+		}
+	}
+	
+	public String getFilename() {
+		return filename;
+	}
+	
+	public void writeTo(OutputStream out) throws IOException {
+		ByteBuffer view = region.duplicate();
+		WritableByteChannel target = Channels.newChannel(out);
+		while (view.hasRemaining()) {
+			target.write(view);
+		}
+		out.flush();
+	}
+	
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+	
+	public long getContentLength() {
+		return region.remaining();
+	}
+
+}
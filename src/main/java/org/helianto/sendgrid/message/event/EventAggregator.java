@@ -0,0 +1,170 @@
+package org.helianto.sendgrid.message.event;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Counts SendGrid events per event type, per template and per category.
+ * 
+ * Counters are {@link LongAdder}s, striped under contention, so concurrent webhook posts do not
+ * serialize on hot keys. Templates are read from the 'template' unique argument. Distinct templates 
+ * and categories are bounded; further ones are counted under {@link #OTHER}, as are event types
+ * SendGrid does not send.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class EventAggregator {
+	
+	/**
+	 * Key for templates or categories beyond the limit.
+	 */
+	public static final String OTHER = "other";
+	
+	/**
+	 * Unique argument naming the template a message was sent from.
+	 */
+	public static final String TEMPLATE_ARG = "template";
+	
+	private static final char SEPARATOR = '\u0000';
+	
+	private static final Set<String> EVENT_TYPES = new HashSet<>(Arrays.asList("processed", "dropped", "deferred"
+			, "delivered", "bounce", "open", "click", "spamreport", "unsubscribe", "group_unsubscribe", "group_resubscribe"));
+	
+	private final int maxKeys;
+	
+	private final ConcurrentMap<String, LongAdder> events = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, LongAdder> templates = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, LongAdder> categories = new ConcurrentHashMap<>();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxKeys maximum distinct template and event, or category and event, pairs
+	 */
+	public EventAggregator(int maxKeys) {
+		super();
+		this.maxKeys = maxKeys;
+	}
+	
+	/**
+	 * Default constructor, up to 10000 keys.
+	 */
+	public EventAggregator() {
+		this(10000);
+	}
+	
+	/**
+	 * Count an event.
+	 * 
+	 * @param event
+	 */
+	public void record(JSONObject event) {
+		String type = event.optString("event", null);
+		if (!EVENT_TYPES.contains(type)) {
+			type = OTHER;
+		}
+		increment(events, type, false);
+		String template = event.optString(TEMPLATE_ARG, null);
+		if (template!=null) {
+			increment(templates, template + SEPARATOR + type, true);
+		}
+		Object category = event.opt("category");
+		if (category instanceof JSONArray) {
+			JSONArray array = (JSONArray) category;
+			for (int i = 0; i < array.length(); i++) {
+				increment(categories, array.optString(i) + SEPARATOR + type, true);
+			}
+		}
+		else if (category!=null) {
+			increment(categories, category.toString() + SEPARATOR + type, true);
+		}
+	}
+	
+	private void increment(ConcurrentMap<String, LongAdder> counters, String key, boolean bounded) {
+		LongAdder counter = counters.get(key);
+		if (counter==null) {
+			if (bounded && counters.size() >= maxKeys) {
+				key = OTHER + key.substring(key.indexOf(SEPARATOR));
+			}
+			counter = counters.computeIfAbsent(key, k -> new LongAdder());
+		}
+		counter.increment();
+	}
+	
+	/**
+	 * Events of a type.
+	 * 
+	 * @param type like delivered, bounce or open
+	 */
+	public long getCount(String type) {
+		LongAdder counter = events.get(type);
+		return counter==null ? 0 : counter.sum();
+	}
+	
+	/**
+	 * Events per type.
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> counter: events.entrySet()) {
+			counts.put(counter.getKey(), counter.getValue().sum());
+		}
+		return counts;
+	}
+	
+	/**
+	 * Events per type for each template.
+	 */
+	public Map<String, Map<String, Long>> getTemplateCounts() {
+		return split(templates);
+	}
+	
+	/**
+	 * Events per type for each category.
+	 */
+	public Map<String, Map<String, Long>> getCategoryCounts() {
+		return split(categories);
+	}
+	
+	private static Map<String, Map<String, Long>> split(ConcurrentMap<String, LongAdder> counters) {
+		Map<String, Map<String, Long>> counts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> counter: counters.entrySet()) {
+			String key = counter.getKey();
+			int index = key.indexOf(SEPARATOR);
+			counts.computeIfAbsent(key.substring(0, index), k -> new TreeMap<>())
+				.put(key.substring(index + 1), counter.getValue().sum());
+		}
+		return counts;
+	}
+	
+	/**
+	 * All counts as JSON.
+	 */
+	public JSONObject toJson() {
+		return new JSONObject()
+				.put("events", new JSONObject(getCounts()))
+				.put("templates", new JSONObject(getTemplateCounts()))
+				.put("categories", new JSONObject(getCategoryCounts()));
+	}
+	
+	/**
+	 * Zero all counts.
+	 */
+	public void reset() {
+		events.clear();
+		templates.clear();
+		categories.clear();
+	}
+	
+}
@@ -0,0 +1,151 @@
+package org.helianto.sendgrid.message.event;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads a JSON array of SendGrid events one element at a time, so only the current event is
+ * held in memory whatever the size of the batch.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class EventStream {
+	
+	private EventStream() {
+	}
+	
+	/**
+	 * Pass each event to the consumer.
+	 * 
+	 * @param reader
+	 * @param consumer
+	 * @return the number of events
+	 * @throws JSONException if the content is not an array of objects
+	 */
+	public static int forEach(Reader reader, Consumer<JSONObject> consumer) {
+		JSONTokener tokener = new JSONTokener(new UnsynchronizedReader(reader));
+		if (tokener.nextClean()!='[') {
+			throw tokener.syntaxError("Expected an array of events");
+		}
+		int count = 0;
+		char next = tokener.nextClean();
+		if (next==']') {
+			return count;
+		}
+		tokener.back();
+		while (true) {
+			Object value = tokener.nextValue();
+			if (!(value instanceof JSONObject)) {
+				throw tokener.syntaxError("Expected an event object");
+			}
+			consumer.accept((JSONObject) value);
+			count++;
+			switch (tokener.nextClean()) {
+			case ',':
+				continue;
+			case ']':
+				return count;
+			default:
+				throw tokener.syntaxError("Expected ',' or ']'");
+			}
+		}
+	}
+	
+	/**
+	 * The tokener reads one character at a time; a {@link java.io.BufferedReader}, which it 
+	 * would use otherwise, takes a lock on every read.
+	 */
+	private static final class UnsynchronizedReader extends Reader {
+		
+		private final Reader in;
+		
+		private char[] buffer = new char[8192];
+		
+		private int position;
+		
+		private int limit;
+		
+		private int mark = -1;
+		
+		UnsynchronizedReader(Reader in) {
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (position==limit && !fill()) {
+				return -1;
+			}
+			return buffer[position++];
+		}
+		
+		@Override
+		public int read(char[] chars, int offset, int length) throws IOException {
+			if (length==0) {
+				return 0;
+			}
+			if (position==limit && !fill()) {
+				return -1;
+			}
+			int count = Math.min(length, limit - position);
+			System.arraycopy(buffer, position, chars, offset, count);
+			position += count;
+			return count;
+		}
+		
+		private boolean fill() throws IOException {
+			if (mark<0) {
+				position = 0;
+				limit = 0;
+			}
+			else {
+				// keep everything from the mark
+				int kept = limit - mark;
+				if (kept==buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				System.arraycopy(buffer, mark, buffer, 0, kept);
+				position -= mark;
+				limit = kept;
+				mark = 0;
+			}
+			int count = in.read(buffer, limit, buffer.length - limit);
+			if (count<=0) {
+				return false;
+			}
+			limit += count;
+			return true;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+		
+		@Override
+		public void mark(int readAheadLimit) {
+			mark = position;
+		}
+		
+		@Override
+		public void reset() throws IOException {
+			if (mark<0) {
+				throw new IOException("Reader not marked.");
+			}
+			position = mark;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+		
+	}
+	
+}
@@ -1,21 +1,46 @@
 package org.helianto.sendgrid.message.sender;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.mail.internet.MimeUtility;
 
 import org.helianto.core.domain.Identity;
 import org.helianto.sendgrid.message.SendGridMessageAdapter;
 import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.coalesce.SendCoalescer;
+import org.helianto.sendgrid.message.sender.deadline.Deadline;
+import org.helianto.sendgrid.message.sender.deadline.HedgedSender;
+import org.helianto.sendgrid.message.sender.dispatch.SendDispatcher;
+import org.helianto.sendgrid.message.sender.journal.JournalDispatcher;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.helianto.sendgrid.message.sender.lane.LaneDispatcher;
+import org.helianto.sendgrid.message.sender.outbox.MailOutbox;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+import org.helianto.sendgrid.message.status.DeliveryState;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.helianto.sendgrid.message.suppression.SuppressionList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 
+import com.sendgrid.SendGridException;
+
 /**
  * Abstract class to SendGrid e-mail senders.
  * 
@@ -31,6 +56,10 @@ public abstract class AbstractTemplateSender {
 
 	private static final Logger logger = LoggerFactory.getLogger(AbstractTemplateSender.class);
 	
+	private static final String SENDER_EMAIL_TOKEN = "${senderEmail}";
+	
+	private static final String CONFIRMATION_URI_TOKEN = "${confirmationuri}";
+	
 	/**
 	 * Endpoint of the helianto API.
 	 */
@@ -41,6 +70,21 @@ public abstract class AbstractTemplateSender {
 	 */
 	protected String templatePrefix = "helianto.sendgrid.template.";
 	
+	/**
+	 * String to prefix all template names to set their lane, when lanes or the send queue are configured.
+	 */
+	protected String lanePrefix = "helianto.sendgrid.lane.";
+	
+	/**
+	 * String to prefix all template names to set their send deadline, in milliseconds.
+	 */
+	protected String deadlinePrefix = "helianto.sendgrid.deadline.";
+	
+	/**
+	 * Maximum recipients packed in a single request by {@link #sendBatch(Collection, String, String...)}.
+	 */
+	protected String batchSizeProperty = "helianto.sendgrid.batchSize";
+	
 	/**
 	 * Uri path to static version of the template.
 	 */
@@ -54,12 +98,58 @@ public abstract class AbstractTemplateSender {
 	
 	private String confirmationUri;
 	
+	private SubstitutionPlan plan;
+	
+	/**
+	 * Template settings read once, the fields below are valid once set.
+	 */
+	private volatile boolean resolved;
+	
+	private long deadlineTimeout;
+	
+	private Lane lane;
+	
+	private boolean hedged;
+	
 	@Inject
 	private Environment env;
 	
 	@Inject
 	private SendGridSender sendGridSender;
 	
+	@Autowired(required=false)
+	private JournalDispatcher journalDispatcher;
+	
+	@Autowired(required=false)
+	private MailOutbox mailOutbox;
+	
+	@Autowired(required=false)
+	private TemplateRegistry templateRegistry;
+	
+	@Autowired(required=false)
+	private SendCoalescer sendCoalescer;
+	
+	@Autowired(required=false)
+	private SuppressionList suppressionList;
+	
+	@Autowired(required=false)
+	private DeliveryStatusStore statusStore;
+	
+	@Autowired(required=false)
+	private SendDispatcher sendDispatcher;
+	
+	@Autowired(required=false)
+	private LaneDispatcher laneDispatcher;
+	
+	@Autowired(required=false)
+	private SendQueue sendQueue;
+	
+	@Autowired(required=false)
+	private SendGridSenderPool senderPool;
+	
+	@Autowired(required=false)
+	private HedgedSender hedgedSender;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -87,6 +177,32 @@ public abstract class AbstractTemplateSender {
 		this.templateName = templateName;
 	}
 	
+	/**
+	 * Fail at startup if the registry does not know the template; warn if the account pool is
+	 * bypassed by the coalescer, lanes or send queue, which send through senders of their own.
+	 * Deadline, lane and hedging of the template are read here once.
+	 */
+	@PostConstruct
+	public void checkTemplate() {
+		resolveTemplate();
+		if (senderPool!=null && (sendCoalescer!=null || laneDispatcher!=null || sendQueue!=null)) {
+			logger.warn("Template {} is sent through the {}, bypassing the SendGrid account pool.", templateName
+					, sendCoalescer!=null ? "coalescer" : laneDispatcher!=null ? "lanes" : "send queue");
+		}
+		if (templateRegistry==null) {
+			return;
+		}
+		if (!templateRegistry.getTemplatePrefix().equals(templatePrefix)) {
+			// templates for a custom prefix are looked up in the environment
+			templateRegistry = null;
+			return;
+		}
+		if (!templateRegistry.contains(templateName)) {
+			throw new IllegalStateException("Unknown SendGrid template '"+templateName+"', please provide a valid '"
+					+templatePrefix+templateName+"' property.");
+		}
+	}
+	
 	/**
 	 * Do send e-mail.
 	 * 
@@ -102,6 +218,11 @@ public abstract class AbstractTemplateSender {
 	/**
 	 * Do send e-mail.
 	 * 
+	 * When an outbox is configured, returns once the message is inserted, to be committed with the
+	 * current transaction. When a journal is configured, returns as soon as the message is durably journaled; otherwise,
+	 * when a coalescer is configured, waits for other sends of the same template to share the request,
+	 * unless the template is hedged or has a deadline. Suppressed recipients are reported as not sent.
+	 * 
 	 * @param recipientEmail
 	 * @param recipientFirstName
 	 * @param recipientLastName
@@ -113,7 +234,330 @@ public abstract class AbstractTemplateSender {
 		
 		logger.debug("Sender {}<{}>", senderName ,  senderEmail);
 		
+		if (isSuppressed(recipientEmail)) {
+			return false;
+		}
+		String templateId = getTemplateId();
+
+		try {
+			SendGridMessageAdapter sendGridEmail = createMessage(templateId, recipientEmail, recipientFirstName, recipientLastName
+					, subject, params);
+			if (sendCoalescer!=null && journalDispatcher==null && mailOutbox==null && !isLatencyCritical()) {
+				return isSent(sendCoalescer.submit(sendGridEmail).join(), subject, templateId);
+			}
+			return dispatch(sendGridEmail, subject, templateId);
+		} catch (Exception e) {
+			sendGridSender.getMetrics().recordException(templateName, e);
+			logger.warn("Unable to send: {} ", e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Send e-mail without blocking the caller.
+	 * 
+	 * @param recipient
+	 * @param subject
+	 * @param params
+	 */
+	public CompletableFuture<Boolean> sendAsync(Identity recipient, String subject, String... params) {
+		return sendAsync(recipient.getPrincipal(), recipient.getIdentityFirstName(), recipient.getIdentityLastName()
+				,subject, params);
+	}
+	
+	/**
+	 * Send e-mail without blocking the caller.
+	 * 
+	 * The returned future completes with the same outcome {@link #send(String, String, String, String, String...)} 
+	 * would return, once SendGrid answers. Templates hedged or with a deadline are sent as that
+	 * method does, hedged sends running on the hedging threads.
+	 * 
+	 * @param recipientEmail
+	 * @param recipientFirstName
+	 * @param recipientLastName
+	 * @param subject
+	 * @param params
+	 */
+	public CompletableFuture<Boolean> sendAsync(String recipientEmail, String recipientFirstName, String recipientLastName
+			, final String subject, String... params) {
+		
+		logger.debug("Sender {}<{}>", senderName ,  senderEmail);
+		
+		if (isSuppressed(recipientEmail)) {
+			return CompletableFuture.completedFuture(false);
+		}
+		final String templateId = getTemplateId();
+		SendGridMessageAdapter sendGridEmail;
+		try {
+			sendGridEmail = createMessage(templateId, recipientEmail, recipientFirstName, recipientLastName
+					, subject, params);
+		} catch (Exception e) {
+			sendGridSender.getMetrics().recordException(templateName, e);
+			logger.warn("Unable to create message: {} ", e.getMessage());
+			return CompletableFuture.completedFuture(false);
+		}
+		if (mailOutbox!=null) {
+			try {
+				mailOutbox.add(sendGridEmail);
+				return CompletableFuture.completedFuture(true);
+			} catch (Exception e) {
+				logger.warn("Unable to add message to outbox: {} ", e.getMessage());
+				return CompletableFuture.completedFuture(false);
+			}
+		}
+		if (journalDispatcher!=null) {
+			return CompletableFuture.completedFuture(journalDispatcher.enqueue(sendGridEmail));
+		}
+		Deadline deadline = getDeadline();
+		CompletableFuture<Response> future;
+		if (isHedged()) {
+			future = hedgedSender.sendAsync(sendGridEmail, deadline);
+		}
+		else if (deadline!=null) {
+			future = sendGridSender.sendAsync(sendGridEmail, deadline);
+		}
+		else if (sendCoalescer!=null) {
+			future = sendCoalescer.submit(sendGridEmail);
+		}
+		else if (laneDispatcher!=null) {
+			future = laneDispatcher.submit(getLane(), sendGridEmail);
+		}
+		else if (sendQueue!=null) {
+			future = sendQueue.submit(getLane(), sendGridEmail);
+		}
+		else if (senderPool!=null) {
+			future = senderPool.sendAsync(getTenantKey(sendGridEmail), sendGridEmail);
+		}
+		else {
+			future = sendGridSender.sendAsync(sendGridEmail);
+		}
+		return future.handle((response, e) -> {
+			if (e!=null) {
+				logger.warn("Unable to send: {} ", e.getMessage());
+				return false;
+			}
+			return response==SendQueue.SPILLED || isSent(response, subject, templateId);
+		});
+	}
+	
+	/**
+	 * Run {@link #send(Identity, String, String...)} on the dispatcher.
+	 * 
+	 * @param recipient
+	 * @param subject
+	 * @param params
+	 */
+	public CompletableFuture<Boolean> submit(Identity recipient, String subject, String... params) {
+		return submit(recipient.getPrincipal(), recipient.getIdentityFirstName(), recipient.getIdentityLastName()
+				,subject, params);
+	}
+	
+	/**
+	 * Run {@link #send(String, String, String, String, String...)} on the dispatcher, or in the caller
+	 * thread when none is configured.
+	 * 
+	 * Unlike {@link #sendAsync(String, String, String, String, String...)}, the whole blocking send path
+	 * runs as is, message creation included, in a thread of its own.
+	 * 
+	 * @param recipientEmail
+	 * @param recipientFirstName
+	 * @param recipientLastName
+	 * @param subject
+	 * @param params
+	 * @return completes exceptionally when the dispatcher has no permit in time
+	 */
+	public CompletableFuture<Boolean> submit(final String recipientEmail, final String recipientFirstName
+			, final String recipientLastName, final String subject, final String... params) {
+		if (sendDispatcher==null) {
+			return CompletableFuture.completedFuture(send(recipientEmail, recipientFirstName, recipientLastName, subject, params));
+		}
+		return sendDispatcher.submit(() -> send(recipientEmail, recipientFirstName, recipientLastName, subject, params));
+	}
+	
+	/**
+	 * Send the same e-mail to many recipients, packing up to {@link #getBatchSize()} recipients
+	 * in each request through x-smtpapi per recipient substitutions.
+	 * 
+	 * SendGrid accepts or rejects a request as a whole, so every recipient in a chunk shares the 
+	 * chunk outcome; non addressable and suppressed recipients are reported as not sent.
+	 * 
+	 * @param recipients
+	 * @param subject
+	 * @param params
+	 * @return the outcome for each recipient, in iteration order
+	 */
+	public Map<Identity, Boolean> sendBatch(Collection<Identity> recipients, String subject, String... params) {
+		Map<Identity, Boolean> results = new LinkedHashMap<>();
+		String templateId = getTemplateId();
+		int batchSize = getBatchSize();
+		List<Identity> chunk = new ArrayList<>(Math.min(batchSize, recipients.size()));
+		for (Identity recipient: recipients) {
+			if (!recipient.isAddressable() || isSuppressed(recipient.getPrincipal())) {
+				results.put(recipient, false);
+				continue;
+			}
+			chunk.add(recipient);
+			if (chunk.size()==batchSize) {
+				sendChunk(templateId, chunk, subject, params, results);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			sendChunk(templateId, chunk, subject, params, results);
+		}
+		return results;
+	}
+	
+	private void sendChunk(String templateId, List<Identity> chunk, String subject, String[] params
+			, Map<Identity, Boolean> results) {
+		boolean sent;
+		try {
+			SendGridMessageAdapter sendGridEmail = createBatchMessage(templateId, chunk, subject, params);
+			sent = dispatch(sendGridEmail, subject, templateId);
+		} catch (Exception e) {
+			sendGridSender.getMetrics().recordException(templateName, e);
+			logger.warn("Unable to send batch of {}: {} ", chunk.size(), e.getMessage());
+			sent = false;
+		}
+		for (Identity recipient: chunk) {
+			results.put(recipient, sent);
+		}
+	}
+	
+	/**
+	 * True if a suppression list is configured and holds the address.
+	 * 
+	 * @param recipientEmail
+	 */
+	protected boolean isSuppressed(String recipientEmail) {
+		if (suppressionList!=null && suppressionList.contains(recipientEmail)) {
+			logger.debug("Suppressed e-mail to {}.", recipientEmail);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Add the message to the outbox or journal if one is configured, otherwise send it, through the
+	 * lanes, the send queue or the sender pool if configured; templates hedged or with a deadline
+	 * are sent directly, as they are latency critical.
+	 */
+	private boolean dispatch(SendGridMessageAdapter sendGridEmail, String subject, String templateId) throws SendGridException, IOException {
+		if (mailOutbox!=null) {
+			mailOutbox.add(sendGridEmail);
+			return true;
+		}
+		if (journalDispatcher!=null) {
+			return journalDispatcher.enqueue(sendGridEmail);
+		}
+		Deadline deadline = getDeadline();
+		Response response;
+		if (isHedged()) {
+			response = hedgedSender.send(sendGridEmail, deadline);
+		}
+		else if (deadline!=null) {
+			response = sendGridSender.send(sendGridEmail, deadline);
+		}
+		else if (laneDispatcher!=null) {
+			response = laneDispatcher.submit(getLane(), sendGridEmail).join();
+		}
+		else if (sendQueue!=null) {
+			response = sendQueue.submit(getLane(), sendGridEmail).join();
+		}
+		else if (senderPool!=null) {
+			response = senderPool.send(getTenantKey(sendGridEmail), sendGridEmail);
+		}
+		else {
+			response = sendGridSender.send(sendGridEmail);
+		}
+		return response==SendQueue.SPILLED || isSent(response, subject, templateId);
+	}
+	
+	/**
+	 * True if sends of this template are hedged.
+	 */
+	private boolean isHedged() {
+		resolveTemplate();
+		return hedged;
+	}
+	
+	/**
+	 * True if this template is hedged or has a deadline, so it is never held back to share a request.
+	 */
+	private boolean isLatencyCritical() {
+		resolveTemplate();
+		return hedged || deadlineTimeout >= 0;
+	}
+	
+	/**
+	 * Tenant whose account sends the message when a sender pool is configured, the first recipient
+	 * by default, so that each recipient keeps its account while the traffic spreads over all of
+	 * them; override to route by entity, or return null for weighted round robin.
+	 * 
+	 * @param sendGridEmail the message, x-smtpapi recipients included
+	 */
+	protected String getTenantKey(SendGridMessageAdapter sendGridEmail) {
+		if (sendGridEmail.getSMTPAPI().getToCount() > 0) {
+			return sendGridEmail.getSMTPAPI().getTos()[0];
+		}
+		String[] tos = sendGridEmail.getTos();
+		return tos.length > 0 ? tos[0] : null;
+	}
+	
+	/**
+	 * Deadline of a send of this template, from the deadline property, or null.
+	 */
+	protected Deadline getDeadline() {
+		resolveTemplate();
+		return deadlineTimeout < 0 ? null : Deadline.after(deadlineTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Lane of this template, from the lane property or else the default lane, bulk without lanes.
+	 */
+	protected Lane getLane() {
+		resolveTemplate();
+		return lane;
+	}
+	
+	/**
+	 * Read deadline, lane and hedging of this template, once instead of on every send.
+	 */
+	private void resolveTemplate() {
+		if (resolved) {
+			return;
+		}
+		Long deadline = env.getProperty(deadlinePrefix+templateName, Long.class);
+		deadlineTimeout = deadline==null ? -1 : Math.max(0, deadline);
+		Lane defaultLane = laneDispatcher!=null ? laneDispatcher.getDefaultLane() : Lane.BULK;
+		String laneName = env.getProperty(lanePrefix+templateName);
+		lane = defaultLane;
+		if (laneName!=null && !laneName.trim().isEmpty()) {
+			try {
+				lane = Lane.valueOf(laneName.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				logger.warn("Unknown lane {} for template {}, using {}.", laneName, templateName, defaultLane);
+			}
+		}
+		hedged = hedgedSender!=null && hedgedSender.isHedged(templateName);
+		// the fields above are published by this write
+		resolved = true;
+	}
+	
+	/**
+	 * Create the SendGrid message.
+	 * 
+	 * @param templateId
+	 * @param recipientEmail
+	 * @param recipientFirstName
+	 * @param recipientLastName
+	 * @param subject
+	 * @param params
+	 */
+	protected SendGridMessageAdapter createMessage(String templateId, String recipientEmail, String recipientFirstName
+			, String recipientLastName, String subject, String... params) throws UnsupportedEncodingException {
 		SendGridMessageAdapter sendGridEmail = new SendGridMessageAdapter(); 
+		sendGridEmail.setTemplateName(templateName);
 		Map<String, String> paramMap = decodeParams(params);
 		sendGridEmail.setSubject(subject);
 		sendGridEmail.setHtml(getBody(paramMap));
@@ -124,36 +568,111 @@ public abstract class AbstractTemplateSender {
 		sendGridEmail.setFromName(senderName);
 		sendGridEmail.setText(subject);
 
-		String templateId = getTemplateId();
+		if (templateId!=null) {
+			applyTemplate(sendGridEmail, templateId, subject, paramMap
+					, new String[] { recipientEmail }, new String[] { recipientFirstName }, new String[] { recipientLastName });
+		}
+		track(sendGridEmail);
+		return sendGridEmail;
+	}
+	
+	/**
+	 * Create a single SendGrid message addressed to many recipients.
+	 * 
+	 * Recipients go to the x-smtpapi header, where SendGrid expands one e-mail per address, while
+	 * the mandatory form recipient is the sender itself.
+	 * 
+	 * @param templateId
+	 * @param recipients
+	 * @param subject
+	 * @param params
+	 */
+	protected SendGridMessageAdapter createBatchMessage(String templateId, List<Identity> recipients
+			, String subject, String... params) throws UnsupportedEncodingException {
+		int size = recipients.size();
+		String[] recipientEmails = new String[size];
+		String[] recipientFirstNames = new String[size];
+		String[] recipientLastNames = new String[size];
+		for (int i = 0; i < size; i++) {
+			Identity recipient = recipients.get(i);
+			recipientEmails[i] = recipient.getPrincipal();
+			recipientFirstNames[i] = recipient.getIdentityFirstName();
+			recipientLastNames[i] = recipient.getIdentityLastName();
+		}
+		
+		SendGridMessageAdapter sendGridEmail = new SendGridMessageAdapter(); 
+		sendGridEmail.setTemplateName(templateName);
+		Map<String, String> paramMap = decodeParams(params);
+		sendGridEmail.setSubject(subject);
+		sendGridEmail.setHtml(getBody(paramMap));
+		sendGridEmail.addTo(senderEmail);
+		sendGridEmail.setSMTPAPITos(recipientEmails);
+		sendGridEmail.setFrom(senderEmail);
+		sendGridEmail.setFromName(senderName);
+		sendGridEmail.setText(subject);
 
-		try {
-          	if (templateId!=null) {
-        		sendGridEmail.setSubject(new String(MimeUtility.encodeText(subject)));
-        		sendGridEmail.setText(new String(MimeUtility.encodeText(subject)));
-          		sendGridEmail.addSubstitution("${recipientEmail}", new String[] { new String(MimeUtility.encodeText(recipientEmail)) } );
-          		sendGridEmail.addSubstitution("${recipientFirstName}", new String[] { new String(MimeUtility.encodeText(recipientFirstName)) } );
-          		sendGridEmail.addSubstitution("${recipientLastName}", new String[] { new String(MimeUtility.encodeText(recipientLastName)) } );
-          		for (String key: getDefaultSubstitutions(paramMap).keySet()) {
-          			sendGridEmail.addSubstitution(key, new String[] { new String(getDefaultSubstitutions(paramMap).get(key).getBytes()) } );
-          		}
-          		sendGridEmail.getSMTPAPI().addFilter("templates", "enabled", 1);
-          		sendGridEmail.addFilter("templates", "template_id", templateId);
-          	}
-			Response response = sendGridSender.send(sendGridEmail);
-			
-			int responseCode = response.getCode();
-			if (responseCode!=200) {
-				logger.warn("E-mail failed ({}) with message: {} ", responseCode, response.getMessage());
-				return false;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.debug("Unable to send: {} ", e.getMessage());
+		if (templateId!=null) {
+			applyTemplate(sendGridEmail, templateId, subject, paramMap
+					, recipientEmails, recipientFirstNames, recipientLastNames);
+		}
+		track(sendGridEmail);
+		return sendGridEmail;
+	}
+	
+	/**
+	 * Assign a message id and record the message as queued, when a status store is available.
+	 * 
+	 * @param sendGridEmail
+	 */
+	protected void track(SendGridMessageAdapter sendGridEmail) {
+		if (statusStore!=null) {
+			sendGridEmail.setMessageId(DeliveryStatusStore.newMessageId());
+			statusStore.update(sendGridEmail.getMessageId(), DeliveryState.QUEUED);
+			logger.debug("Message {} queued with template {}.", sendGridEmail.getMessageId(), templateName);
+		}
+	}
+	
+	/**
+	 * Add template filters and substitutions through the template plan; recipient arrays are parallel,
+	 * one value per recipient.
+	 */
+	private void applyTemplate(SendGridMessageAdapter sendGridEmail, String templateId, String subject
+			, Map<String, String> paramMap
+			, String[] recipientEmails, String[] recipientFirstNames, String[] recipientLastNames) throws UnsupportedEncodingException {
+		String encodedSubject = MimeUtility.encodeText(subject);
+		sendGridEmail.setSubject(encodedSubject);
+		sendGridEmail.setText(encodedSubject);
+		getPlan().apply(sendGridEmail.getSMTPAPI(), templateId, getDefaultSubstitutions(paramMap)
+				, recipientEmails, recipientFirstNames, recipientLastNames);
+	}
+	
+	/**
+	 * Substitution plan of the template, shared through the registry when there is one.
+	 */
+	protected final SubstitutionPlan getPlan() {
+		SubstitutionPlan plan = this.plan;
+		if (plan==null) {
+			plan = templateRegistry!=null ? templateRegistry.getPlan(templateName) : new SubstitutionPlan(templateName);
+			this.plan = plan;
+		}
+		return plan;
+	}
+	
+	/**
+	 * True if SendGrid accepted the message.
+	 * 
+	 * @param response
+	 * @param subject
+	 * @param templateId
+	 */
+	protected boolean isSent(Response response, String subject, String templateId) {
+		int responseCode = response.getCode();
+		if (responseCode!=200) {
+			logger.warn("E-mail failed ({}) with message: {} ", responseCode, response.getMessage());
 			return false;
 		}
-    	
-      	logger.debug("Sent e-mail with subject {} and template {}.", subject, templateId);
-      	return true;
+		logger.debug("Sent e-mail with subject {} and template {}.", subject, templateId);
+		return true;
 	}
 	
 	/**
@@ -163,10 +682,21 @@ public abstract class AbstractTemplateSender {
 		return env.getProperty(apiUrlProperty);
 	}
 	
+	/**
+	 * Recipients per batch request, 1000 unless set by property.
+	 */
+	protected int getBatchSize() {
+		return Math.max(1, env.getProperty(batchSizeProperty, Integer.class, 1000));
+	}
+	
 	/**
 	 * Template name prepended with prefix.
 	 */
 	protected final String getTemplateId() {
+		if (templateRegistry!=null) {
+			String templateId = templateRegistry.getTemplateId(templateName);
+			return templateId!=null ? templateId : "invalid-template";
+		}
 		return env.getProperty(templatePrefix+templateName, "invalid-template");
 	}
 	
@@ -189,16 +719,17 @@ public abstract class AbstractTemplateSender {
 	 * @param params
 	 */
 	protected Map<String, String> getDefaultSubstitutions(Map<String, String> paramMap) {
-		Map<String, String> substitutions = new HashMap<>();
-		if (paramMap.containsKey("confirmationToken")) {
-			String internalConfirmationUri = getConfirmationUri(paramMap.get("confirmationToken"));
+		Map<String, String> substitutions = new HashMap<>(paramMap.size() * 2 + 4);
+		String confirmationToken = paramMap.get("confirmationToken");
+		if (confirmationToken!=null) {
+			String internalConfirmationUri = getConfirmationUri(confirmationToken);
 			if (internalConfirmationUri!=null && !internalConfirmationUri.isEmpty()) {
-				substitutions.put("${confirmationuri}", internalConfirmationUri);
+				substitutions.put(CONFIRMATION_URI_TOKEN, internalConfirmationUri);
 			}
 		}
-		substitutions.put("${senderEmail}", senderEmail);
-		for (String param: paramMap.keySet()) {
-			substitutions.put("${"+param+"}", paramMap.get(param));
+		substitutions.put(SENDER_EMAIL_TOKEN, senderEmail);
+		for (Map.Entry<String, String> param: paramMap.entrySet()) {
+			substitutions.put(getPlan().token(param.getKey()), param.getValue());
 		}
 		return substitutions;
 	}
@@ -212,7 +743,6 @@ public abstract class AbstractTemplateSender {
 		Map<String, String> paramMap = new HashMap<>();
 		for (int i = 0; i < params.length; i=i+2) {
 			paramMap.put(params[i], params[i+1]);
-			System.err.println(params[i] + " = " + params[i+1]);
 		} 
 		return paramMap;
 	}
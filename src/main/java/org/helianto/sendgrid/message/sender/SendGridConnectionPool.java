@@ -0,0 +1,264 @@
+package org.helianto.sendgrid.message.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pooled, keep-alive HTTP transport to the SendGrid API.
+ *
+ * Limits and timeouts must be set before the first call to {@link #createClient(String)},
+ * which also starts a daemon thread to evict expired and idle connections.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class SendGridConnectionPool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SendGridConnectionPool.class);
+
+	private final int maxTotal;
+
+	private final int maxPerRoute;
+
+	private int connectTimeout = 5000;
+
+	private int readTimeout = 30000;
+
+	private int leaseTimeout = 5000;
+
+	private long idleTimeout = 30000;
+
+	private long timeToLive = 300000;
+
+	private long keepAlive = 30000;
+
+	private long evictionInterval = 5000;
+
+	private volatile SendGridMetrics metrics = NoOpSendGridMetrics.INSTANCE;
+	
+	private PoolingHttpClientConnectionManager connectionManager;
+
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxTotal
+	 * @param maxPerRoute
+	 */
+	public SendGridConnectionPool(int maxTotal, int maxPerRoute) {
+		super();
+		if (maxTotal < 1 || maxPerRoute < 1) {
+			throw new IllegalArgumentException("Connection pool limits must be positive.");
+		}
+		this.maxTotal = maxTotal;
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	/**
+	 * Time to establish a connection, in milliseconds.
+	 */
+	public SendGridConnectionPool setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Maximum inactivity while waiting for data (socket timeout), in milliseconds.
+	 */
+	public SendGridConnectionPool setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Time to wait for a connection from the pool, in milliseconds.
+	 */
+	public SendGridConnectionPool setLeaseTimeout(int leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+		return this;
+	}
+
+	/**
+	 * Connections idle longer than this are closed by the evictor, in milliseconds.
+	 */
+	public SendGridConnectionPool setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	/**
+	 * Absolute connection lifetime, in milliseconds.
+	 */
+	public SendGridConnectionPool setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+		return this;
+	}
+
+	/**
+	 * Keep-alive used when the server does not send one, and upper bound otherwise, in milliseconds.
+	 */
+	public SendGridConnectionPool setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * Interval between eviction runs, in milliseconds.
+	 */
+	public SendGridConnectionPool setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+		return this;
+	}
+
+	/**
+	 * Metrics to record connection lease time.
+	 */
+	public SendGridConnectionPool setMetrics(SendGridMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+	
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	/**
+	 * Request config with connect, read and lease timeouts.
+	 */
+	public RequestConfig getRequestConfig() {
+		return RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.setConnectionRequestTimeout(leaseTimeout)
+				.build();
+	}
+
+	/**
+	 * Honors the server Keep-Alive header, bounded by {@link #setKeepAlive(long)}.
+	 */
+	public ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+		return new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				if (duration > 0 && duration < keepAlive) {
+					return duration;
+				}
+				return keepAlive;
+			}
+		};
+	}
+
+	/**
+	 * Create a client sharing this pool.
+	 *
+	 * @param userAgent
+	 */
+	public synchronized CloseableHttpClient createClient(String userAgent) {
+		if (connectionManager==null) {
+			connectionManager = new PoolingHttpClientConnectionManager(timeToLive, TimeUnit.MILLISECONDS) {
+				@Override
+				public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+					return new TimedConnectionRequest(super.requestConnection(route, state));
+				}
+			};
+			connectionManager.setMaxTotal(maxTotal);
+			connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+			startEvictor();
+			logger.info("SendGrid connection pool with max {} total and {} per route.", maxTotal, maxPerRoute);
+		}
+		return HttpClientBuilder.create()
+				.setUserAgent(userAgent)
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(getRequestConfig())
+				.setKeepAliveStrategy(getKeepAliveStrategy())
+				.build();
+	}
+
+	private void startEvictor() {
+		evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sendgrid-connection-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final PoolingHttpClientConnectionManager manager = connectionManager;
+		evictor.scheduleWithFixedDelay(() -> {
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Leased, pending and available connections, or null if no client was created yet.
+	 */
+	public synchronized PoolStats getStats() {
+		if (connectionManager==null) {
+			return null;
+		}
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Records the time spent waiting for a lease.
+	 */
+	private final class TimedConnectionRequest implements ConnectionRequest {
+		
+		private final ConnectionRequest request;
+		
+		TimedConnectionRequest(ConnectionRequest request) {
+			this.request = request;
+		}
+		
+		public HttpClientConnection get(long timeout, TimeUnit unit) 
+				throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+			long start = System.nanoTime();
+			try {
+				return request.get(timeout, unit);
+			} finally {
+				metrics.recordPoolWait(System.nanoTime() - start);
+			}
+		}
+		
+		public boolean cancel() {
+			return request.cancel();
+		}
+		
+	}
+	
+	public synchronized void close() throws IOException {
+		if (evictor!=null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		if (connectionManager!=null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+	}
+
+}
@@ -1,21 +1,48 @@
 package org.helianto.sendgrid.message.sender;
 
 import org.helianto.sendgrid.message.SendGridMessageAdapter;
-import org.json.JSONObject;
+import org.helianto.sendgrid.message.sender.deadline.Deadline;
+import org.helianto.sendgrid.message.sender.form.BufferPool;
+import org.helianto.sendgrid.message.sender.form.MultipartFormEncoder;
+import org.helianto.sendgrid.message.sender.form.PooledFormEntity;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.helianto.sendgrid.message.sender.retry.CircuitBreaker;
+import org.helianto.sendgrid.message.sender.retry.RetryPolicy;
+import org.helianto.sendgrid.message.status.DeliveryState;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpEntity;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
 
 import com.sendgrid.SendGridException;
 
@@ -26,24 +53,22 @@ import com.sendgrid.SendGridException;
  * 
  * @author mauriciofernandesdecastro
  */
-public class SendGridSender {
+public class SendGridSender implements Closeable {
 	
   private static final String VERSION           = "1.2.0";
   private static final String USER_AGENT        = "sendgrid/" + VERSION + ";java";
 
-  private static final String PARAM_TO          = "to[%d]";
-  private static final String PARAM_TONAME      = "toname[%d]";
-  private static final String PARAM_CC          = "cc[%d]";
-  private static final String PARAM_FROM        = "from";
-  private static final String PARAM_FROMNAME    = "fromname";
-  private static final String PARAM_REPLYTO     = "replyto";
-  private static final String PARAM_BCC         = "bcc[%d]";
-  private static final String PARAM_SUBJECT     = "subject";
-  private static final String PARAM_HTML        = "html";
-  private static final String PARAM_TEXT        = "text";
-  private static final String PARAM_FILES       = "files[%s]";
-  private static final String PARAM_XSMTPAPI    = "x-smtpapi";
-  private static final String PARAM_HEADERS     = "headers";
+  private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+  /**
+   * Account tag of the sender metrics unless set.
+   */
+  public static final String DEFAULT_ACCOUNT = "default";
+
+  /**
+   * Lane tag of the sender metrics unless set.
+   */
+  public static final String NO_LANE = "none";
 
   private String username;
   private String password;
@@ -51,6 +76,20 @@ public class SendGridSender {
   private String port;
   private String endpoint;
   private CloseableHttpClient client;
+  private CloseableHttpAsyncClient asyncClient;
+  private SendGridConnectionPool connectionPool;
+  private int maxInFlight;
+  private Semaphore inFlight;
+  private RetryPolicy retryPolicy = RetryPolicy.NONE;
+  private CircuitBreaker circuitBreaker;
+  private ScheduledExecutorService retryScheduler;
+  private RateLimiter rateLimiter;
+  private long rateLimitTimeout;
+  private SendGridMetrics metrics = NoOpSendGridMetrics.INSTANCE;
+  private DeliveryStatusStore statusStore;
+  private String account = DEFAULT_ACCOUNT;
+  private String lane = NO_LANE;
+  private MultipartFormEncoder formEncoder = new MultipartFormEncoder(new BufferPool(32, 8192, 1024 * 1024));
 
   public SendGridSender(String username, String password) {
     this.username = username;
@@ -58,6 +97,7 @@ public class SendGridSender {
     this.url = "https://api.sendgrid.com";
     this.endpoint = "/api/mail.send.json";
     this.client = HttpClientBuilder.create().setUserAgent(USER_AGENT).build();
+    this.setMaxInFlight(DEFAULT_MAX_IN_FLIGHT);
   }
 
   public SendGridSender setUrl(String url) {
@@ -79,82 +119,603 @@ public class SendGridSender {
     return this;
   }
 
-  public HttpEntity buildBody(SendGridMessageAdapter email) {
-    MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+  /**
+   * Replace the default client with one backed by the given pool; the async client, if created later,
+   * shares its timeouts and keep-alive strategy.
+   */
+  public SendGridSender setConnectionPool(SendGridConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+    connectionPool.setMetrics(this.metrics);
+    try {
+      this.client.close();
+    } catch (IOException e) {
+      // the replaced default client never leased a connection
+    }
+    this.client = connectionPool.createClient(USER_AGENT);
+    return this;
+  }
+
+  public SendGridSender setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+    return this;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return this.retryPolicy;
+  }
 
-    builder.addTextBody("api_user", this.username);
-    builder.addTextBody("api_key", this.password);
+  /**
+   * Circuit breaker, none if null.
+   */
+  public SendGridSender setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+    return this;
+  }
 
-    String[] tos = email.getTos();
-    String[] tonames = email.getToNames();
-    String[] ccs = email.getCcs();
-    String[] bccs = email.getBccs();
+  public CircuitBreaker getCircuitBreaker() {
+    return this.circuitBreaker;
+  }
 
-    for (int i = 0, len = tos.length; i < len; i++)
-      builder.addTextBody(String.format(PARAM_TO, i), tos[i]);
-    for (int i = 0, len = tonames.length; i < len; i++)
-      builder.addTextBody(String.format(PARAM_TONAME, i), tonames[i], ContentType.create("text/plain", "UTF-8"));
-    for (int i = 0, len = ccs.length; i < len; i++)
-      builder.addTextBody(String.format(PARAM_CC, i), ccs[i]);
-    for (int i = 0, len = bccs.length; i < len; i++)
-      builder.addTextBody(String.format(PARAM_BCC, i), bccs[i]);
-    // Files
-    if (email.getAttachments().size() > 0) {
-      Iterator it = email.getAttachments().entrySet().iterator();
-      while (it.hasNext()) {
-        Map.Entry entry = (Map.Entry) it.next();
-        builder.addBinaryBody(String.format(PARAM_FILES, entry.getKey()), (InputStream) entry.getValue());
-      }
+  /**
+   * Rate limiter applied to every attempt, none if null.
+   * 
+   * @param rateLimiter
+   * @param timeout maximum wait for a permit in milliseconds, zero to reject at once
+   */
+  public SendGridSender setRateLimiter(RateLimiter rateLimiter, long timeout) {
+    this.rateLimiter = rateLimiter;
+    this.rateLimitTimeout = timeout;
+    return this;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return this.rateLimiter;
+  }
+
+  /**
+   * Account and lane tagging the sender gauges, so that senders of several accounts or lanes
+   * publish apart; set before the metrics.
+   * 
+   * @param account {@link #DEFAULT_ACCOUNT} if null
+   * @param lane {@link #NO_LANE} if null
+   */
+  public SendGridSender setMetricTags(String account, String lane) {
+    this.account = account != null ? account : DEFAULT_ACCOUNT;
+    this.lane = lane != null ? lane : NO_LANE;
+    return this;
+  }
+
+  public String getAccount() {
+    return this.account;
+  }
+
+  public String getLane() {
+    return this.lane;
+  }
+
+  /**
+   * Metrics recorded for every request; binds the sender gauges, so set it after the pool, 
+   * circuit breaker, rate limiter and metric tags.
+   */
+  public SendGridSender setMetrics(SendGridMetrics metrics) {
+    this.metrics = metrics;
+    if (this.connectionPool != null) {
+      this.connectionPool.setMetrics(metrics);
     }
+    metrics.bind(this);
+    return this;
+  }
+
+  public SendGridMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Store updated with the outcome of messages carrying an id, none if null.
+   */
+  public SendGridSender setStatusStore(DeliveryStatusStore statusStore) {
+    this.statusStore = statusStore;
+    return this;
+  }
 
-    if (email.getHeaders().size() > 0)
-      builder.addTextBody(PARAM_HEADERS, new JSONObject(email.getHeaders()).toString());
+  public DeliveryStatusStore getStatusStore() {
+    return this.statusStore;
+  }
 
-    if (email.getFrom() != null && !email.getFrom().isEmpty())
-      builder.addTextBody(PARAM_FROM, email.getFrom());
+  /**
+   * Arrays request bodies are encoded into; by default 32 arrays of up to 1 MB are kept.
+   */
+  public SendGridSender setBufferPool(BufferPool bufferPool) {
+    this.formEncoder = new MultipartFormEncoder(bufferPool);
+    return this;
+  }
 
-    if (email.getFromName() != null && !email.getFromName().isEmpty())
-      builder.addTextBody(PARAM_FROMNAME, email.getFromName(), ContentType.create("text/plain", "UTF-8"));
+  public BufferPool getBufferPool() {
+    return this.formEncoder.getPool();
+  }
 
-    if (email.getReplyTo() != null && !email.getReplyTo().isEmpty())
-      builder.addTextBody(PARAM_REPLYTO, email.getReplyTo());
+  /**
+   * Leased, pending and available connections, or null without a connection pool.
+   */
+  public PoolStats getPoolStats() {
+    return this.connectionPool == null ? null : this.connectionPool.getStats();
+  }
 
-    if (email.getSubject() != null && !email.getSubject().isEmpty())
-      builder.addTextBody(PARAM_SUBJECT, email.getSubject(), ContentType.create("text/plain", "UTF-8"));
+  /**
+   * Async client, started on first use if not supplied.
+   */
+  public SendGridSender setAsyncClient(CloseableHttpAsyncClient asyncClient) {
+    this.asyncClient = asyncClient;
+    return this;
+  }
+
+  /**
+   * Maximum number of requests {@link #sendAsync(SendGridMessageAdapter)} keeps in flight;
+   * further requests are rejected until one completes.
+   */
+  public SendGridSender setMaxInFlight(int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("Max in flight requests must be positive.");
+    }
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+    return this;
+  }
 
-    if (email.getHtml() != null && !email.getHtml().isEmpty())
-      builder.addTextBody(PARAM_HTML, email.getHtml(), ContentType.create("text/plain", "UTF-8"));
+  public int getMaxInFlight() {
+    return this.maxInFlight;
+  }
 
-    if (email.getText() != null && !email.getText().isEmpty())
-      builder.addTextBody(PARAM_TEXT, email.getText(), ContentType.create("text/plain", "UTF-8"));
+  /**
+   * Requests currently in flight through the async client.
+   */
+  public int getInFlight() {
+    return this.maxInFlight - this.inFlight.availablePermits();
+  }
 
-    if (!email.getSMTPAPI().jsonString().equals("{}"))
-      builder.addTextBody(PARAM_XSMTPAPI, email.getSMTPAPI().jsonString());
-    
-    return builder.build();
+  /**
+   * Encode the request body into a pooled array; release it once the request is over.
+   */
+  public PooledFormEntity buildBody(SendGridMessageAdapter email) {
+    return this.formEncoder.encode(this.username, this.password, email);
   }
 
+  /**
+   * Send, retrying according to the retry policy and failing fast while the circuit breaker is open;
+   * a message with a streamed attachment is sent once, its stream being drained by the first attempt.
+   */
   public SendGridSender.Response send(SendGridMessageAdapter email) throws SendGridException {
-    HttpPost httppost = new HttpPost(this.url + this.endpoint);
-    httppost.setEntity(this.buildBody(email));
+    return this.send(email, null);
+  }
+
+  /**
+   * Send within a deadline: connection lease, connect and each read are bounded by the time left,
+   * the request is aborted when it runs out, and no retry starts that would not fit.
+   * 
+   * @param email
+   * @param deadline none if null
+   * @return 504 once the deadline expires; the outcome is not recorded if the deadline was cancelled
+   */
+  public SendGridSender.Response send(SendGridMessageAdapter email, Deadline deadline) throws SendGridException {
+    SendGridSender.Response response = this.sendWithRetries(email, deadline);
+    if (deadline == null || !deadline.isCancelled()) {
+      this.recordStatus(email, response);
+    }
+    return response;
+  }
+
+  private SendGridSender.Response sendWithRetries(SendGridMessageAdapter email, Deadline deadline) {
+    // built once and resent on retries; a streamed attachment is read once, so its body is not retried
+    PooledFormEntity body = this.buildBody(email);
+    try {
+      long delay = 0;
+      for (int attempt = 1; ; attempt++) {
+        if (deadline != null && deadline.isExpired()) {
+          return deadlineExceeded();
+        }
+        if (this.circuitBreaker != null && !this.circuitBreaker.allowRequest()) {
+          return new SendGridSender.Response(503, "SendGrid circuit breaker open");
+        }
+        if (this.rateLimiter != null && !this.acquirePermit(deadline)) {
+          return new SendGridSender.Response(429, "SendGrid local rate limit exceeded");
+        }
+        SendGridSender.Response response = this.execute(email, body, deadline);
+        if (deadline != null && deadline.isCancelled()) {
+          // the caller took another answer, SendGrid is not to blame
+          return response;
+        }
+        if (!body.isRepeatable()) {
+          return response;
+        }
+        delay = this.nextRetryDelay(attempt, delay, response);
+        if (delay < 0 || deadline != null && delay >= deadline.remaining(TimeUnit.MILLISECONDS)) {
+          return response;
+        }
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return response;
+        }
+      }
+    } finally {
+      body.release();
+    }
+  }
+
+  private void recordStatus(SendGridMessageAdapter email, SendGridSender.Response response) {
+    if (this.statusStore != null && email.getMessageId() != null) {
+      this.statusStore.update(email.getMessageId()
+          , response != null && response.getStatus() ? DeliveryState.SENT : DeliveryState.FAILED);
+    }
+  }
+
+  private boolean acquirePermit(Deadline deadline) {
+    long timeout = this.rateLimitTimeout;
+    if (deadline != null) {
+      timeout = Math.min(timeout, Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)));
+    }
+    try {
+      return this.rateLimiter.acquire(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private SendGridSender.Response execute(SendGridMessageAdapter email, HttpEntity body, Deadline deadline) {
+    final HttpPost httppost = new HttpPost(this.url + this.endpoint);
+    httppost.setEntity(body);
+    ScheduledFuture<?> abort = null;
+    if (deadline != null) {
+      httppost.setConfig(this.boundedConfig(deadline));
+      // timeouts bound each wait, the abort bounds the whole exchange, writing the body included
+      deadline.setAbortAction(httppost::abort);
+      abort = this.getRetryScheduler().schedule(httppost::abort, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+    long start = System.nanoTime();
     try {
       HttpResponse res = this.client.execute(httppost);
-      return new SendGridSender.Response(res.getStatusLine().getStatusCode(), EntityUtils.toString(res.getEntity()));
+      SendGridSender.Response response = toResponse(res);
+      this.recordRequest(email, body, response.getCode(), start);
+      return response;
     } catch (IOException e) {
+      this.metrics.recordException(email.getTemplateName(), e);
+      if (deadline != null && deadline.isExpired()) {
+        return deadlineExceeded();
+      }
       return new SendGridSender.Response(500, "Problem connecting to SendGrid");
+    } finally {
+      if (deadline != null) {
+        abort.cancel(false);
+        deadline.setAbortAction(null);
+      }
+    }
+  }
+
+  /**
+   * Default timeouts, each cut to the time left.
+   */
+  private RequestConfig boundedConfig(Deadline deadline) {
+    RequestConfig config = this.connectionPool != null ? this.connectionPool.getRequestConfig() : RequestConfig.DEFAULT;
+    int remaining = deadline.remainingTimeout();
+    return RequestConfig.copy(config)
+        .setConnectionRequestTimeout(bound(config.getConnectionRequestTimeout(), remaining))
+        .setConnectTimeout(bound(config.getConnectTimeout(), remaining))
+        .setSocketTimeout(bound(config.getSocketTimeout(), remaining))
+        .build();
+  }
+
+  private static int bound(int timeout, int remaining) {
+    return timeout > 0 ? Math.min(timeout, remaining) : remaining;
+  }
+
+  private static SendGridSender.Response deadlineExceeded() {
+    return new SendGridSender.Response(504, "SendGrid deadline exceeded");
+  }
+
+  private void recordRequest(SendGridMessageAdapter email, HttpEntity body, int code, long start) {
+    this.metrics.recordSend(email.getTemplateName(), code, System.nanoTime() - start);
+    if (body.getContentLength() >= 0) {
+      this.metrics.recordBodySize(body.getContentLength());
+    }
+    this.metrics.recordRecipients(email.getRecipientCount());
+  }
+
+  /**
+   * Report the outcome to the circuit breaker and compute the delay before the next attempt, or -1 to stop.
+   */
+  private long nextRetryDelay(int attempt, long previousDelay, SendGridSender.Response response) {
+    if (!this.retryPolicy.isRetryable(response)) {
+      if (this.circuitBreaker != null) {
+        this.circuitBreaker.onSuccess();
+      }
+      return -1;
+    }
+    if (this.circuitBreaker != null) {
+      this.circuitBreaker.onFailure();
+    }
+    if (attempt >= this.retryPolicy.getMaxAttempts()) {
+      return -1;
+    }
+    return this.retryPolicy.nextDelay(previousDelay, response);
+  }
+
+  private static SendGridSender.Response toResponse(HttpResponse res) throws IOException {
+    long retryAfter = -1;
+    Header header = res.getFirstHeader("Retry-After");
+    if (header != null) {
+      String value = header.getValue().trim();
+      try {
+        retryAfter = Long.parseLong(value) * 1000;
+      } catch (NumberFormatException e) {
+        Date date = DateUtils.parseDate(value);
+        if (date != null) {
+          retryAfter = Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+      }
+    }
+    return new SendGridSender.Response(res.getStatusLine().getStatusCode(), EntityUtils.toString(res.getEntity()), retryAfter);
+  }
+
+  /**
+   * Send without blocking the caller thread.
+   * 
+   * The async transport needs the body in memory, so prefer {@link #send(SendGridMessageAdapter)} for 
+   * messages with large attachments.
+   * 
+   * The future completes with the same responses {@link #send(SendGridMessageAdapter)} would
+   * return, retries being scheduled instead of slept, or exceptionally with {@link RejectedExecutionException} 
+   * when the in flight limit is reached.
+   */
+  public CompletableFuture<SendGridSender.Response> sendAsync(SendGridMessageAdapter email) {
+    return this.sendAsync(email, null);
+  }
+
+  /**
+   * Send without blocking the caller thread, within a deadline bounding timeouts, rate limit wait
+   * and retries as {@link #send(SendGridMessageAdapter, Deadline)} does.
+   * 
+   * @param email
+   * @param deadline none if null
+   */
+  public CompletableFuture<SendGridSender.Response> sendAsync(final SendGridMessageAdapter email, final Deadline deadline) {
+    CompletableFuture<SendGridSender.Response> future = new CompletableFuture<SendGridSender.Response>();
+    this.attemptAsync(email, 1, 0, deadline, future);
+    if (this.statusStore != null && email.getMessageId() != null) {
+      // recorded before callers see the outcome
+      return future.whenComplete((response, e) -> {
+        if (deadline == null || !deadline.isCancelled()) {
+          this.recordStatus(email, response);
+        }
+      });
+    }
+    return future;
+  }
+
+  private void attemptAsync(final SendGridMessageAdapter email, final int attempt, final long previousDelay
+      , final Deadline deadline, final CompletableFuture<SendGridSender.Response> future) {
+    if (deadline != null && deadline.isExpired()) {
+      future.complete(deadlineExceeded());
+      return;
+    }
+    if (this.circuitBreaker != null && !this.circuitBreaker.allowRequest()) {
+      future.complete(new SendGridSender.Response(503, "SendGrid circuit breaker open"));
+      return;
+    }
+    if (this.rateLimiter != null) {
+      long timeout = this.rateLimitTimeout;
+      if (deadline != null) {
+        timeout = Math.min(timeout, Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)));
+      }
+      long wait = this.rateLimiter.tryReserve(TimeUnit.MILLISECONDS.toNanos(timeout));
+      if (wait < 0) {
+        future.complete(new SendGridSender.Response(429, "SendGrid local rate limit exceeded"));
+        return;
+      }
+      if (wait > 0) {
+        this.getRetryScheduler().schedule(() -> this.executeAttemptAsync(email, attempt, previousDelay, deadline, future)
+            , wait, TimeUnit.NANOSECONDS);
+        return;
+      }
+    }
+    this.executeAttemptAsync(email, attempt, previousDelay, deadline, future);
+  }
+
+  private void executeAttemptAsync(final SendGridMessageAdapter email, final int attempt, final long previousDelay
+      , final Deadline deadline, final CompletableFuture<SendGridSender.Response> future) {
+    this.executeAsync(email, deadline).whenComplete((response, e) -> {
+      if (e != null) {
+        future.completeExceptionally(e);
+        return;
+      }
+      if (deadline != null && deadline.isCancelled()) {
+        // the caller took another answer, SendGrid is not to blame
+        future.complete(response);
+        return;
+      }
+      if (!isRepeatable(email)) {
+        // the stream was drained by this attempt
+        future.complete(response);
+        return;
+      }
+      long delay = this.nextRetryDelay(attempt, previousDelay, response);
+      if (delay < 0 || deadline != null && delay >= deadline.remaining(TimeUnit.MILLISECONDS)) {
+        future.complete(response);
+        return;
+      }
+      this.getRetryScheduler().schedule(() -> this.attemptAsync(email, attempt + 1, delay, deadline, future), delay, TimeUnit.MILLISECONDS);
+    });
+  }
+
+  /**
+   * True unless an attachment is streamed, whose content is gone after the first attempt.
+   */
+  private static boolean isRepeatable(SendGridMessageAdapter email) {
+    for (ContentBody attachment : email.getAttachments().values()) {
+      if (attachment.getContentLength() < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private CompletableFuture<SendGridSender.Response> executeAsync(final SendGridMessageAdapter email, final Deadline deadline) {
+    final CompletableFuture<SendGridSender.Response> future = new CompletableFuture<SendGridSender.Response>();
+    if (!this.inFlight.tryAcquire()) {
+      RejectedExecutionException rejected = new RejectedExecutionException("Too many SendGrid requests in flight: " + this.maxInFlight);
+      this.metrics.recordException(email.getTemplateName(), rejected);
+      future.completeExceptionally(rejected);
+      return future;
     }
+    final Semaphore permits = this.inFlight;
+    PooledFormEntity form = null;
+    try {
+      final HttpPost httppost = new HttpPost(this.url + this.endpoint);
+      form = this.buildBody(email);
+      final HttpEntity body = this.bufferBody(form);
+      // the pooled array goes back once the exchange is over
+      final PooledFormEntity encoded = form;
+      future.whenComplete((response, e) -> encoded.release());
+      httppost.setEntity(body);
+      if (deadline != null) {
+        httppost.setConfig(this.boundedConfig(deadline));
+      }
+      final long start = System.nanoTime();
+      Future<HttpResponse> exchange = this.getAsyncClient().execute(httppost, new FutureCallback<HttpResponse>() {
+        public void completed(HttpResponse res) {
+          permits.release();
+          try {
+            SendGridSender.Response response = toResponse(res);
+            recordRequest(email, body, response.getCode(), start);
+            future.complete(response);
+          } catch (IOException e) {
+            metrics.recordException(email.getTemplateName(), e);
+            future.complete(new SendGridSender.Response(500, "Problem connecting to SendGrid"));
+          }
+        }
+        public void failed(Exception e) {
+          permits.release();
+          metrics.recordException(email.getTemplateName(), e);
+          if (deadline != null && deadline.isExpired()) {
+            future.complete(deadlineExceeded());
+            return;
+          }
+          future.complete(new SendGridSender.Response(500, "Problem connecting to SendGrid"));
+        }
+        public void cancelled() {
+          permits.release();
+          if (deadline != null && deadline.isExpired()) {
+            // aborted by the deadline
+            future.complete(deadlineExceeded());
+            return;
+          }
+          future.cancel(false);
+        }
+      });
+      if (deadline != null) {
+        // the async transport aborts through the exchange, not the request
+        final Future<HttpResponse> aborted = exchange;
+        deadline.setAbortAction(() -> aborted.cancel(true));
+        final ScheduledFuture<?> abort = this.getRetryScheduler().schedule(() -> aborted.cancel(true)
+            , deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        future.whenComplete((response, e) -> {
+          abort.cancel(false);
+          deadline.setAbortAction(null);
+        });
+      }
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      if (form != null) {
+        form.release();
+      }
+      this.metrics.recordException(email.getTemplateName(), e);
+      future.complete(new SendGridSender.Response(500, "Problem connecting to SendGrid"));
+    }
+    return future;
+  }
 
+  private synchronized ScheduledExecutorService getRetryScheduler() {
+    if (this.retryScheduler == null) {
+      this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sendgrid-retry");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return this.retryScheduler;
+  }
+
+  /**
+   * The async transport needs content it can read back, which multipart entities do not offer;
+   * the pooled array is wrapped as is unless attachments are streamed into the body.
+   */
+  private HttpEntity bufferBody(PooledFormEntity entity) throws IOException {
+    HttpEntity wrapped = entity.toByteArrayEntity();
+    if (wrapped != null) {
+      return wrapped;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(entity.getContentLength() > 0 ? (int) entity.getContentLength() : 4096);
+    entity.writeTo(out);
+    entity.release();
+    ByteArrayEntity buffered = new ByteArrayEntity(out.toByteArray());
+    buffered.setContentType(entity.getContentType());
+    return buffered;
+  }
+
+  private synchronized CloseableHttpAsyncClient getAsyncClient() {
+    if (this.asyncClient == null) {
+      HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+          .setUserAgent(USER_AGENT)
+          .setMaxConnTotal(this.maxInFlight)
+          .setMaxConnPerRoute(this.maxInFlight);
+      if (this.connectionPool != null) {
+        builder.setDefaultRequestConfig(this.connectionPool.getRequestConfig())
+            .setKeepAliveStrategy(this.connectionPool.getKeepAliveStrategy());
+      }
+      this.asyncClient = builder.build();
+    }
+    if (!this.asyncClient.isRunning()) {
+      this.asyncClient.start();
+    }
+    return this.asyncClient;
+  }
+
+  public void close() throws IOException {
+    try {
+      this.client.close();
+    } finally {
+      synchronized (this) {
+        if (this.asyncClient != null) {
+          this.asyncClient.close();
+        }
+      }
+      if (this.connectionPool != null) {
+        this.connectionPool.close();
+      }
+      synchronized (this) {
+        if (this.retryScheduler != null) {
+          this.retryScheduler.shutdownNow();
+        }
+      }
+    }
   }
 
   public static class Response {
     private int code;
     private boolean success;
     private String message;
+    private long retryAfter;
 
     public Response(int code, String msg) {
+      this(code, msg, -1);
+    }
+
+    public Response(int code, String msg, long retryAfter) {
       this.code = code;
       this.success = code == 200;
       this.message = msg;
+      this.retryAfter = retryAfter;
     }
 
     public int getCode() {
@@ -168,5 +729,12 @@ public class SendGridSender {
     public String getMessage() {
       return this.message;
     }
+
+    /**
+     * Retry-After in milliseconds, or -1 if absent.
+     */
+    public long getRetryAfter() {
+      return this.retryAfter;
+    }
   }
 }
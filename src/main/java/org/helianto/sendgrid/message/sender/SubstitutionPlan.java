@@ -0,0 +1,100 @@
+package org.helianto.sendgrid.message.sender;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.internet.MimeUtility;
+
+import org.helianto.sendgrid.message.SmtpApiHeader;
+import org.helianto.sendgrid.message.event.EventAggregator;
+
+/**
+ * Substitutions of one template, prepared once and applied to every message sent with it.
+ *
+ * The plan keeps the tokens of the template parameters, so that ${name} is built the first time
+ * a parameter is seen, and writes a message straight into its x-smtpapi header: recipient values
+ * are MIME-encoded once each, values shared by all recipients are added once per recipient
+ * without intermediate arrays, and the template filter and unique arg follow.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public final class SubstitutionPlan {
+
+	public static final String RECIPIENT_EMAIL_TOKEN = "${recipientEmail}";
+
+	public static final String RECIPIENT_FIRST_NAME_TOKEN = "${recipientFirstName}";
+
+	public static final String RECIPIENT_LAST_NAME_TOKEN = "${recipientLastName}";
+
+	/**
+	 * Bound to the tokens of a template, parameter names are expected to come from code, not from users.
+	 */
+	private static final int MAX_TOKENS = 256;
+
+	private final String templateName;
+
+	private final ConcurrentMap<String, String> tokens = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param templateName
+	 */
+	public SubstitutionPlan(String templateName) {
+		super();
+		this.templateName = templateName;
+	}
+
+	/**
+	 * Substitution token for a parameter name, as in ${name}.
+	 *
+	 * @param name
+	 */
+	public String token(String name) {
+		String token = tokens.get(name);
+		if (token==null) {
+			token = "${"+name+"}";
+			if (tokens.size() < MAX_TOKENS) {
+				tokens.putIfAbsent(name, token);
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * Write the template into the header; recipient arrays are parallel, one value per recipient.
+	 *
+	 * @param header
+	 * @param templateId
+	 * @param substitutions values shared by every recipient, by token
+	 * @param recipientEmails
+	 * @param recipientFirstNames
+	 * @param recipientLastNames
+	 */
+	public void apply(SmtpApiHeader header, String templateId, Map<String, String> substitutions
+			, String[] recipientEmails, String[] recipientFirstNames, String[] recipientLastNames) throws UnsupportedEncodingException {
+		int size = recipientEmails.length;
+		encode(header, RECIPIENT_EMAIL_TOKEN, recipientEmails);
+		encode(header, RECIPIENT_FIRST_NAME_TOKEN, recipientFirstNames);
+		encode(header, RECIPIENT_LAST_NAME_TOKEN, recipientLastNames);
+		for (Map.Entry<String, String> substitution: substitutions.entrySet()) {
+			header.addSubstitution(substitution.getKey(), substitution.getValue(), size);
+		}
+		header.addUniqueArg(EventAggregator.TEMPLATE_ARG, templateName);
+		header.addFilter("templates", "enabled", 1);
+		header.addFilter("templates", "template_id", templateId);
+	}
+
+	private static void encode(SmtpApiHeader header, String token, String[] values) throws UnsupportedEncodingException {
+		for (String value: values) {
+			header.addSubstitution(token, MimeUtility.encodeText(value));
+		}
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+}
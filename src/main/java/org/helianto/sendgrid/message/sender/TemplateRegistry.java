@@ -0,0 +1,138 @@
+package org.helianto.sendgrid.message.sender;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.PropertySource;
+
+/**
+ * SendGrid template ids resolved once from every property named after the template prefix.
+ *
+ * Lookups read an immutable map; the map is replaced as a whole when the application context
+ * is refreshed, when {@link #refresh()} is called, or periodically if a refresh interval is set.
+ * Each template also keeps its {@link SubstitutionPlan}, which does not depend on the id and
+ * survives refreshes.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class TemplateRegistry implements ApplicationListener<ContextRefreshedEvent>, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TemplateRegistry.class);
+
+	private final ConfigurableEnvironment env;
+
+	private final String templatePrefix;
+
+	private volatile Map<String, String> templateIds = Collections.emptyMap();
+
+	private final ConcurrentMap<String, SubstitutionPlan> plans = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param env
+	 * @param templatePrefix
+	 */
+	public TemplateRegistry(ConfigurableEnvironment env, String templatePrefix) {
+		super();
+		this.env = env;
+		this.templatePrefix = templatePrefix;
+		refresh();
+	}
+
+	/**
+	 * Resolve template ids again.
+	 */
+	public void refresh() {
+		Map<String, String> resolved = new HashMap<>();
+		for (PropertySource<?> source: env.getPropertySources()) {
+			if (source instanceof EnumerablePropertySource) {
+				for (String name: ((EnumerablePropertySource<?>) source).getPropertyNames()) {
+					if (name.startsWith(templatePrefix)) {
+						// the environment applies property source precedence and placeholders
+						resolved.put(name.substring(templatePrefix.length()), env.getProperty(name));
+					}
+				}
+			}
+		}
+		if (!resolved.equals(templateIds)) {
+			logger.info("Resolved {} SendGrid templates.", resolved.size());
+		}
+		templateIds = Collections.unmodifiableMap(resolved);
+	}
+
+	/**
+	 * Refresh periodically; zero or less disables it.
+	 *
+	 * @param refreshInterval in milliseconds
+	 */
+	public synchronized void setRefreshInterval(long refreshInterval) {
+		if (refresher!=null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+		if (refreshInterval > 0) {
+			refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "sendgrid-template-refresh");
+				thread.setDaemon(true);
+				return thread;
+			});
+			refresher.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		refresh();
+	}
+
+	/**
+	 * Template id, or null if the template is unknown.
+	 *
+	 * @param templateName
+	 */
+	public String getTemplateId(String templateName) {
+		return templateIds.get(templateName);
+	}
+
+	/**
+	 * Substitution plan of the template, built on first use.
+	 *
+	 * @param templateName
+	 */
+	public SubstitutionPlan getPlan(String templateName) {
+		return plans.computeIfAbsent(templateName, SubstitutionPlan::new);
+	}
+
+	public boolean contains(String templateName) {
+		return templateIds.containsKey(templateName);
+	}
+
+	public Set<String> getTemplateNames() {
+		return templateIds.keySet();
+	}
+
+	public String getTemplatePrefix() {
+		return templatePrefix;
+	}
+
+	public synchronized void close() {
+		setRefreshInterval(0);
+	}
+
+}
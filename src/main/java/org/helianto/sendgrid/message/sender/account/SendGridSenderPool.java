@@ -0,0 +1,323 @@
+package org.helianto.sendgrid.message.sender.account;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.retry.CircuitBreaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sendgrid.SendGridException;
+
+/**
+ * Spreads sends over several SendGrid accounts.
+ * 
+ * Each account has its own sender, with its own circuit breaker and rate limiter, so an account
+ * leaves the rotation while its breaker is open and is passed over while its quota is spent, as
+ * long as another account can take the message. Accounts are chosen by {@link Routing}.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SendGridSenderPool implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SendGridSenderPool.class);
+	
+	/**
+	 * How an account is chosen among those available.
+	 */
+	public enum Routing {
+		
+		/**
+		 * Same account for a tenant as long as it is available, by rendezvous hashing weighted by
+		 * account, so an account leaving moves only its own tenants; weighted round robin without
+		 * a tenant.
+		 */
+		TENANT,
+		
+		/**
+		 * Smooth weighted round robin.
+		 */
+		WEIGHTED_ROUND_ROBIN,
+		
+		/**
+		 * Fewest requests outstanding per unit of weight.
+		 */
+		LEAST_OUTSTANDING;
+	
+	}
+	
+	private final Routing routing;
+	
+	private volatile List<Account> accounts = Collections.emptyList();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param routing
+	 */
+	public SendGridSenderPool(Routing routing) {
+		super();
+		this.routing = routing;
+	}
+	
+	/**
+	 * Add an account; the pool closes its sender.
+	 * 
+	 * @param name unique, also the tenant hashing seed, so keep names stable
+	 * @param sender
+	 * @param weight share of the traffic relative to other accounts
+	 */
+	public synchronized SendGridSenderPool addAccount(String name, SendGridSender sender, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Account weight must be positive.");
+		}
+		for (Account account: accounts) {
+			if (account.name.equals(name)) {
+				throw new IllegalArgumentException("Duplicate SendGrid account "+name);
+			}
+		}
+		List<Account> added = new ArrayList<>(accounts);
+		added.add(new Account(name, sender, weight));
+		accounts = Collections.unmodifiableList(added);
+		return this;
+	}
+	
+	/**
+	 * Send through the account chosen for the tenant.
+	 * 
+	 * @param tenantKey null if unknown
+	 * @param email
+	 */
+	public Response send(String tenantKey, SendGridMessageAdapter email) throws SendGridException {
+		Account account = select(tenantKey);
+		account.outstanding.incrementAndGet();
+		try {
+			return account.sender.send(email);
+		} finally {
+			account.outstanding.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Send without blocking through the account chosen for the tenant.
+	 * 
+	 * @param tenantKey null if unknown
+	 * @param email
+	 */
+	public CompletableFuture<Response> sendAsync(String tenantKey, SendGridMessageAdapter email) {
+		final Account account = select(tenantKey);
+		account.outstanding.incrementAndGet();
+		try {
+			return account.sender.sendAsync(email).whenComplete((response, e) -> account.outstanding.decrementAndGet());
+		} catch (RuntimeException e) {
+			account.outstanding.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Account for the next message of a tenant.
+	 * 
+	 * Candidates are the healthy accounts with quota left, else the healthy ones, else all of them,
+	 * so that sends keep failing fast on the breakers rather than here.
+	 * 
+	 * @param tenantKey null if unknown
+	 */
+	public Account select(String tenantKey) {
+		List<Account> candidates = candidates();
+		if (candidates.size()==1) {
+			return candidates.get(0);
+		}
+		switch (routing) {
+		case TENANT:
+			if (tenantKey!=null) {
+				return rendezvous(candidates, tenantKey);
+			}
+			return roundRobin(candidates);
+		case LEAST_OUTSTANDING:
+			return leastOutstanding(candidates);
+		default:
+			return roundRobin(candidates);
+		}
+	}
+	
+	private List<Account> candidates() {
+		List<Account> all = accounts;
+		if (all.isEmpty()) {
+			throw new IllegalStateException("No SendGrid account in the pool.");
+		}
+		boolean allAvailable = true;
+		for (Account account: all) {
+			allAvailable &= account.isHealthy() && account.hasQuota();
+		}
+		if (allAvailable) {
+			return all;
+		}
+		List<Account> healthy = new ArrayList<>(all.size());
+		List<Account> available = new ArrayList<>(all.size());
+		for (Account account: all) {
+			if (account.isHealthy()) {
+				healthy.add(account);
+				if (account.hasQuota()) {
+					available.add(account);
+				}
+			}
+		}
+		if (!available.isEmpty()) {
+			return available;
+		}
+		if (!healthy.isEmpty()) {
+			return healthy;
+		}
+		logger.debug("No healthy SendGrid account, trying all.");
+		return all;
+	}
+	
+	/**
+	 * Highest weighted score of the tenant and account names (weighted rendezvous hashing).
+	 */
+	private static Account rendezvous(List<Account> candidates, String tenantKey) {
+		long tenantHash = tenantKey.hashCode();
+		Account best = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (Account account: candidates) {
+			long hash = mix(tenantHash * 0x9E3779B97F4A7C15L ^ account.name.hashCode());
+			// uniform in (0, 1)
+			double u = ((hash >>> 11) + 1) / (double) ((1L << 53) + 1);
+			double score = -account.weight / Math.log(u);
+			if (score > bestScore) {
+				bestScore = score;
+				best = account;
+			}
+		}
+		return best;
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * Smooth weighted round robin, as nginx does: every candidate gains its weight, the richest
+	 * is chosen and pays back the total.
+	 */
+	private synchronized Account roundRobin(List<Account> candidates) {
+		Account best = null;
+		int total = 0;
+		for (Account account: candidates) {
+			account.currentWeight += account.weight;
+			total += account.weight;
+			if (best==null || account.currentWeight > best.currentWeight) {
+				best = account;
+			}
+		}
+		best.currentWeight -= total;
+		return best;
+	}
+	
+	private static Account leastOutstanding(List<Account> candidates) {
+		Account best = null;
+		double bestLoad = Double.MAX_VALUE;
+		for (Account account: candidates) {
+			double load = (account.outstanding.get() + 1) / (double) account.weight;
+			if (load < bestLoad) {
+				bestLoad = load;
+				best = account;
+			}
+		}
+		return best;
+	}
+	
+	public Routing getRouting() {
+		return routing;
+	}
+	
+	public List<Account> getAccounts() {
+		return accounts;
+	}
+	
+	/**
+	 * Close the account senders.
+	 */
+	public synchronized void close() throws IOException {
+		for (Account account: accounts) {
+			account.sender.close();
+		}
+	}
+	
+	/**
+	 * One SendGrid account.
+	 */
+	public static final class Account {
+		
+		private final String name;
+		
+		private final SendGridSender sender;
+		
+		private final int weight;
+		
+		private final AtomicInteger outstanding = new AtomicInteger();
+		
+		/**
+		 * Smooth round robin state, guarded by the pool.
+		 */
+		private int currentWeight;
+		
+		Account(String name, SendGridSender sender, int weight) {
+			this.name = name;
+			this.sender = sender;
+			this.weight = weight;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public SendGridSender getSender() {
+			return sender;
+		}
+		
+		public int getWeight() {
+			return weight;
+		}
+		
+		/**
+		 * Requests sent through the pool and not answered yet.
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+		
+		/**
+		 * False while the account circuit breaker is open.
+		 */
+		public boolean isHealthy() {
+			CircuitBreaker breaker = sender.getCircuitBreaker();
+			return breaker==null || !breaker.isOpen();
+		}
+		
+		/**
+		 * False while the account rate limiter has no permit to give.
+		 */
+		public boolean hasQuota() {
+			RateLimiter rateLimiter = sender.getRateLimiter();
+			return rateLimiter==null || rateLimiter.getWaitNanos()==0;
+		}
+	
+	}
+
+}
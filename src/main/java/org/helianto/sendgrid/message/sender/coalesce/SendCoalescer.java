@@ -0,0 +1,378 @@
+package org.helianto.sendgrid.message.sender.coalesce;
+
+import java.io.Closeable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.internet.InternetAddress;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.SmtpApiHeader;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.status.DeliveryState;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges single recipient messages submitted within a short window into one x-smtpapi
+ * multi-recipient request.
+ * 
+ * Messages are grouped when sender, subject, body and every x-smtpapi setting other than the
+ * recipients and substitutions are equal, which holds for sends from the same template. The group
+ * is sent when the window started by its first message expires or when it reaches the maximum
+ * batch size. Substitutions are merged per recipient, a key missing from one message being
+ * replaced by an empty string, and a recipient name goes with its address, as "Name &lt;address&gt;".
+ * 
+ * SendGrid accepts or rejects a request as a whole; when a merged request is rejected as invalid,
+ * each message is sent again on its own so that every caller receives its own outcome.
+ * 
+ * Unique args apply to every recipient of a request, so merged messages lose their message id in
+ * webhook events; when a status store is set, each message id is marked SENT or FAILED with the
+ * outcome of the merged request, and no later event updates it.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SendCoalescer implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SendCoalescer.class);
+	
+	private final SendGridSender sendGridSender;
+	
+	private final long window;
+	
+	private final int maxBatchSize;
+	
+	private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private final LongAdder messages = new LongAdder();
+	
+	private final LongAdder requests = new LongAdder();
+	
+	private DeliveryStatusStore statusStore;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param sendGridSender
+	 * @param window maximum time a message waits for others, in milliseconds
+	 * @param maxBatchSize
+	 */
+	public SendCoalescer(SendGridSender sendGridSender, long window, int maxBatchSize) {
+		super();
+		if (window < 1 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Coalescing window and batch size must be positive.");
+		}
+		this.sendGridSender = sendGridSender;
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sendgrid-coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Submit a message; messages that can not be merged are sent at once.
+	 * 
+	 * @param email
+	 * @return completes with the response to the request that carried the message
+	 */
+	public CompletableFuture<Response> submit(SendGridMessageAdapter email) {
+		messages.increment();
+		if (!isMergeable(email)) {
+			return send(email);
+		}
+		JSONObject header = new JSONObject(email.getSMTPAPI().jsonString());
+		header.remove("to");
+		Object substitutions = header.remove("sub");
+		JSONObject uniqueArgs = header.optJSONObject("unique_args");
+		if (uniqueArgs!=null) {
+			// unique args are per request, merged messages share no id
+			uniqueArgs.remove(SendGridMessageAdapter.MESSAGE_ID_ARG);
+			if (uniqueArgs.length()==0) {
+				header.remove("unique_args");
+			}
+		}
+		final Pending pending = new Pending(email, substitutions instanceof JSONObject ? (JSONObject) substitutions : null);
+		final String key = key(email, header);
+		final Batch[] ready = new Batch[1];
+		batches.compute(key, (k, batch) -> {
+			if (batch==null) {
+				final Batch created = new Batch(header);
+				scheduler.schedule(() -> expire(k, created), window, TimeUnit.MILLISECONDS);
+				batch = created;
+			}
+			batch.pending.add(pending);
+			if (batch.pending.size() >= maxBatchSize) {
+				ready[0] = batch;
+				return null;
+			}
+			return batch;
+		});
+		if (ready[0]!=null) {
+			flush(ready[0]);
+		}
+		return pending.future;
+	}
+	
+	private static boolean isMergeable(SendGridMessageAdapter email) {
+		return email.getTos().length==1 && email.getToNames().length<=1 && email.getRecipientCount()==1
+				&& email.getCcs().length==0 && email.getBccs().length==0
+				&& email.getAttachments().isEmpty() && email.getHeaders().isEmpty();
+	}
+	
+	private static String key(SendGridMessageAdapter email, JSONObject header) {
+		return new StringBuilder()
+				.append(email.getFrom()).append('\u0000')
+				.append(email.getFromName()).append('\u0000')
+				.append(email.getReplyTo()).append('\u0000')
+				.append(email.getSubject()).append('\u0000')
+				.append(email.getText()).append('\u0000')
+				.append(email.getHtml()).append('\u0000')
+				.append(header.toString())
+				.toString();
+	}
+	
+	private void expire(String key, Batch batch) {
+		if (batches.remove(key, batch)) {
+			flush(batch);
+		}
+	}
+	
+	private void flush(Batch batch) {
+		final List<Pending> pending = batch.pending;
+		if (pending.size()==1) {
+			pending.get(0).complete(send(pending.get(0).email));
+			return;
+		}
+		final SendGridMessageAdapter merged;
+		try {
+			merged = merge(batch);
+		} catch (RuntimeException e) {
+			logger.warn("Unable to merge {} messages: {}", pending.size(), e.getMessage());
+			for (Pending each: pending) {
+				each.complete(send(each.email));
+			}
+			return;
+		}
+		send(merged).whenComplete((response, e) -> {
+			if (e==null && isRejected(response)) {
+				logger.debug("Merged request of {} rejected ({}), sending each message.", pending.size(), response.getCode());
+				for (Pending each: pending) {
+					each.complete(send(each.email));
+				}
+				return;
+			}
+			for (Pending each: pending) {
+				recordStatus(each.email, e==null ? response : null);
+				if (e!=null) {
+					each.future.completeExceptionally(e);
+				}
+				else {
+					each.future.complete(response);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Merged messages carry no id of their own, update them as the sender does single ones.
+	 */
+	private void recordStatus(SendGridMessageAdapter email, Response response) {
+		if (statusStore!=null && email.getMessageId()!=null) {
+			statusStore.update(email.getMessageId()
+					, response!=null && response.getStatus() ? DeliveryState.SENT : DeliveryState.FAILED);
+		}
+	}
+	
+	/**
+	 * Invalid request, as opposed to throttling or a server failure.
+	 */
+	private static boolean isRejected(Response response) {
+		int code = response.getCode();
+		return code>=400 && code<500 && code!=429;
+	}
+	
+	private CompletableFuture<Response> send(SendGridMessageAdapter email) {
+		requests.increment();
+		return sendGridSender.sendAsync(email);
+	}
+	
+	private static SendGridMessageAdapter merge(Batch batch) {
+		List<Pending> pending = batch.pending;
+		int size = pending.size();
+		String[] recipients = new String[size];
+		Map<String, String[]> substitutions = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++) {
+			Pending each = pending.get(i);
+			recipients[i] = recipient(each.email);
+			if (each.substitutions==null) {
+				continue;
+			}
+			Iterator<?> keys = each.substitutions.keys();
+			while (keys.hasNext()) {
+				String name = (String) keys.next();
+				String[] values = substitutions.get(name);
+				if (values==null) {
+					values = new String[size];
+					substitutions.put(name, values);
+				}
+				JSONArray value = each.substitutions.optJSONArray(name);
+				values[i] = value==null ? null : value.optString(0, null);
+			}
+		}
+		JSONObject header = new JSONObject(batch.header.toString());
+		if (!substitutions.isEmpty()) {
+			JSONObject merged = new JSONObject();
+			for (Map.Entry<String, String[]> substitution: substitutions.entrySet()) {
+				JSONArray values = new JSONArray();
+				for (String value: substitution.getValue()) {
+					values.put(value==null ? "" : value);
+				}
+				merged.put(substitution.getKey(), values);
+			}
+			header.put("sub", merged);
+		}
+		SendGridMessageAdapter first = pending.get(0).email;
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		email.setFrom(first.getFrom());
+		email.setFromName(first.getFromName());
+		email.setReplyTo(first.getReplyTo());
+		email.setSubject(first.getSubject());
+		email.setText(first.getText());
+		email.setHtml(first.getHtml());
+		email.setTemplateName(first.getTemplateName());
+		email.setSMTPAPI(SmtpApiHeader.parse(header));
+		// the form requires a recipient, SendGrid expands the x-smtpapi ones
+		email.addTo(first.getFrom());
+		email.setSMTPAPITos(recipients);
+		return email;
+	}
+	
+	/**
+	 * The x-smtpapi recipient of a message, carrying its name when it has one.
+	 */
+	private static String recipient(SendGridMessageAdapter email) {
+		String to = email.getTos()[0];
+		String[] names = email.getToNames();
+		if (names.length==0 || names[0]==null || names[0].trim().isEmpty()) {
+			return to;
+		}
+		try {
+			// quoted or encoded as needed
+			return new InternetAddress(to, names[0].trim(), "UTF-8").toString();
+		} catch (UnsupportedEncodingException e) {
+			return to;
+		}
+	}
+	
+	/**
+	 * Store updated with the outcome of merged messages carrying an id, none if null.
+	 */
+	public SendCoalescer setStatusStore(DeliveryStatusStore statusStore) {
+		this.statusStore = statusStore;
+		return this;
+	}
+	
+	public DeliveryStatusStore getStatusStore() {
+		return statusStore;
+	}
+	
+	/**
+	 * Messages submitted.
+	 */
+	public long getMessageCount() {
+		return messages.sum();
+	}
+	
+	/**
+	 * Requests sent to SendGrid, including single messages and resends.
+	 */
+	public long getRequestCount() {
+		return requests.sum();
+	}
+	
+	/**
+	 * Messages waiting for their window to expire, approximate.
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (Batch batch: batches.values()) {
+			count += batch.pending.size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Flush every pending batch and stop.
+	 */
+	public void close() {
+		for (String key: new ArrayList<>(batches.keySet())) {
+			Batch batch = batches.remove(key);
+			if (batch!=null) {
+				flush(batch);
+			}
+		}
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * Messages sharing a key; only changed inside the map compute, read after removal.
+	 */
+	private static final class Batch {
+		
+		final JSONObject header;
+		
+		final List<Pending> pending = new ArrayList<>();
+		
+		Batch(JSONObject header) {
+			this.header = header;
+		}
+	
+	}
+	
+	private static final class Pending {
+		
+		final SendGridMessageAdapter email;
+		
+		final JSONObject substitutions;
+		
+		final CompletableFuture<Response> future = new CompletableFuture<>();
+		
+		Pending(SendGridMessageAdapter email, JSONObject substitutions) {
+			this.email = email;
+			this.substitutions = substitutions;
+		}
+		
+		void complete(CompletableFuture<Response> response) {
+			response.whenComplete((value, e) -> {
+				if (e!=null) {
+					future.completeExceptionally(e);
+				}
+				else {
+					future.complete(value);
+				}
+			});
+		}
+	
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.helianto.sendgrid.message.sender.deadline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of one send, retries and connection lease included.
+ * 
+ * A deadline may also be cancelled, which aborts the request in flight, so that a caller no longer
+ * interested in the answer frees the connection at once.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class Deadline {
+	
+	private final long expiresAt;
+	
+	private volatile boolean cancelled;
+	
+	private volatile Runnable abortAction;
+	
+	private Deadline(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * Deadline from now.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 */
+	public static Deadline after(long timeout, TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+	}
+	
+	/**
+	 * Deadline at the same instant, cancelled on its own.
+	 */
+	public Deadline fork() {
+		return new Deadline(expiresAt);
+	}
+	
+	/**
+	 * Time left, zero or less once expired.
+	 * 
+	 * @param unit
+	 */
+	public long remaining(TimeUnit unit) {
+		return unit.convert(expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Time left in milliseconds as a timeout, at least 1 so it never means infinite.
+	 */
+	public int remainingTimeout() {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining(TimeUnit.MILLISECONDS)));
+	}
+	
+	/**
+	 * True once expired or cancelled.
+	 */
+	public boolean isExpired() {
+		return cancelled || expiresAt - System.nanoTime() <= 0;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Cancel, aborting the request in flight.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Runnable action = abortAction;
+		if (action!=null) {
+			action.run();
+		}
+	}
+	
+	/**
+	 * Action aborting the request in flight, run at once if already cancelled; null to clear.
+	 * 
+	 * @param abortAction
+	 */
+	public void setAbortAction(Runnable abortAction) {
+		this.abortAction = abortAction;
+		if (abortAction!=null && cancelled) {
+			abortAction.run();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return cancelled ? "Deadline[cancelled]" : "Deadline["+remaining(TimeUnit.MILLISECONDS)+" ms]";
+	}
+
+}
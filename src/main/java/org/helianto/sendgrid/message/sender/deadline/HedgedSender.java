@@ -0,0 +1,339 @@
+package org.helianto.sendgrid.message.sender.deadline;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.helianto.sendgrid.message.status.DeliveryStatusStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sendgrid.SendGridException;
+
+/**
+ * Hedged sends for templates where tail latency matters more than cost, as login and confirmation
+ * mail.
+ * 
+ * When no answer arrives by the template p95 latency, a second attempt of the same message goes
+ * out, carrying the same message id, and the first successful answer is taken while the other
+ * attempt is cancelled. SendGrid does not deduplicate, so a hedge that loses after being accepted
+ * delivers twice: keep hedging to idempotent, low volume templates, whose duplicates webhook events
+ * recognize by the message id.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class HedgedSender implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(HedgedSender.class);
+	
+	/**
+	 * Latencies kept per template to estimate the p95.
+	 */
+	private static final int WINDOW_SIZE = 256;
+	
+	/**
+	 * Time allowed to aborted attempts to return past the deadline, in milliseconds.
+	 */
+	private static final long ABORT_GRACE = 1000;
+	
+	private final SendGridSender sendGridSender;
+	
+	private final Set<String> templates;
+	
+	private final SendGridMetrics metrics;
+	
+	private final ExecutorService executor;
+	
+	private final ConcurrentMap<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+	
+	private final AtomicLong hedgeCount = new AtomicLong();
+	
+	private final AtomicLong hedgeWins = new AtomicLong();
+	
+	private long timeout = 10000;
+	
+	private long initialDelay = 500;
+	
+	private long minDelay = 10;
+	
+	private int minSamples = 20;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param sendGridSender
+	 * @param templates names of the templates to hedge
+	 * @param metrics
+	 */
+	public HedgedSender(SendGridSender sendGridSender, Collection<String> templates, SendGridMetrics metrics) {
+		super();
+		this.sendGridSender = sendGridSender;
+		this.templates = Collections.unmodifiableSet(new HashSet<>(templates));
+		this.metrics = metrics==null ? NoOpSendGridMetrics.INSTANCE : metrics;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "sendgrid-hedge-"+threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Deadline of sends without one, in milliseconds, 10 s by default.
+	 */
+	public HedgedSender setTimeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * Hedge delay until enough latencies are known, in milliseconds, 500 ms by default.
+	 * 
+	 * @param initialDelay
+	 * @param minSamples latencies needed to use the p95, 20 by default
+	 */
+	public HedgedSender setInitialDelay(long initialDelay, int minSamples) {
+		this.initialDelay = initialDelay;
+		this.minSamples = Math.max(1, minSamples);
+		return this;
+	}
+	
+	/**
+	 * Shortest hedge delay, in milliseconds, 10 ms by default.
+	 */
+	public HedgedSender setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+		return this;
+	}
+	
+	/**
+	 * True if sends of the template are hedged.
+	 * 
+	 * @param templateName
+	 */
+	public boolean isHedged(String templateName) {
+		return templateName!=null && templates.contains(templateName);
+	}
+	
+	/**
+	 * Wait before hedging a template, its p95 latency once known, in milliseconds.
+	 * 
+	 * @param templateName
+	 */
+	public long getHedgeDelay(String templateName) {
+		LatencyWindow window = windows.get(templateName==null ? "" : templateName);
+		if (window==null || window.size() < minSamples) {
+			return initialDelay;
+		}
+		return Math.max(minDelay, TimeUnit.NANOSECONDS.toMillis(window.getP95()));
+	}
+	
+	/**
+	 * Send, hedging after the template p95 latency.
+	 * 
+	 * @param email
+	 * @param deadline bounds both attempts, the default timeout if null
+	 */
+	public Response send(SendGridMessageAdapter email, Deadline deadline) throws SendGridException {
+		if (deadline==null) {
+			deadline = Deadline.after(timeout, TimeUnit.MILLISECONDS);
+		}
+		if (email.getMessageId()==null) {
+			email.setMessageId(DeliveryStatusStore.newMessageId());
+		}
+		// serialized here, so both attempts share the header bytes
+		email.getSMTPAPI().getJsonLength();
+		String templateName = email.getTemplateName();
+		Deadline primaryDeadline = deadline.fork();
+		CompletableFuture<Response> primary = attempt(email, primaryDeadline);
+		try {
+			return primary.get(Math.min(getHedgeDelay(templateName), Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)))
+					, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// no answer by the p95, hedge below
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			primaryDeadline.cancel();
+			throw new SendGridException(e);
+		} catch (ExecutionException e) {
+			throw new SendGridException(e);
+		}
+		if (deadline.isExpired()) {
+			return await(primary, primaryDeadline, deadline);
+		}
+		Deadline hedgeDeadline = deadline.fork();
+		CompletableFuture<Response> hedge = attempt(email, hedgeDeadline);
+		hedgeCount.incrementAndGet();
+		logger.debug("Hedging message {} of template {}.", email.getMessageId(), templateName);
+		CompletableFuture<CompletableFuture<Response>> first = first(primary, hedge);
+		CompletableFuture<Response> winner;
+		try {
+			winner = first.get(Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)) + ABORT_GRACE, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | InterruptedException | ExecutionException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			primaryDeadline.cancel();
+			hedgeDeadline.cancel();
+			metrics.recordHedge(templateName, false);
+			return new Response(504, "SendGrid deadline exceeded");
+		}
+		boolean hedgeWon = winner==hedge;
+		(hedgeWon ? primaryDeadline : hedgeDeadline).cancel();
+		if (hedgeWon) {
+			hedgeWins.incrementAndGet();
+		}
+		metrics.recordHedge(templateName, hedgeWon);
+		return winner.join();
+	}
+	
+	/**
+	 * Hedged send without blocking the caller, run on the hedging threads.
+	 * 
+	 * @param email
+	 * @param deadline bounds both attempts, the default timeout if null
+	 */
+	public CompletableFuture<Response> sendAsync(final SendGridMessageAdapter email, final Deadline deadline) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return send(email, deadline);
+			} catch (SendGridException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Attempt on the hedging threads, its latency kept when successful.
+	 */
+	private CompletableFuture<Response> attempt(final SendGridMessageAdapter email, final Deadline deadline) {
+		final long start = System.nanoTime();
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				Response response = sendGridSender.send(email, deadline);
+				if (response.getStatus() && !deadline.isCancelled()) {
+					window(email.getTemplateName()).record(System.nanoTime() - start);
+				}
+				return response;
+			} catch (SendGridException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * The first attempt answering with success, else the last one to answer.
+	 */
+	private static CompletableFuture<CompletableFuture<Response>> first(final CompletableFuture<Response> primary
+			, final CompletableFuture<Response> hedge) {
+		final CompletableFuture<CompletableFuture<Response>> first = new CompletableFuture<>();
+		final AtomicInteger pending = new AtomicInteger(2);
+		for (final CompletableFuture<Response> attempt: Arrays.asList(primary, hedge)) {
+			attempt.whenComplete((response, e) -> {
+				boolean last = pending.decrementAndGet()==0;
+				if (response!=null && response.getStatus() || last) {
+					first.complete(attempt);
+				}
+			});
+		}
+		return first;
+	}
+	
+	private Response await(CompletableFuture<Response> attempt, Deadline attemptDeadline, Deadline deadline) throws SendGridException {
+		try {
+			return attempt.get(Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)) + ABORT_GRACE, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			attemptDeadline.cancel();
+			return new Response(504, "SendGrid deadline exceeded");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			attemptDeadline.cancel();
+			throw new SendGridException(e);
+		} catch (ExecutionException e) {
+			throw new SendGridException(e);
+		}
+	}
+	
+	private LatencyWindow window(String templateName) {
+		return windows.computeIfAbsent(templateName==null ? "" : templateName, key -> new LatencyWindow());
+	}
+	
+	public Set<String> getTemplates() {
+		return templates;
+	}
+	
+	/**
+	 * Second attempts sent.
+	 */
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+	
+	/**
+	 * Second attempts answering first.
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+	
+	/**
+	 * Stop the hedging threads; attempts in flight are interrupted.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Latest successful latencies of a template, p95 kept up to date.
+	 */
+	private static final class LatencyWindow {
+		
+		private final long[] latencies = new long[WINDOW_SIZE];
+		
+		private final long[] sorted = new long[WINDOW_SIZE];
+		
+		private int count;
+		
+		private int next;
+		
+		private volatile long p95;
+		
+		synchronized void record(long latency) {
+			latencies[next] = latency;
+			next = (next + 1) % WINDOW_SIZE;
+			count = Math.min(count + 1, WINDOW_SIZE);
+			System.arraycopy(latencies, 0, sorted, 0, count);
+			Arrays.sort(sorted, 0, count);
+			p95 = sorted[(int) Math.ceil(count * 0.95) - 1];
+		}
+		
+		synchronized int size() {
+			return count;
+		}
+		
+		long getP95() {
+			return p95;
+		}
+	
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.helianto.sendgrid.message.sender.dispatch;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking send work off the caller thread.
+ * 
+ * Tasks run on virtual threads when the JDK has them, so that a thread blocked on SendGrid costs
+ * little; otherwise on a fixed pool of platform threads. A semaphore caps the tasks running at
+ * once, whatever the executor, as the connection pool and SendGrid can not take an unbounded
+ * number of requests: callers wait up to the timeout for a permit, then the task is rejected.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SendDispatcher implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SendDispatcher.class);
+	
+	private final ExecutorService executor;
+	
+	private final boolean virtual;
+	
+	private final int maxConcurrency;
+	
+	private final Semaphore permits;
+	
+	private final long timeout;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxConcurrency maximum tasks running at once
+	 * @param threads platform threads used when virtual threads are not available
+	 * @param timeout maximum wait for a permit in milliseconds, zero to reject at once
+	 */
+	public SendDispatcher(int maxConcurrency, int threads, long timeout) {
+		super();
+		if (maxConcurrency < 1 || threads < 1) {
+			throw new IllegalArgumentException("Dispatch concurrency and threads must be positive.");
+		}
+		ExecutorService virtualExecutor = newVirtualThreadExecutor();
+		this.virtual = virtualExecutor!=null;
+		if (virtual) {
+			this.executor = virtualExecutor;
+		}
+		else {
+			// more threads than permits would only wait
+			final AtomicInteger count = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(Math.min(threads, maxConcurrency), runnable -> {
+				Thread thread = new Thread(runnable, "sendgrid-dispatch-"+count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency);
+		this.timeout = timeout;
+		logger.info("Dispatching sends on {} threads, at most {} at once.", virtual ? "virtual" : "platform", maxConcurrency);
+	}
+	
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor(), looked up as the library targets older JDKs;
+	 * null when not available.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// before JDK 21, or preview features disabled
+			return null;
+		}
+	}
+	
+	/**
+	 * Run a task once a permit is available.
+	 * 
+	 * @param task
+	 * @return completes with the task outcome, or exceptionally with {@link RejectedExecutionException}
+	 * when no permit was available in time
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		if (!acquirePermit()) {
+			future.completeExceptionally(new RejectedExecutionException("Too many sends dispatched: "+maxConcurrency));
+			return future;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(task.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	private boolean acquirePermit() {
+		try {
+			return permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * True if tasks run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+	
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+	
+	/**
+	 * Tasks submitted and not yet completed.
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+	
+	/**
+	 * Stop taking tasks and wait up to the timeout for running ones.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(Math.max(timeout, 1000), TimeUnit.MILLISECONDS)) {
+				logger.warn("{} dispatched sends still running at close.", getActiveCount());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
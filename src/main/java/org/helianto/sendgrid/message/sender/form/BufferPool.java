@@ -0,0 +1,80 @@
+package org.helianto.sendgrid.message.sender.form;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte arrays reused across request bodies.
+ * 
+ * Arrays taken when the pool is empty are allocated, and arrays grown beyond the retained size
+ * are left to the collector on release, so the pool never holds more than its count times that
+ * size. The backing queue is an array, so taking and releasing allocate nothing.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class BufferPool {
+	
+	private final BlockingQueue<byte[]> buffers;
+	
+	private final int initialSize;
+	
+	private final int maxRetainedSize;
+	
+	private final LongAdder allocated = new LongAdder();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxPooled arrays kept at most, keep near the number of concurrent sends
+	 * @param initialSize size of new arrays, in bytes
+	 * @param maxRetainedSize largest array kept on release, in bytes
+	 */
+	public BufferPool(int maxPooled, int initialSize, int maxRetainedSize) {
+		super();
+		if (maxPooled < 1 || initialSize < 1 || maxRetainedSize < initialSize) {
+			throw new IllegalArgumentException("Pool sizes must be positive, the retained size no less than the initial size.");
+		}
+		this.buffers = new ArrayBlockingQueue<>(maxPooled);
+		this.initialSize = initialSize;
+		this.maxRetainedSize = maxRetainedSize;
+	}
+	
+	/**
+	 * A pooled array, or a new one if none is left.
+	 */
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer==null) {
+			allocated.increment();
+			buffer = new byte[initialSize];
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Give an array back; it must not be used afterwards.
+	 * 
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		if (buffer.length <= maxRetainedSize) {
+			buffers.offer(buffer);
+		}
+	}
+	
+	/**
+	 * Arrays pooled now.
+	 */
+	public int getPooled() {
+		return buffers.size();
+	}
+	
+	/**
+	 * Arrays allocated because the pool was empty.
+	 */
+	public long getAllocated() {
+		return allocated.sum();
+	}
+
+}
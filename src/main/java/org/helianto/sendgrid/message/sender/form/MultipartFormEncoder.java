@@ -0,0 +1,235 @@
+package org.helianto.sendgrid.message.sender.form;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.Header;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.message.BasicHeader;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.json.JSONObject;
+
+/**
+ * Encodes the SendGrid mail.send form straight into pooled arrays.
+ * 
+ * Produces what the httpmime builder produced in strict mode, same part names, charsets and
+ * order, but part headers come from precomputed tables and text is encoded in place, so a message
+ * without attachments costs the entity and little else. The boundary is chosen once per encoder.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class MultipartFormEncoder {
+	
+	/**
+	 * Indexed part names with precomputed headers; higher indexes are built on demand.
+	 */
+	private static final int TABLE_SIZE = 64;
+	
+	private static final byte[] CRLF = { '\r', '\n' };
+	
+	private static final String LATIN1_TEXT = "\r\nContent-Type: text/plain; charset=ISO-8859-1\r\nContent-Transfer-Encoding: 8bit\r\n\r\n";
+	
+	private static final String UTF8_TEXT = "\r\nContent-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n";
+	
+	private static final byte[] API_USER = latin1Header("api_user");
+	
+	private static final byte[] API_KEY = latin1Header("api_key");
+	
+	private static final byte[] HEADERS = latin1Header("headers");
+	
+	private static final byte[] FROM = latin1Header("from");
+	
+	private static final byte[] FROMNAME = utf8Header("fromname");
+	
+	private static final byte[] REPLYTO = latin1Header("replyto");
+	
+	private static final byte[] SUBJECT = utf8Header("subject");
+	
+	private static final byte[] HTML = utf8Header("html");
+	
+	private static final byte[] TEXT = utf8Header("text");
+	
+	private static final byte[] XSMTPAPI = latin1Header("x-smtpapi");
+	
+	private static final byte[][] TO = table("to", false);
+	
+	private static final byte[][] TONAME = table("toname", true);
+	
+	private static final byte[][] CC = table("cc", false);
+	
+	private static final byte[][] BCC = table("bcc", false);
+	
+	private static final char[] BOUNDARY_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+	
+	private final BufferPool pool;
+	
+	private final byte[] delimiter;
+	
+	private final byte[] closeDelimiter;
+	
+	private final Header contentType;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param pool
+	 */
+	public MultipartFormEncoder(BufferPool pool) {
+		super();
+		this.pool = pool;
+		StringBuilder boundary = new StringBuilder(32);
+		for (int i = 0; i < 32; i++) {
+			boundary.append(BOUNDARY_CHARS[ThreadLocalRandom.current().nextInt(BOUNDARY_CHARS.length)]);
+		}
+		this.delimiter = ("--"+boundary+"\r\n").getBytes(StandardCharsets.US_ASCII);
+		this.closeDelimiter = ("--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII);
+		this.contentType = new BasicHeader("Content-Type", "multipart/form-data; boundary="+boundary);
+	}
+	
+	private static byte[] latin1Header(String name) {
+		return ("Content-Disposition: form-data; name=\""+name+"\""+LATIN1_TEXT).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static byte[] utf8Header(String name) {
+		return ("Content-Disposition: form-data; name=\""+name+"\""+UTF8_TEXT).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static byte[] indexedHeader(String name, int index, boolean utf8) {
+		String indexed = name+"["+index+"]";
+		return utf8 ? utf8Header(indexed) : latin1Header(indexed);
+	}
+	
+	private static byte[][] table(String name, boolean utf8) {
+		byte[][] table = new byte[TABLE_SIZE][];
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			table[i] = indexedHeader(name, i, utf8);
+		}
+		return table;
+	}
+	
+	/**
+	 * Encode the form; the caller releases the entity.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param email
+	 */
+	public PooledFormEntity encode(String username, String password, SendGridMessageAdapter email) {
+		PooledFormEntity entity = new PooledFormEntity(pool);
+		try {
+			entity.setContentType(contentType);
+			latin1(entity, API_USER, username);
+			latin1(entity, API_KEY, password);
+			indexed(entity, TO, "to", false, email.getTos());
+			indexed(entity, TONAME, "toname", true, email.getToNames());
+			indexed(entity, CC, "cc", false, email.getCcs());
+			indexed(entity, BCC, "bcc", false, email.getBccs());
+			for (Map.Entry<String, ContentBody> entry: email.getAttachments().entrySet()) {
+				attachment(entity, entry.getKey(), entry.getValue());
+			}
+			if (email.getHeaders().size() > 0) {
+				latin1(entity, HEADERS, new JSONObject(email.getHeaders()).toString());
+			}
+			if (email.getFrom() != null && !email.getFrom().isEmpty()) {
+				latin1(entity, FROM, email.getFrom());
+			}
+			if (email.getFromName() != null && !email.getFromName().isEmpty()) {
+				utf8(entity, FROMNAME, email.getFromName());
+			}
+			if (email.getReplyTo() != null && !email.getReplyTo().isEmpty()) {
+				latin1(entity, REPLYTO, email.getReplyTo());
+			}
+			if (email.getSubject() != null && !email.getSubject().isEmpty()) {
+				utf8(entity, SUBJECT, email.getSubject());
+			}
+			if (email.getHtml() != null && !email.getHtml().isEmpty()) {
+				utf8(entity, HTML, email.getHtml());
+			}
+			if (email.getText() != null && !email.getText().isEmpty()) {
+				utf8(entity, TEXT, email.getText());
+			}
+			if (!email.getSMTPAPI().isEmpty()) {
+				entity.put(delimiter);
+				entity.put(XSMTPAPI);
+				entity.copy(email.getSMTPAPI().toContentBody());
+				entity.put(CRLF);
+			}
+			entity.put(closeDelimiter);
+			return entity;
+		} catch (RuntimeException e) {
+			entity.release();
+			throw e;
+		}
+	}
+	
+	private void latin1(PooledFormEntity entity, byte[] header, String value) {
+		entity.put(delimiter);
+		entity.put(header);
+		entity.latin1(value);
+		entity.put(CRLF);
+	}
+	
+	private void utf8(PooledFormEntity entity, byte[] header, String value) {
+		entity.put(delimiter);
+		entity.put(header);
+		entity.utf8(value);
+		entity.put(CRLF);
+	}
+	
+	private void indexed(PooledFormEntity entity, byte[][] table, String name, boolean utf8, String[] values) {
+		for (int i = 0; i < values.length; i++) {
+			byte[] header = i < TABLE_SIZE ? table[i] : indexedHeader(name, i, utf8);
+			if (utf8) {
+				utf8(entity, header, values[i]);
+			}
+			else {
+				latin1(entity, header, values[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Attachment part, headers as httpmime writes them for a content body.
+	 */
+	private void attachment(PooledFormEntity entity, String name, ContentBody body) {
+		entity.put(delimiter);
+		entity.ascii("Content-Disposition: form-data; name=\"files[");
+		entity.ascii(escape(name));
+		entity.ascii("]\"");
+		if (body.getFilename() != null) {
+			entity.ascii("; filename=\"");
+			entity.ascii(escape(body.getFilename()));
+			entity.ascii("\"");
+		}
+		entity.ascii("\r\nContent-Type: ");
+		entity.ascii(body.getMimeType());
+		if (body.getCharset() != null) {
+			entity.ascii("; charset=");
+			entity.ascii(body.getCharset());
+		}
+		if (body.getTransferEncoding() != null) {
+			entity.ascii("\r\nContent-Transfer-Encoding: ");
+			entity.ascii(body.getTransferEncoding());
+		}
+		entity.put(CRLF);
+		entity.put(CRLF);
+		entity.body(body);
+		entity.put(CRLF);
+	}
+	
+	/**
+	 * Quotes and backslashes escaped in a quoted header parameter.
+	 */
+	private static String escape(String value) {
+		if (value.indexOf('"') < 0 && value.indexOf('\\') < 0) {
+			return value;
+		}
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+	
+	public BufferPool getPool() {
+		return pool;
+	}
+
+}
@@ -0,0 +1,217 @@
+package org.helianto.sendgrid.message.sender.form;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * A multipart/form-data body encoded by {@link MultipartFormEncoder} into a pooled array.
+ * 
+ * Attachments are written from their own content between the array slices, so files keep
+ * streaming. Call {@link #release()} once the
+ * request is over; the body cannot be written afterwards.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class PooledFormEntity extends AbstractHttpEntity {
+	
+	private final BufferPool pool;
+	
+	private byte[] buffer;
+	
+	private int length;
+	
+	private ContentBody[] bodies;
+	
+	private int[] offsets;
+	
+	private int bodyCount;
+	
+	private long bodyLength;
+	
+	PooledFormEntity(BufferPool pool) {
+		super();
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+	
+	/**
+	 * Grow the array, leaving the smaller one to the collector so pooled arrays settle at the
+	 * size bodies need.
+	 */
+	void ensure(int extra) {
+		if (length + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+	}
+	
+	void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+	
+	/**
+	 * ISO-8859-1, characters outside it written as '?'.
+	 */
+	void latin1(String value) {
+		int size = value.length();
+		ensure(size);
+		for (int i = 0; i < size; i++) {
+			char c = value.charAt(i);
+			buffer[length++] = (byte) (c < 0x100 ? c : '?');
+		}
+	}
+	
+	/**
+	 * US-ASCII, as header values, characters outside it written as '?'.
+	 */
+	void ascii(String value) {
+		int size = value.length();
+		ensure(size);
+		for (int i = 0; i < size; i++) {
+			char c = value.charAt(i);
+			buffer[length++] = (byte) (c < 0x80 ? c : '?');
+		}
+	}
+	
+	/**
+	 * UTF-8, unpaired surrogates written as '?'.
+	 */
+	void utf8(String value) {
+		int size = value.length();
+		// at most three bytes per char, a surrogate pair takes four
+		ensure(size * 3);
+		for (int i = 0; i < size; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer[length++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				buffer[length++] = (byte) (0xc0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+			}
+			else if (Character.isSurrogate(c)) {
+				buffer[length++] = '?';
+			}
+			else {
+				buffer[length++] = (byte) (0xe0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[length++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+	
+	/**
+	 * Copy a small body into the array.
+	 */
+	void copy(ContentBody body) {
+		long size = body.getContentLength();
+		if (size > 0) {
+			ensure((int) size);
+		}
+		try {
+			body.writeTo(new OutputStream() {
+				public void write(int b) {
+					ensure(1);
+					buffer[length++] = (byte) b;
+				}
+				public void write(byte[] b, int off, int len) {
+					ensure(len);
+					System.arraycopy(b, off, buffer, length, len);
+					length += len;
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to copy an in memory body.", e);
+		}
+	}
+	
+	/**
+	 * Write a body here, from its own content.
+	 */
+	void body(ContentBody body) {
+		if (bodies==null) {
+			bodies = new ContentBody[4];
+			offsets = new int[4];
+		}
+		else if (bodyCount==bodies.length) {
+			bodies = Arrays.copyOf(bodies, bodyCount * 2);
+			offsets = Arrays.copyOf(offsets, bodyCount * 2);
+		}
+		bodies[bodyCount] = body;
+		offsets[bodyCount++] = length;
+		long size = body.getContentLength();
+		bodyLength = size < 0 || bodyLength < 0 ? -1 : bodyLength + size;
+	}
+	
+	public boolean isRepeatable() {
+		return bodyLength >= 0;
+	}
+	
+	public long getContentLength() {
+		return bodyLength < 0 ? -1 : length + bodyLength;
+	}
+	
+	/**
+	 * Unsupported, as for the httpmime multipart entity.
+	 */
+	public InputStream getContent() {
+		throw new UnsupportedOperationException("Multipart form entity does not implement #getContent()");
+	}
+	
+	public void writeTo(OutputStream out) throws IOException {
+		if (buffer==null) {
+			throw new IllegalStateException("Form body written after release.");
+		}
+		int position = 0;
+		for (int i = 0; i < bodyCount; i++) {
+			out.write(buffer, position, offsets[i] - position);
+			bodies[i].writeTo(out);
+			position = offsets[i];
+		}
+		out.write(buffer, position, length - position);
+	}
+	
+	public boolean isStreaming() {
+		return false;
+	}
+	
+	/**
+	 * The encoded bytes wrapped without copying, or null if some part is written from its own
+	 * content; valid until release.
+	 */
+	public HttpEntity toByteArrayEntity() {
+		if (bodyCount > 0) {
+			return null;
+		}
+		ByteArrayEntity entity = new ByteArrayEntity(buffer, 0, length);
+		entity.setContentType(getContentType());
+		return entity;
+	}
+	
+	/**
+	 * Return the array to the pool; later calls do nothing.
+	 */
+	public void release() {
+		if (buffer!=null) {
+			pool.release(buffer);
+			buffer = null;
+			bodies = null;
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.helianto.sendgrid.message.sender.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.SendGridMessageCodec;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches journaled messages to SendGrid in background threads.
+ *
+ * Callers only pay for the local journal append. Entries are acknowledged after a 200 response,
+ * a permanent rejection or a payload that cannot be decoded; any other outcome schedules the entry
+ * again after the retry delay, until the maximum attempts are reached and the entry is dropped, so
+ * that no entry pins its segment forever. Entries left pending by a previous run are dispatched first.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class JournalDispatcher implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(JournalDispatcher.class);
+
+	private final MailJournal journal;
+
+	private final SendGridSender sendGridSender;
+
+	private final int workerCount;
+
+	private final long retryDelay;
+
+	private int maxAttempts = 10;
+
+	private final BlockingQueue<MailJournal.Entry> queue = new LinkedBlockingQueue<>();
+
+	private final List<Thread> workers = new ArrayList<>();
+
+	private ScheduledExecutorService retryScheduler;
+
+	private volatile boolean running;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param journal
+	 * @param sendGridSender
+	 * @param workerCount
+	 * @param retryDelay in milliseconds
+	 */
+	public JournalDispatcher(MailJournal journal, SendGridSender sendGridSender, int workerCount, long retryDelay) {
+		super();
+		this.journal = journal;
+		this.sendGridSender = sendGridSender;
+		this.workerCount = Math.max(1, workerCount);
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Attempts before a failing entry is acknowledged without being sent, 10 by default.
+	 */
+	public JournalDispatcher setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		return this;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Replay pending entries and start the workers.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		queue.addAll(journal.replay());
+		retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sendgrid-journal-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::dispatchLoop, "sendgrid-journal-dispatcher-"+i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * Journal the message and queue it for dispatch.
+	 *
+	 * @param email
+	 * @return true if the message is durably journaled
+	 */
+	public boolean enqueue(SendGridMessageAdapter email) {
+		try {
+			queue.add(journal.append(SendGridMessageCodec.encode(email)));
+			return true;
+		} catch (IOException e) {
+			logger.warn("Unable to journal message: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Entries waiting for a worker.
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	private void dispatchLoop() {
+		while (running) {
+			MailJournal.Entry entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			dispatch(entry);
+		}
+	}
+
+	private void dispatch(final MailJournal.Entry entry) {
+		SendGridMessageAdapter email;
+		try {
+			email = SendGridMessageCodec.decode(entry.getPayload());
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to decode journaled message {}: {}", entry.getId(), e.toString());
+			journal.acknowledge(entry.getId());
+			return;
+		}
+		try {
+			Response response = sendGridSender.send(email);
+			int code = response.getCode();
+			if (code==200) {
+				journal.acknowledge(entry.getId());
+				return;
+			}
+			if (code>=400 && code<500 && code!=429) {
+				logger.warn("Journaled message {} rejected ({}): {}", entry.getId(), code, response.getMessage());
+				journal.acknowledge(entry.getId());
+				return;
+			}
+			logger.debug("Journaled message {} failed ({}).", entry.getId(), code);
+		} catch (Exception e) {
+			logger.warn("Unable to send journaled message {}: {}", entry.getId(), e.getMessage());
+		}
+		if (entry.nextAttempt()>=maxAttempts) {
+			logger.error("Journaled message {} dropped after {} attempts.", entry.getId(), maxAttempts);
+			journal.acknowledge(entry.getId());
+			return;
+		}
+		if (running) {
+			retryScheduler.schedule(() -> queue.add(entry), retryDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		running = false;
+		for (Thread worker: workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+		if (retryScheduler!=null) {
+			retryScheduler.shutdownNow();
+		}
+	}
+
+}
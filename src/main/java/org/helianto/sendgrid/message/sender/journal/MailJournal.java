@@ -0,0 +1,384 @@
+package org.helianto.sendgrid.message.sender.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, memory mapped journal of outbound messages.
+ *
+ * Records are appended to fixed size segment files and made durable by a single flusher thread,
+ * so concurrent appenders share one fsync (group commit). Each record carries a state byte flipped
+ * in place by {@link #acknowledge(long)}; once every record in a sealed segment is acknowledged,
+ * the segment file is deleted. Records still pending when the journal is opened are returned by
+ * {@link #replay()}.
+ *
+ * Record layout: payload length (int), state (byte), CRC32 of the payload (int), payload. A zero
+ * length marks the end of the segment.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class MailJournal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MailJournal.class);
+
+	private static final String SEGMENT_PREFIX = "journal-";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final int HEADER_SIZE = 9;
+
+	private static final byte PENDING = 1;
+
+	private static final byte DONE = 2;
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final long flushInterval;
+
+	private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+	private final List<Entry> replayed = new ArrayList<>();
+
+	private final Set<Segment> dirty = new LinkedHashSet<>();
+
+	private final Thread flusher;
+
+	private Segment active;
+
+	private long appended;
+
+	private long durable;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructor, recovers existing segments.
+	 *
+	 * @param directory
+	 * @param segmentSize segment file size in bytes
+	 * @param flushInterval maximum time in milliseconds before acknowledgements are flushed
+	 */
+	public MailJournal(File directory, int segmentSize, long flushInterval) throws IOException {
+		super();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory "+directory);
+		}
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Journal segment too small: "+segmentSize);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.flushInterval = Math.max(1, flushInterval);
+		int lastSequence = recover();
+		this.active = openSegment(lastSequence + 1);
+		this.flusher = new Thread(this::flushLoop, "sendgrid-journal-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Entries left pending by a previous run, in append order.
+	 */
+	public synchronized List<Entry> replay() {
+		return Collections.unmodifiableList(new ArrayList<>(replayed));
+	}
+
+	/**
+	 * Append a payload and wait until it is durable.
+	 *
+	 * @param payload
+	 * @return the entry, whose id is used to acknowledge it
+	 */
+	public Entry append(byte[] payload) throws IOException {
+		int recordSize = HEADER_SIZE + payload.length;
+		if (recordSize + 4 > segmentSize) {
+			throw new IllegalArgumentException("Message of "+payload.length+" bytes exceeds the journal segment size.");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		long sequence;
+		long id;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Journal closed.");
+			}
+			if (active.buffer.remaining() < recordSize + 4) {
+				roll();
+			}
+			MappedByteBuffer buffer = active.buffer;
+			int offset = buffer.position();
+			buffer.putInt(payload.length);
+			buffer.put(PENDING);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload);
+			active.pending.incrementAndGet();
+			dirty.add(active);
+			id = ((long) active.sequence << 32) | offset;
+			sequence = ++appended;
+			notifyAll();
+			while (durable < sequence && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for journal commit.");
+				}
+			}
+			if (durable < sequence) {
+				throw new IOException("Journal closed before commit.");
+			}
+		}
+		return new Entry(id, payload);
+	}
+
+	/**
+	 * Mark an entry done; fully acknowledged sealed segments are deleted.
+	 *
+	 * @param id
+	 */
+	public void acknowledge(long id) {
+		Segment segment = segments.get((int) (id >>> 32));
+		if (segment==null) {
+			return;
+		}
+		int stateIndex = (int) id + 4;
+		int pending;
+		synchronized (segment) {
+			if (segment.buffer.get(stateIndex)!=PENDING) {
+				return;
+			}
+			segment.buffer.put(stateIndex, DONE);
+			pending = segment.pending.decrementAndGet();
+		}
+		if (pending==0 && segment.sealed) {
+			compact(segment);
+		}
+		else {
+			synchronized (this) {
+				dirty.add(segment);
+			}
+		}
+	}
+
+	/**
+	 * Entries appended or replayed and not yet acknowledged.
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (Segment segment: segments.values()) {
+			count += segment.pending.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Number of segment files.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Segment segment: segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Called with the lock held.
+	 */
+	private void roll() throws IOException {
+		Segment previous = active;
+		active = openSegment(previous.sequence + 1);
+		previous.sealed = true;
+		if (previous.pending.get()==0) {
+			compact(previous);
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			Segment[] toFlush;
+			long target;
+			synchronized (this) {
+				if (appended==durable && !closed) {
+					try {
+						wait(flushInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed && appended==durable && dirty.isEmpty()) {
+					return;
+				}
+				target = appended;
+				toFlush = dirty.toArray(new Segment[dirty.size()]);
+				dirty.clear();
+			}
+			for (Segment segment: toFlush) {
+				if (segments.containsKey(segment.sequence)) {
+					segment.buffer.force();
+				}
+			}
+			synchronized (this) {
+				durable = target;
+				notifyAll();
+			}
+		}
+	}
+
+	private void compact(Segment segment) {
+		if (segments.remove(segment.sequence)==null) {
+			return;
+		}
+		if (!segment.file.delete()) {
+			logger.warn("Unable to delete journal segment {}", segment.file);
+		}
+		logger.debug("Compacted journal segment {}", segment.file);
+	}
+
+	private Segment openSegment(int sequence) throws IOException {
+		File file = new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+		Segment segment = new Segment(sequence, file, segmentSize);
+		segments.put(sequence, segment);
+		return segment;
+	}
+
+	/**
+	 * Scan existing segments, collecting pending records.
+	 *
+	 * @return the last segment sequence found, or zero
+	 */
+	private int recover() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files==null) {
+			return 0;
+		}
+		Arrays.sort(files);
+		int lastSequence = 0;
+		for (File file: files) {
+			String name = file.getName();
+			int sequence = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			lastSequence = Math.max(lastSequence, sequence);
+			Segment segment = new Segment(sequence, file, (int) file.length());
+			segment.sealed = true;
+			MappedByteBuffer buffer = segment.buffer;
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int offset = buffer.position();
+				int length = buffer.getInt();
+				if (length<=0 || length > buffer.remaining() - 5) {
+					break;
+				}
+				byte state = buffer.get();
+				int checksum = buffer.getInt();
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue()!=checksum) {
+					logger.warn("Journal segment {} truncated at {}.", file, offset);
+					break;
+				}
+				if (state==PENDING) {
+					segment.pending.incrementAndGet();
+					replayed.add(new Entry(((long) sequence << 32) | offset, payload));
+				}
+			}
+			segments.put(sequence, segment);
+			if (segment.pending.get()==0) {
+				compact(segment);
+			}
+		}
+		logger.info("Recovered {} pending messages from journal {}.", replayed.size(), directory);
+		return lastSequence;
+	}
+
+	/**
+	 * A journal entry.
+	 */
+	public static final class Entry {
+
+		private final long id;
+
+		private final byte[] payload;
+
+		private int attempts;
+
+		Entry(long id, byte[] payload) {
+			this.id = id;
+			this.payload = payload;
+		}
+
+		/**
+		 * Count one more dispatch attempt; attempts are kept in memory and start over on replay.
+		 */
+		int nextAttempt() {
+			return ++attempts;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+	}
+
+	private static final class Segment {
+
+		final int sequence;
+
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		final AtomicInteger pending = new AtomicInteger();
+
+		volatile boolean sealed;
+
+		Segment(int sequence, File file, int size) throws IOException {
+			this.sequence = sequence;
+			this.file = file;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+	}
+
+}
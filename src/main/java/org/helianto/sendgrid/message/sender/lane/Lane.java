@@ -0,0 +1,20 @@
+package org.helianto.sendgrid.message.sender.lane;
+
+/**
+ * Send priority.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public enum Lane {
+	
+	/**
+	 * Mail a user waits for, like confirmations and password resets.
+	 */
+	TRANSACTIONAL,
+	
+	/**
+	 * Notifications and other mail sent in bursts.
+	 */
+	BULK;
+
+}
@@ -0,0 +1,237 @@
+package org.helianto.sendgrid.message.sender.lane;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends messages through priority lanes.
+ * 
+ * Each lane has its own bounded queue, its own workers and its own sender, with a connection pool
+ * sized for those workers, so a burst queued in one lane never delays another. Time spent queued
+ * is recorded per lane. Messages for a lane that was not added go to the default lane.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class LaneDispatcher implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(LaneDispatcher.class);
+	
+	private final Map<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+	
+	private final SendGridMetrics metrics;
+	
+	private Lane defaultLane = Lane.BULK;
+	
+	private volatile boolean running;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param metrics
+	 */
+	public LaneDispatcher(SendGridMetrics metrics) {
+		super();
+		this.metrics = metrics==null ? NoOpSendGridMetrics.INSTANCE : metrics;
+	}
+	
+	/**
+	 * Add a lane; the dispatcher closes its sender.
+	 * 
+	 * @param lane
+	 * @param sender
+	 * @param workers sends running at once, keep within the sender connection pool size
+	 * @param queueCapacity messages waiting before further ones are rejected
+	 */
+	public synchronized LaneDispatcher addLane(Lane lane, SendGridSender sender, int workers, int queueCapacity) {
+		if (running) {
+			throw new IllegalStateException("Lanes must be added before start.");
+		}
+		if (workers < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Lane workers and queue capacity must be positive.");
+		}
+		lanes.put(lane, new LaneQueue(lane, sender, workers, queueCapacity));
+		return this;
+	}
+	
+	/**
+	 * Lane for messages sent to a lane that was not added, bulk by default.
+	 */
+	public LaneDispatcher setDefaultLane(Lane defaultLane) {
+		this.defaultLane = defaultLane;
+		return this;
+	}
+	
+	public Lane getDefaultLane() {
+		return defaultLane;
+	}
+	
+	/**
+	 * Start the workers.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (!lanes.containsKey(defaultLane)) {
+			throw new IllegalStateException("Default lane "+defaultLane+" was not added.");
+		}
+		running = true;
+		for (LaneQueue queue: lanes.values()) {
+			queue.start();
+		}
+		metrics.bind(this);
+		logger.info("Started SendGrid lanes {}.", lanes.keySet());
+	}
+	
+	/**
+	 * Queue a message in its lane.
+	 * 
+	 * @param lane
+	 * @param email
+	 * @return completes with the response, or exceptionally with {@link RejectedExecutionException}
+	 * when the lane queue is full
+	 */
+	public CompletableFuture<Response> submit(Lane lane, SendGridMessageAdapter email) {
+		LaneQueue queue = lanes.get(lane);
+		if (queue==null) {
+			queue = lanes.get(defaultLane);
+		}
+		Task task = new Task(email);
+		if (!running || !queue.queue.offer(task)) {
+			task.future.completeExceptionally(new RejectedExecutionException(running ? "SendGrid "+queue.lane+" lane full: "
+					+queue.capacity : "SendGrid lanes not running"));
+		}
+		return task.future;
+	}
+	
+	public Set<Lane> getLanes() {
+		return lanes.keySet();
+	}
+	
+	/**
+	 * Messages waiting in a lane.
+	 * 
+	 * @param lane
+	 */
+	public int getQueueDepth(Lane lane) {
+		LaneQueue queue = lanes.get(lane);
+		return queue==null ? 0 : queue.queue.size();
+	}
+	
+	/**
+	 * Sender of a lane, null if the lane was not added.
+	 * 
+	 * @param lane
+	 */
+	public SendGridSender getSender(Lane lane) {
+		LaneQueue queue = lanes.get(lane);
+		return queue==null ? null : queue.sender;
+	}
+	
+	/**
+	 * Stop the workers, reject queued messages and close the lane senders.
+	 */
+	public synchronized void close() throws IOException {
+		running = false;
+		for (LaneQueue queue: lanes.values()) {
+			queue.stop();
+		}
+		for (LaneQueue queue: lanes.values()) {
+			queue.sender.close();
+		}
+	}
+	
+	private final class LaneQueue {
+		
+		final Lane lane;
+		
+		final SendGridSender sender;
+		
+		final int workerCount;
+		
+		final int capacity;
+		
+		final BlockingQueue<Task> queue;
+		
+		final List<Thread> workers = new ArrayList<>();
+		
+		LaneQueue(Lane lane, SendGridSender sender, int workerCount, int capacity) {
+			this.lane = lane;
+			this.sender = sender;
+			this.workerCount = workerCount;
+			this.capacity = capacity;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+		}
+		
+		void start() {
+			for (int i = 0; i < workerCount; i++) {
+				Thread worker = new Thread(this::dispatchLoop, "sendgrid-lane-"+lane.name().toLowerCase(Locale.ROOT)+"-"+i);
+				worker.setDaemon(true);
+				worker.start();
+				workers.add(worker);
+			}
+		}
+		
+		private void dispatchLoop() {
+			while (running) {
+				Task task;
+				try {
+					task = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				metrics.recordLaneWait(lane.name(), System.nanoTime() - task.queued);
+				try {
+					task.future.complete(sender.send(task.email));
+				} catch (Exception e) {
+					task.future.completeExceptionally(e);
+				}
+			}
+		}
+		
+		void stop() {
+			for (Thread worker: workers) {
+				worker.interrupt();
+			}
+			workers.clear();
+			Task task;
+			while ((task = queue.poll())!=null) {
+				task.future.completeExceptionally(new RejectedExecutionException("SendGrid lanes closed"));
+			}
+		}
+	
+	}
+	
+	private static final class Task {
+		
+		final SendGridMessageAdapter email;
+		
+		final long queued = System.nanoTime();
+		
+		final CompletableFuture<Response> future = new CompletableFuture<>();
+		
+		Task(SendGridMessageAdapter email) {
+			this.email = email;
+		}
+	
+	}
+
+}
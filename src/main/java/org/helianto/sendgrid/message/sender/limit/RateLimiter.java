@@ -0,0 +1,171 @@
+package org.helianto.sendgrid.message.sender.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free token bucket.
+ * 
+ * Implemented as the equivalent generic cell rate algorithm: a single atomic theoretical arrival 
+ * time replaces the token count and the refill timestamp, so a permit costs one compare-and-set.
+ * Permits are refilled at a steady rate and up to burst permits may be taken at once. Callers of
+ * different priorities draw on one bucket through {@link #share(int)}.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class RateLimiter {
+	
+	private final double permitsPerSecond;
+	
+	private final int burst;
+	
+	private final long interval;
+	
+	private final long tolerance;
+	
+	private final AtomicLong theoreticalArrival;
+	
+	private final LongAdder acquired = new LongAdder();
+	
+	private final LongAdder rejected = new LongAdder();
+	
+	private final LongAdder waitNanos = new LongAdder();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param permitsPerSecond
+	 * @param burst maximum permits taken at once
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		super();
+		if (permitsPerSecond <= 0 || burst < 1) {
+			throw new IllegalArgumentException("Rate and burst must be positive.");
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.tolerance = interval * (burst - 1);
+		this.theoreticalArrival = new AtomicLong(System.nanoTime() - tolerance);
+	}
+	
+	/**
+	 * Limiter drawing on the same bucket, with counters of its own.
+	 */
+	private RateLimiter(RateLimiter bucket, int burst) {
+		super();
+		this.permitsPerSecond = bucket.permitsPerSecond;
+		this.burst = burst;
+		this.interval = bucket.interval;
+		this.tolerance = interval * (burst - 1);
+		this.theoreticalArrival = bucket.theoreticalArrival;
+	}
+	
+	/**
+	 * Limiter sharing this bucket and its rate, for callers of lower priority: it leaves the last
+	 * reserved permits of the burst to the other callers of the bucket.
+	 * 
+	 * @param reserved permits it may not take, zero to share the bucket as is
+	 */
+	public RateLimiter share(int reserved) {
+		if (reserved < 0 || reserved >= burst) {
+			throw new IllegalArgumentException("Reserved permits must be below the burst of "+burst+".");
+		}
+		return new RateLimiter(this, burst - reserved);
+	}
+	
+	/**
+	 * Take a permit only if one is available now.
+	 */
+	public boolean tryAcquire() {
+		return record(reserve(0));
+	}
+	
+	/**
+	 * Take a permit, waiting up to the timeout; gives up at once if the wait would exceed the timeout.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 */
+	public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long wait = reserve(unit.toNanos(timeout));
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		return record(wait);
+	}
+	
+	/**
+	 * Reserve a permit available within the maximum wait, for callers that schedule instead of sleep.
+	 * 
+	 * @param maxWaitNanos
+	 * @return the wait in nanoseconds before the permit may be used, or -1 if rejected
+	 */
+	public long tryReserve(long maxWaitNanos) {
+		long wait = reserve(maxWaitNanos);
+		record(wait);
+		return wait;
+	}
+	
+	private long reserve(long maxWaitNanos) {
+		while (true) {
+			long now = System.nanoTime();
+			long arrival = theoreticalArrival.get();
+			long wait = Math.max(0, arrival - tolerance - now);
+			if (wait > maxWaitNanos) {
+				return -1;
+			}
+			if (theoreticalArrival.compareAndSet(arrival, Math.max(arrival, now) + interval)) {
+				return wait;
+			}
+		}
+	}
+	
+	private boolean record(long wait) {
+		if (wait < 0) {
+			rejected.increment();
+			return false;
+		}
+		acquired.increment();
+		waitNanos.add(wait);
+		return true;
+	}
+	
+	/**
+	 * Wait before the next permit, in nanoseconds, zero if one is available now; takes no permit.
+	 */
+	public long getWaitNanos() {
+		return Math.max(0, theoreticalArrival.get() - tolerance - System.nanoTime());
+	}
+	
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+	
+	public int getBurst() {
+		return burst;
+	}
+	
+	/**
+	 * Permits granted so far.
+	 */
+	public long getAcquiredCount() {
+		return acquired.sum();
+	}
+	
+	/**
+	 * Permits refused so far.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+	
+	/**
+	 * Total time spent waiting for granted permits, in nanoseconds.
+	 */
+	public long getTotalWaitNanos() {
+		return waitNanos.sum();
+	}
+
+}
@@ -0,0 +1,227 @@
+package org.helianto.sendgrid.message.sender.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.pool.PoolStats;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.helianto.sendgrid.message.sender.lane.LaneDispatcher;
+import org.helianto.sendgrid.message.sender.limit.RateLimiter;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+import org.helianto.sendgrid.message.sender.retry.CircuitBreaker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer binding.
+ * 
+ * Send latency is published as a histogram with p50, p95 and p99, tagged by template and response 
+ * code, so per template tail latency and error rate can be alerted on.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class MicrometerSendGridMetrics implements SendGridMetrics {
+	
+	private static final String NO_TEMPLATE = "none";
+	
+	private final MeterRegistry registry;
+	
+	private final ConcurrentMap<String, Timer> sendTimers = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, Counter> exceptionCounters = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, Timer> laneWaitTimers = new ConcurrentHashMap<>();
+	
+	private final ConcurrentMap<String, Counter> hedgeCounters = new ConcurrentHashMap<>();
+	
+	private final DistributionSummary bodySize;
+	
+	private final DistributionSummary recipients;
+	
+	private final Timer poolWait;
+	
+	private final Timer enqueue;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param registry
+	 */
+	public MicrometerSendGridMetrics(MeterRegistry registry) {
+		super();
+		this.registry = registry;
+		this.bodySize = DistributionSummary.builder("sendgrid.body.size")
+				.baseUnit("bytes")
+				.description("SendGrid request body size")
+				.register(registry);
+		this.recipients = DistributionSummary.builder("sendgrid.recipients")
+				.description("Recipients per SendGrid request")
+				.register(registry);
+		this.poolWait = Timer.builder("sendgrid.pool.wait")
+				.description("Time waiting for a pooled SendGrid connection")
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(registry);
+		this.enqueue = Timer.builder("sendgrid.queue.enqueue")
+				.description("Time to add a message to the SendGrid send queue")
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(registry);
+	}
+	
+	/**
+	 * Connection gauges and rate limiter meters are tagged by account and lane, lanes counting
+	 * permits on their own share of the account limiter; the circuit breaker gauge by account only,
+	 * as lanes share the breaker of their account and register it once.
+	 */
+	public void bind(SendGridSender sender) {
+		Tags tags = Tags.of("account", sender.getAccount(), "lane", sender.getLane());
+		Gauge.builder("sendgrid.requests.inflight", sender, SendGridSender::getInFlight)
+			.description("Async SendGrid requests in flight")
+			.tags(tags)
+			.register(registry);
+		Gauge.builder("sendgrid.pool.leased", sender, s -> poolStat(s, 0)).tags(tags).register(registry);
+		Gauge.builder("sendgrid.pool.pending", sender, s -> poolStat(s, 1)).tags(tags).register(registry);
+		Gauge.builder("sendgrid.pool.available", sender, s -> poolStat(s, 2)).tags(tags).register(registry);
+		Tags accountTags = Tags.of("account", sender.getAccount());
+		CircuitBreaker circuitBreaker = sender.getCircuitBreaker();
+		if (circuitBreaker!=null) {
+			Gauge.builder("sendgrid.breaker.open", circuitBreaker, b -> b.getState()!=CircuitBreaker.State.CLOSED ? 1 : 0)
+				.description("1 while the SendGrid circuit breaker rejects requests")
+				.tags(accountTags)
+				.register(registry);
+		}
+		RateLimiter rateLimiter = sender.getRateLimiter();
+		if (rateLimiter!=null) {
+			FunctionCounter.builder("sendgrid.ratelimit.acquired", rateLimiter, RateLimiter::getAcquiredCount)
+				.tags(tags)
+				.register(registry);
+			FunctionCounter.builder("sendgrid.ratelimit.rejected", rateLimiter, RateLimiter::getRejectedCount)
+				.tags(tags)
+				.register(registry);
+			FunctionCounter.builder("sendgrid.ratelimit.wait", rateLimiter, l -> l.getTotalWaitNanos() / 1e9)
+				.baseUnit("seconds")
+				.tags(tags)
+				.register(registry);
+		}
+	}
+	
+	public void bind(LaneDispatcher dispatcher) {
+		for (final Lane lane: dispatcher.getLanes()) {
+			String tag = lane.name().toLowerCase(Locale.ROOT);
+			Gauge.builder("sendgrid.lane.queue.depth", dispatcher, d -> d.getQueueDepth(lane))
+				.description("Messages waiting in a SendGrid lane")
+				.tag("lane", tag)
+				.register(registry);
+			Gauge.builder("sendgrid.lane.pool.leased", dispatcher, d -> poolStat(d.getSender(lane), 0)).tag("lane", tag).register(registry);
+			Gauge.builder("sendgrid.lane.pool.pending", dispatcher, d -> poolStat(d.getSender(lane), 1)).tag("lane", tag).register(registry);
+		}
+	}
+	
+	public void bind(SendQueue queue) {
+		for (final Lane lane: Lane.values()) {
+			Gauge.builder("sendgrid.queue.depth", queue, q -> q.getQueueDepth(lane))
+				.description("Messages waiting in the SendGrid send queue")
+				.tag("lane", lane.name().toLowerCase(Locale.ROOT))
+				.register(registry);
+		}
+		FunctionCounter.builder("sendgrid.queue.rejected", queue, SendQueue::getRejectedCount)
+			.description("Messages rejected or dropped by the SendGrid send queue")
+			.register(registry);
+		FunctionCounter.builder("sendgrid.queue.dropped", queue, SendQueue::getDroppedCount).register(registry);
+		FunctionCounter.builder("sendgrid.queue.spilled", queue, SendQueue::getSpilledCount).register(registry);
+	}
+	
+	public void bind(SendGridSenderPool pool) {
+		for (SendGridSenderPool.Account account: pool.getAccounts()) {
+			Gauge.builder("sendgrid.account.healthy", account, a -> a.isHealthy() ? 1 : 0)
+				.description("1 while the SendGrid account is in rotation")
+				.tag("account", account.getName())
+				.register(registry);
+			Gauge.builder("sendgrid.account.outstanding", account, SendGridSenderPool.Account::getOutstanding)
+				.description("Requests sent through the SendGrid account and not answered yet")
+				.tag("account", account.getName())
+				.register(registry);
+		}
+	}
+	
+	private static double poolStat(SendGridSender sender, int stat) {
+		PoolStats stats = sender.getPoolStats();
+		if (stats==null) {
+			return 0;
+		}
+		switch (stat) {
+		case 0: return stats.getLeased();
+		case 1: return stats.getPending();
+		default: return stats.getAvailable();
+		}
+	}
+	
+	public void recordSend(String templateName, int responseCode, long durationNanos) {
+		final String template = templateName==null ? NO_TEMPLATE : templateName;
+		final String code = Integer.toString(responseCode);
+		sendTimers.computeIfAbsent(template+':'+code, key -> Timer.builder("sendgrid.send")
+				.description("SendGrid request latency")
+				.tag("template", template)
+				.tag("code", code)
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.publishPercentileHistogram()
+				.register(registry))
+			.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public void recordBodySize(long bytes) {
+		bodySize.record(bytes);
+	}
+	
+	public void recordRecipients(int count) {
+		recipients.record(count);
+	}
+	
+	public void recordPoolWait(long durationNanos) {
+		poolWait.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public void recordLaneWait(final String lane, long durationNanos) {
+		laneWaitTimers.computeIfAbsent(lane, key -> Timer.builder("sendgrid.lane.wait")
+				.description("Time waiting in a SendGrid lane queue")
+				.tag("lane", lane.toLowerCase(Locale.ROOT))
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(registry))
+			.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public void recordEnqueue(long durationNanos) {
+		enqueue.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public void recordHedge(String templateName, boolean won) {
+		final String template = templateName==null ? NO_TEMPLATE : templateName;
+		final String outcome = won ? "won" : "lost";
+		hedgeCounters.computeIfAbsent(template+':'+outcome, key -> Counter.builder("sendgrid.hedge")
+				.description("Second attempts of hedged SendGrid sends, by which answered first")
+				.tag("template", template)
+				.tag("outcome", outcome)
+				.register(registry))
+			.increment();
+	}
+	
+	public void recordException(String templateName, Throwable exception) {
+		final String template = templateName==null ? NO_TEMPLATE : templateName;
+		final String type = exception.getClass().getSimpleName();
+		exceptionCounters.computeIfAbsent(template+':'+type, key -> Counter.builder("sendgrid.exceptions")
+				.tag("template", template)
+				.tag("exception", type)
+				.register(registry))
+			.increment();
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.helianto.sendgrid.message.sender.metrics;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.lane.LaneDispatcher;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+
+/**
+ * Records nothing.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class NoOpSendGridMetrics implements SendGridMetrics {
+	
+	public static final NoOpSendGridMetrics INSTANCE = new NoOpSendGridMetrics();
+	
+	private NoOpSendGridMetrics() {
+	}
+	
+	public void bind(SendGridSender sender) {
+	}
+	
+	public void bind(LaneDispatcher dispatcher) {
+	}
+	
+	public void bind(SendQueue queue) {
+	}
+	
+	public void bind(SendGridSenderPool pool) {
+	}
+	
+	public void recordSend(String templateName, int responseCode, long durationNanos) {
+	}
+	
+	public void recordBodySize(long bytes) {
+	}
+	
+	public void recordRecipients(int recipients) {
+	}
+	
+	public void recordPoolWait(long durationNanos) {
+	}
+	
+	public void recordLaneWait(String lane, long durationNanos) {
+	}
+	
+	public void recordEnqueue(long durationNanos) {
+	}
+	
+	public void recordHedge(String templateName, boolean won) {
+	}
+	
+	public void recordException(String templateName, Throwable exception) {
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.helianto.sendgrid.message.sender.metrics;
+
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.account.SendGridSenderPool;
+import org.helianto.sendgrid.message.sender.lane.LaneDispatcher;
+import org.helianto.sendgrid.message.sender.queue.SendQueue;
+
+/**
+ * Metrics recorded along the SendGrid send path.
+ * 
+ * Implementations must be thread safe and cheap; {@link NoOpSendGridMetrics} is the default and
+ * {@link MicrometerSendGridMetrics} binds to a Micrometer registry.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public interface SendGridMetrics {
+	
+	/**
+	 * Register gauges for the sender state (connection pool, rate limiter, circuit breaker).
+	 * 
+	 * @param sender
+	 */
+	void bind(SendGridSender sender);
+	
+	/**
+	 * Register gauges for the lane queues and connection pools.
+	 * 
+	 * @param dispatcher
+	 */
+	void bind(LaneDispatcher dispatcher);
+	
+	/**
+	 * Register gauges and counters for the send queue depth and rejections.
+	 * 
+	 * @param queue
+	 */
+	void bind(SendQueue queue);
+	
+	/**
+	 * Register gauges for the health and load of each account.
+	 * 
+	 * @param pool
+	 */
+	void bind(SendGridSenderPool pool);
+	
+	/**
+	 * One HTTP request to SendGrid.
+	 * 
+	 * @param templateName null if not sent from a template
+	 * @param responseCode
+	 * @param durationNanos
+	 */
+	void recordSend(String templateName, int responseCode, long durationNanos);
+	
+	/**
+	 * Request body size.
+	 * 
+	 * @param bytes
+	 */
+	void recordBodySize(long bytes);
+	
+	/**
+	 * Recipients in one request.
+	 * 
+	 * @param recipients
+	 */
+	void recordRecipients(int recipients);
+	
+	/**
+	 * Time waiting for a pooled connection.
+	 * 
+	 * @param durationNanos
+	 */
+	void recordPoolWait(long durationNanos);
+	
+	/**
+	 * Time a message waited in its lane queue.
+	 * 
+	 * @param lane
+	 * @param durationNanos
+	 */
+	void recordLaneWait(String lane, long durationNanos);
+	
+	/**
+	 * Time to add a message to the send queue, waits for room included.
+	 * 
+	 * @param durationNanos
+	 */
+	void recordEnqueue(long durationNanos);
+	
+	/**
+	 * Second attempt of a hedged send, once settled.
+	 * 
+	 * @param templateName null if not sent from a template
+	 * @param won true if the second attempt answered first
+	 */
+	void recordHedge(String templateName, boolean won);
+	
+	/**
+	 * Exception on the send path.
+	 * 
+	 * @param templateName null if not sent from a template
+	 * @param exception
+	 */
+	void recordException(String templateName, Throwable exception);
+
+}
@@ -0,0 +1,322 @@
+package org.helianto.sendgrid.message.sender.outbox;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.SendGridMessageCodec;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Outbound mail table.
+ * 
+ * Messages are inserted through the data source of the caller, so they commit or roll back with
+ * the business change when the caller runs in a Spring managed transaction. Dispatchers on every
+ * node claim batches of pending rows for a lease, send them and mark them done or failed, or
+ * release them for a later attempt, until the maximum attempts are reached and they fail.
+ * 
+ * Rows are claimed either with SELECT ... FOR UPDATE SKIP LOCKED, when the database supports it,
+ * or by a conditional update of the lease columns, each row going to the claim that updates it
+ * first. A row is sent again only if its lease expires before the outcome is recorded, so the
+ * lease must outlast a send with its retries.
+ * 
+ * The schema is in META-INF/sendgrid-outbox.sql.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class MailOutbox {
+	
+	public static final int PENDING = 0;
+	
+	public static final int DONE = 1;
+	
+	public static final int FAILED = 2;
+	
+	/**
+	 * Outbox table name.
+	 */
+	protected String tableName = "sendgrid_outbox";
+	
+	/**
+	 * Appended to the claim query to cap the batch; LIMIT works with H2, MySQL and PostgreSQL.
+	 */
+	protected String limitClause = " LIMIT ?";
+	
+	private final JdbcTemplate jdbcTemplate;
+	
+	private final TransactionTemplate transactionTemplate;
+	
+	private final boolean skipLocked;
+	
+	private int maxAttempts = 10;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param dataSource
+	 * @param skipLocked true if the database supports FOR UPDATE SKIP LOCKED
+	 */
+	public MailOutbox(DataSource dataSource, boolean skipLocked) {
+		super();
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		this.skipLocked = skipLocked;
+	}
+	
+	/**
+	 * Attempts before a row released for another one is marked failed instead, 10 by default.
+	 */
+	public MailOutbox setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		return this;
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	/**
+	 * Insert a message, within the current transaction if any.
+	 * 
+	 * @param email
+	 */
+	public void add(SendGridMessageAdapter email) throws IOException {
+		long now = System.currentTimeMillis();
+		jdbcTemplate.update("INSERT INTO "+tableName+" (payload, status, attempts, available_at, created) VALUES (?, ?, 0, ?, ?)"
+				, SendGridMessageCodec.encode(email), PENDING, now, now);
+	}
+	
+	/**
+	 * Claim pending rows, oldest first.
+	 * 
+	 * @param owner claim owner, unique among running dispatchers
+	 * @param batchSize maximum rows claimed
+	 * @param lease time the rows stay claimed, in milliseconds
+	 */
+	public List<Entry> claim(final String owner, final int batchSize, final long lease) {
+		final long now = System.currentTimeMillis();
+		List<Long> ids = skipLocked
+				? transactionTemplate.execute(status -> lease(owner, batchSize, now, lease))
+				: lease(owner, batchSize, now, lease);
+		if (ids.isEmpty()) {
+			return Collections.<Entry>emptyList();
+		}
+		// payloads are read once claimed, sorting candidates with their payloads is far slower
+		StringBuilder query = new StringBuilder("SELECT id, payload, attempts FROM ").append(tableName)
+				.append(" WHERE lease_owner = ? AND id IN (?");
+		for (int i = 1; i < ids.size(); i++) {
+			query.append(", ?");
+		}
+		List<Object> args = new ArrayList<>(ids.size() + 1);
+		args.add(owner);
+		args.addAll(ids);
+		return jdbcTemplate.query(query.append(") ORDER BY id").toString(), ENTRY_MAPPER, args.toArray());
+	}
+	
+	/**
+	 * Select candidate ids and set the lease on those still pending.
+	 */
+	private List<Long> lease(final String owner, int batchSize, final long now, final long lease) {
+		// ordered like the claim index, so the database reads the first rows instead of sorting them all
+		final List<Long> candidates = jdbcTemplate.queryForList("SELECT id FROM "+tableName
+				+" WHERE status = ? AND available_at <= ? ORDER BY status, id"+limitClause
+				+(skipLocked ? " FOR UPDATE SKIP LOCKED" : ""), Long.class, PENDING, now, batchSize);
+		if (candidates.isEmpty()) {
+			return candidates;
+		}
+		// rows are locked with SKIP LOCKED; otherwise the update condition decides the claim
+		int[] counts = jdbcTemplate.batchUpdate("UPDATE "+tableName+" SET lease_owner = ?, available_at = ?"
+				+" WHERE id = ? AND status = ? AND available_at <= ?", new BatchPreparedStatementSetter() {
+					public void setValues(PreparedStatement ps, int i) throws SQLException {
+						ps.setString(1, owner);
+						ps.setLong(2, now + lease);
+						ps.setLong(3, candidates.get(i));
+						ps.setInt(4, PENDING);
+						ps.setLong(5, now);
+					}
+					public int getBatchSize() {
+						return candidates.size();
+					}
+				});
+		List<Long> claimed = new ArrayList<>(candidates.size());
+		for (int i = 0; i < counts.length; i++) {
+			// some drivers report success without a count
+			if (counts[i]!=0) {
+				claimed.add(candidates.get(i));
+			}
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Mark rows sent.
+	 * 
+	 * @param owner
+	 * @param entries
+	 */
+	public void complete(String owner, List<Entry> entries) {
+		finish(owner, entries, DONE);
+	}
+	
+	/**
+	 * Mark rows permanently rejected.
+	 * 
+	 * @param owner
+	 * @param entries
+	 */
+	public void fail(String owner, List<Entry> entries) {
+		finish(owner, entries, FAILED);
+	}
+	
+	private void finish(final String owner, List<Entry> entries, final int status) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		jdbcTemplate.batchUpdate("UPDATE "+tableName+" SET status = ?, lease_owner = NULL WHERE id = ? AND lease_owner = ?"
+				, new EntrySetter(entries) {
+					protected void setValues(PreparedStatement ps, Entry entry) throws SQLException {
+						ps.setInt(1, status);
+						ps.setLong(2, entry.getId());
+						ps.setString(3, owner);
+					}
+				});
+	}
+	
+	/**
+	 * Release rows for another attempt, or mark failed those reaching the maximum attempts.
+	 * 
+	 * @param owner
+	 * @param entries
+	 * @param delay before the next attempt, in milliseconds
+	 */
+	public void retry(final String owner, List<Entry> entries, long delay) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		final long availableAt = System.currentTimeMillis() + delay;
+		// status first, MySQL reads columns already assigned by the same statement
+		jdbcTemplate.batchUpdate("UPDATE "+tableName+" SET status = CASE WHEN attempts + 1 >= ? THEN ? ELSE status END"
+				+", attempts = attempts + 1, available_at = ?, lease_owner = NULL"
+				+" WHERE id = ? AND lease_owner = ?", new EntrySetter(entries) {
+					protected void setValues(PreparedStatement ps, Entry entry) throws SQLException {
+						ps.setInt(1, maxAttempts);
+						ps.setInt(2, FAILED);
+						ps.setLong(3, availableAt);
+						ps.setLong(4, entry.getId());
+						ps.setString(5, owner);
+					}
+				});
+	}
+	
+	/**
+	 * Release rows not sent at all, as those rejected locally, without counting an attempt.
+	 * 
+	 * @param owner
+	 * @param entries
+	 * @param delay before the next attempt, in milliseconds
+	 */
+	public void release(final String owner, List<Entry> entries, long delay) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		final long availableAt = System.currentTimeMillis() + delay;
+		jdbcTemplate.batchUpdate("UPDATE "+tableName+" SET available_at = ?, lease_owner = NULL"
+				+" WHERE id = ? AND lease_owner = ?", new EntrySetter(entries) {
+					protected void setValues(PreparedStatement ps, Entry entry) throws SQLException {
+						ps.setLong(1, availableAt);
+						ps.setLong(2, entry.getId());
+						ps.setString(3, owner);
+					}
+				});
+	}
+	
+	/**
+	 * Delete sent rows created before the given time.
+	 * 
+	 * @param before epoch milliseconds
+	 * @return rows deleted
+	 */
+	public int purge(long before) {
+		return jdbcTemplate.update("DELETE FROM "+tableName+" WHERE status = ? AND created < ?", DONE, before);
+	}
+	
+	/**
+	 * Rows with the given status.
+	 * 
+	 * @param status
+	 */
+	public long count(int status) {
+		return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM "+tableName+" WHERE status = ?", Long.class, status);
+	}
+	
+	public boolean isSkipLocked() {
+		return skipLocked;
+	}
+	
+	private static final RowMapper<Entry> ENTRY_MAPPER = (rs, rowNum) -> new Entry(rs.getLong(1), rs.getBytes(2), rs.getInt(3));
+	
+	private abstract static class EntrySetter implements BatchPreparedStatementSetter {
+		
+		private final List<Entry> entries;
+		
+		EntrySetter(List<Entry> entries) {
+			this.entries = entries;
+		}
+		
+		public void setValues(PreparedStatement ps, int i) throws SQLException {
+			setValues(ps, entries.get(i));
+		}
+		
+		public int getBatchSize() {
+			return entries.size();
+		}
+		
+		protected abstract void setValues(PreparedStatement ps, Entry entry) throws SQLException;
+	
+	}
+	
+	/**
+	 * Claimed row.
+	 */
+	public static final class Entry {
+		
+		private final long id;
+		
+		private final byte[] payload;
+		
+		private final int attempts;
+		
+		Entry(long id, byte[] payload, int attempts) {
+			this.id = id;
+			this.payload = payload;
+			this.attempts = attempts;
+		}
+		
+		public long getId() {
+			return id;
+		}
+		
+		public byte[] getPayload() {
+			return payload;
+		}
+		
+		/**
+		 * Previous attempts.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+	
+	}
+
+}
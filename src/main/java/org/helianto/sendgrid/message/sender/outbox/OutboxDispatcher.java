@@ -0,0 +1,220 @@
+package org.helianto.sendgrid.message.sender.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.helianto.sendgrid.message.SendGridMessageCodec;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches outbox rows to SendGrid in background threads.
+ * 
+ * Each worker claims a batch, sends it through the async client, never more at once than its
+ * share of the sender in flight limit, and records the outcomes with one batched update per
+ * outcome: done after a 200 response, failed after a permanent rejection, released for a later
+ * attempt otherwise, up to the outbox maximum attempts. Rows the sender rejects locally, having
+ * reached no server, are released without counting an attempt. Workers sleep for the poll
+ * interval while the outbox is empty.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class OutboxDispatcher implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(OutboxDispatcher.class);
+	
+	private final MailOutbox outbox;
+	
+	private final SendGridSender sendGridSender;
+	
+	private final int workerCount;
+	
+	private int batchSize = 32;
+	
+	private long lease = 300000;
+	
+	private long pollInterval = 500;
+	
+	private long retryDelay = 30000;
+	
+	private final List<Thread> workers = new ArrayList<>();
+	
+	private volatile boolean running;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param outbox
+	 * @param sendGridSender
+	 * @param workerCount
+	 */
+	public OutboxDispatcher(MailOutbox outbox, SendGridSender sendGridSender, int workerCount) {
+		super();
+		this.outbox = outbox;
+		this.sendGridSender = sendGridSender;
+		this.workerCount = Math.max(1, workerCount);
+	}
+	
+	/**
+	 * Rows claimed at once by a worker, 32 by default; a larger batch is sent in windows of the
+	 * worker share of the sender in flight limit.
+	 */
+	public OutboxDispatcher setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+	
+	/**
+	 * Time claimed rows stay with a worker, in milliseconds, 5 minutes by default.
+	 */
+	public OutboxDispatcher setLease(long lease) {
+		this.lease = lease;
+		return this;
+	}
+	
+	/**
+	 * Wait while the outbox is empty, in milliseconds.
+	 */
+	public OutboxDispatcher setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+		return this;
+	}
+	
+	/**
+	 * Wait before another attempt after a transient failure, in milliseconds.
+	 */
+	public OutboxDispatcher setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+		return this;
+	}
+	
+	/**
+	 * Start the workers.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		// unique per worker across the cluster, a restarted node must not own its previous leases
+		String node = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		for (int i = 0; i < workerCount; i++) {
+			final String owner = node+"-"+i;
+			Thread worker = new Thread(() -> dispatchLoop(owner), "sendgrid-outbox-dispatcher-"+i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+	
+	private void dispatchLoop(String owner) {
+		while (running) {
+			try {
+				if (dispatch(owner)==0) {
+					Thread.sleep(pollInterval);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				logger.warn("Unable to dispatch outbox: {}", e.getMessage());
+				try {
+					Thread.sleep(pollInterval);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Claim, send and record one batch.
+	 * 
+	 * @param owner
+	 * @return the number of rows claimed
+	 */
+	int dispatch(String owner) {
+		List<MailOutbox.Entry> entries = outbox.claim(owner, batchSize, lease);
+		if (entries.isEmpty()) {
+			return 0;
+		}
+		List<MailOutbox.Entry> done = new ArrayList<>(entries.size());
+		List<MailOutbox.Entry> failed = new ArrayList<>();
+		List<MailOutbox.Entry> retries = new ArrayList<>();
+		List<MailOutbox.Entry> released = new ArrayList<>();
+		// workers share the sender in flight limit, a wider window is rejected locally
+		int window = Math.max(1, sendGridSender.getMaxInFlight() / workerCount);
+		List<CompletableFuture<Response>> responses = new ArrayList<>(Math.min(window, entries.size()));
+		for (int start = 0; start < entries.size(); start += window) {
+			List<MailOutbox.Entry> sent = entries.subList(start, Math.min(start + window, entries.size()));
+			responses.clear();
+			for (MailOutbox.Entry entry: sent) {
+				try {
+					responses.add(sendGridSender.sendAsync(SendGridMessageCodec.decode(entry.getPayload())));
+				} catch (IOException e) {
+					logger.warn("Unable to decode outbox row {}: {}", entry.getId(), e.getMessage());
+					responses.add(null);
+				}
+			}
+			for (int i = 0; i < sent.size(); i++) {
+				MailOutbox.Entry entry = sent.get(i);
+				CompletableFuture<Response> response = responses.get(i);
+				if (response==null) {
+					failed.add(entry);
+					continue;
+				}
+				int code;
+				try {
+					code = response.join().getCode();
+				} catch (CompletionException e) {
+					logger.debug("Outbox row {} not sent: {}", entry.getId(), e.getMessage());
+					(e.getCause() instanceof RejectedExecutionException ? released : retries).add(entry);
+					continue;
+				} catch (RuntimeException e) {
+					logger.debug("Outbox row {} not sent: {}", entry.getId(), e.getMessage());
+					retries.add(entry);
+					continue;
+				}
+				if (code==200) {
+					done.add(entry);
+				}
+				else if (code>=400 && code<500 && code!=429) {
+					logger.warn("Outbox row {} rejected ({}).", entry.getId(), code);
+					failed.add(entry);
+				}
+				else {
+					retries.add(entry);
+				}
+			}
+		}
+		outbox.complete(owner, done);
+		outbox.fail(owner, failed);
+		outbox.retry(owner, retries, retryDelay);
+		outbox.release(owner, released, pollInterval);
+		return entries.size();
+	}
+	
+	public synchronized void close() throws IOException {
+		running = false;
+		for (Thread worker: workers) {
+			try {
+				// not interrupted, the batch in flight is sent already and its outcome must be recorded;
+				// some drivers also close the connection of an interrupted thread
+				worker.join(pollInterval + TimeUnit.SECONDS.toMillis(30));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		workers.clear();
+	}
+
+}
@@ -0,0 +1,115 @@
+package org.helianto.sendgrid.message.sender.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer.
+ * 
+ * Each slot carries a sequence number telling producers and the consumer whose turn it is, so an
+ * offer costs one compare-and-set on the tail and a poll no atomic update at all (D. Vyukov's
+ * bounded queue). Producers never block: offer fails when the ring is full. Callers that poll from
+ * several threads must serialize the polls.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public final class MpscRingBuffer<E> {
+	
+	private final int mask;
+	
+	private final AtomicLongArray sequences;
+	
+	private final AtomicReferenceArray<E> elements;
+	
+	private final AtomicLong tail = new AtomicLong();
+	
+	private final AtomicLong head = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity rounded up to a power of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		super();
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Ring buffer capacity out of range: "+capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.elements = new AtomicReferenceArray<>(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Add an element, from any thread.
+	 * 
+	 * @param element
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element) {
+		if (element==null) {
+			throw new NullPointerException();
+		}
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference==0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements.lazySet(index, element);
+					// publishes the element to the consumer
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			}
+			else if (difference < 0) {
+				// the slot still holds the element offered one lap ago
+				return false;
+			}
+			else {
+				position = tail.get();
+			}
+		}
+	}
+	
+	/**
+	 * Remove the oldest element, from one thread at a time.
+	 * 
+	 * @return null if the ring is empty
+	 */
+	public E poll() {
+		long position = head.get();
+		int index = (int) position & mask;
+		if (sequences.get(index)!=position + 1) {
+			return null;
+		}
+		E element = elements.get(index);
+		elements.lazySet(index, null);
+		// hands the slot back to producers for the next lap
+		sequences.lazySet(index, position + mask + 1);
+		head.lazySet(position + 1);
+		return element;
+	}
+	
+	/**
+	 * Elements in the ring, approximate while producers or the consumer run.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, mask + 1));
+	}
+	
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+}
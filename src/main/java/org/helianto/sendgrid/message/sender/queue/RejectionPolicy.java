@@ -0,0 +1,32 @@
+package org.helianto.sendgrid.message.sender.queue;
+
+/**
+ * What the send queue does with a message arriving while its lane is full.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public enum RejectionPolicy {
+	
+	/**
+	 * Wait for room up to the block timeout, then reject.
+	 */
+	BLOCK,
+	
+	/**
+	 * Reject at once.
+	 */
+	REJECT,
+	
+	/**
+	 * Drop the oldest queued bulk message to make room for a bulk message, which is rejected if
+	 * another producer takes the room first; transactional messages are never dropped, and are
+	 * rejected when their lane is full.
+	 */
+	DROP_OLDEST_BULK,
+	
+	/**
+	 * Append the message to a journal on disk, sent in the background once written.
+	 */
+	SPILL_TO_DISK;
+
+}
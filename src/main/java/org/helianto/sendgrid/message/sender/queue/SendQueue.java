@@ -0,0 +1,407 @@
+package org.helianto.sendgrid.message.sender.queue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.journal.JournalDispatcher;
+import org.helianto.sendgrid.message.sender.journal.MailJournal;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.helianto.sendgrid.message.sender.metrics.NoOpSendGridMetrics;
+import org.helianto.sendgrid.message.sender.metrics.SendGridMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue between template senders and SendGrid.
+ * 
+ * Messages wait in one {@link MpscRingBuffer} per lane, so callers enqueue without taking a lock,
+ * and a fixed set of workers sends them, transactional mail first. When a lane is full the
+ * {@link RejectionPolicy} decides, so overload turns into bounded waits and counted rejections
+ * instead of piling up request threads. Workers take turns polling under the consumer lock, which
+ * also parks them while the queue is empty.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SendQueue implements Closeable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SendQueue.class);
+	
+	/**
+	 * Response of a message spilled to the journal, sent later.
+	 */
+	public static final Response SPILLED = new Response(202, "Spilled to the journal.");
+	
+	private final SendGridSender sendGridSender;
+	
+	private final int workerCount;
+	
+	private final RejectionPolicy policy;
+	
+	private final SendGridMetrics metrics;
+	
+	private final MpscRingBuffer<Task> transactional;
+	
+	private final MpscRingBuffer<Task> bulk;
+	
+	private final ReentrantLock consumerLock = new ReentrantLock();
+	
+	private final Condition notEmpty = consumerLock.newCondition();
+	
+	private final Condition notFull = consumerLock.newCondition();
+	
+	private final AtomicInteger idleWorkers = new AtomicInteger();
+	
+	private final AtomicInteger blockedProducers = new AtomicInteger();
+	
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	private final AtomicLong spilledCount = new AtomicLong();
+	
+	private final List<Thread> workers = new ArrayList<>();
+	
+	private long blockTimeout = 1000;
+	
+	private MailJournal spillJournal;
+	
+	private JournalDispatcher spillDispatcher;
+	
+	private long spillRetryDelay = 30000;
+	
+	private volatile boolean running;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param sendGridSender
+	 * @param capacity messages queued per lane, rounded up to a power of two
+	 * @param workerCount sends running at once, keep within the sender connection pool size
+	 * @param policy
+	 * @param metrics
+	 */
+	public SendQueue(SendGridSender sendGridSender, int capacity, int workerCount, RejectionPolicy policy, SendGridMetrics metrics) {
+		super();
+		this.sendGridSender = sendGridSender;
+		this.workerCount = Math.max(1, workerCount);
+		this.policy = policy;
+		this.metrics = metrics==null ? NoOpSendGridMetrics.INSTANCE : metrics;
+		this.transactional = new MpscRingBuffer<>(capacity);
+		this.bulk = new MpscRingBuffer<>(capacity);
+	}
+	
+	/**
+	 * Longest wait for room under {@link RejectionPolicy#BLOCK}, in milliseconds, 1 s by default.
+	 */
+	public SendQueue setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+		return this;
+	}
+	
+	/**
+	 * Journal for {@link RejectionPolicy#SPILL_TO_DISK}; the queue closes it.
+	 * 
+	 * @param spillJournal
+	 * @param retryDelay wait before sending a spilled message again, in milliseconds
+	 */
+	public synchronized SendQueue setSpillJournal(MailJournal spillJournal, long retryDelay) {
+		if (running) {
+			throw new IllegalStateException("The spill journal must be set before start.");
+		}
+		this.spillJournal = spillJournal;
+		this.spillRetryDelay = retryDelay;
+		return this;
+	}
+	
+	/**
+	 * Start the workers, and the dispatcher of spilled messages, left over ones first.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (policy==RejectionPolicy.SPILL_TO_DISK && spillJournal==null) {
+			throw new IllegalStateException("Spilling to disk requires a journal.");
+		}
+		running = true;
+		if (spillJournal!=null) {
+			spillDispatcher = new JournalDispatcher(spillJournal, sendGridSender, 1, spillRetryDelay);
+			spillDispatcher.start();
+		}
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::dispatchLoop, "sendgrid-queue-"+i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		metrics.bind(this);
+		logger.info("Started SendGrid queue of {} per lane, {} workers, {} when full.", transactional.getCapacity(), workerCount, policy);
+	}
+	
+	/**
+	 * Queue a message.
+	 * 
+	 * @param lane
+	 * @param email
+	 * @return completes with the response, with {@link #SPILLED} when spilled to the journal, or
+	 * exceptionally with {@link RejectedExecutionException} when rejected or dropped
+	 */
+	public CompletableFuture<Response> submit(Lane lane, SendGridMessageAdapter email) {
+		Task task = new Task(lane, email);
+		if (!running) {
+			return reject(task, "SendGrid queue not running");
+		}
+		MpscRingBuffer<Task> ring = lane==Lane.TRANSACTIONAL ? transactional : bulk;
+		if (!ring.offer(task)) {
+			switch (policy) {
+			case BLOCK:
+				if (!offer(ring, task)) {
+					return reject(task, "SendGrid "+lane+" queue full after "+blockTimeout+" ms");
+				}
+				break;
+			case DROP_OLDEST_BULK:
+				if (ring!=bulk) {
+					return reject(task, "SendGrid "+lane+" queue full");
+				}
+				// one arrival evicts at most one queued message, racing producers are rejected
+				dropOldestBulk();
+				if (!ring.offer(task)) {
+					return reject(task, "SendGrid "+lane+" queue full");
+				}
+				break;
+			case SPILL_TO_DISK:
+				return spill(task);
+			default:
+				return reject(task, "SendGrid "+lane+" queue full");
+			}
+		}
+		metrics.recordEnqueue(System.nanoTime() - task.queued);
+		if (idleWorkers.get() > 0) {
+			signal(notEmpty);
+		}
+		return task.future;
+	}
+	
+	/**
+	 * Wait for room, holding the consumer lock so that no poll slips between a failed offer and
+	 * the wait.
+	 */
+	private boolean offer(MpscRingBuffer<Task> ring, Task task) {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		try {
+			consumerLock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		blockedProducers.incrementAndGet();
+		try {
+			while (!ring.offer(task)) {
+				if (remaining <= 0 || !running) {
+					return false;
+				}
+				remaining = notFull.awaitNanos(remaining);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockedProducers.decrementAndGet();
+			consumerLock.unlock();
+		}
+	}
+	
+	private void dropOldestBulk() {
+		Task oldest;
+		consumerLock.lock();
+		try {
+			oldest = bulk.poll();
+		} finally {
+			consumerLock.unlock();
+		}
+		if (oldest!=null) {
+			droppedCount.incrementAndGet();
+			rejectedCount.incrementAndGet();
+			oldest.future.completeExceptionally(new RejectedExecutionException("Dropped from the full SendGrid BULK queue"));
+		}
+	}
+	
+	private CompletableFuture<Response> spill(Task task) {
+		if (spillDispatcher.enqueue(task.email)) {
+			spilledCount.incrementAndGet();
+			metrics.recordEnqueue(System.nanoTime() - task.queued);
+			task.future.complete(SPILLED);
+			return task.future;
+		}
+		return reject(task, "SendGrid queue full and spill failed");
+	}
+	
+	private CompletableFuture<Response> reject(Task task, String reason) {
+		rejectedCount.incrementAndGet();
+		task.future.completeExceptionally(new RejectedExecutionException(reason));
+		return task.future;
+	}
+	
+	private void signal(Condition condition) {
+		consumerLock.lock();
+		try {
+			condition.signalAll();
+		} finally {
+			consumerLock.unlock();
+		}
+	}
+	
+	private void dispatchLoop() {
+		while (running) {
+			Task task;
+			try {
+				task = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task==null) {
+				continue;
+			}
+			metrics.recordLaneWait(task.lane.name(), System.nanoTime() - task.queued);
+			try {
+				task.future.complete(sendGridSender.send(task.email));
+			} catch (Exception e) {
+				task.future.completeExceptionally(e);
+			}
+		}
+	}
+	
+	/**
+	 * Next task, transactional first, or null once stopped.
+	 */
+	private Task take() throws InterruptedException {
+		consumerLock.lockInterruptibly();
+		try {
+			Task task;
+			while ((task = poll())==null) {
+				// counted before the second poll, so a producer either sees the count or its message is polled
+				idleWorkers.incrementAndGet();
+				try {
+					if ((task = poll())!=null) {
+						break;
+					}
+					if (!running) {
+						return null;
+					}
+					notEmpty.awaitNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				} finally {
+					idleWorkers.decrementAndGet();
+				}
+			}
+			if (blockedProducers.get() > 0) {
+				notFull.signalAll();
+			}
+			return task;
+		} finally {
+			consumerLock.unlock();
+		}
+	}
+	
+	private Task poll() {
+		Task task = transactional.poll();
+		return task!=null ? task : bulk.poll();
+	}
+	
+	public RejectionPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Messages waiting in a lane.
+	 * 
+	 * @param lane
+	 */
+	public int getQueueDepth(Lane lane) {
+		return lane==Lane.TRANSACTIONAL ? transactional.size() : bulk.size();
+	}
+	
+	/**
+	 * Messages queued per lane.
+	 */
+	public int getCapacity() {
+		return transactional.getCapacity();
+	}
+	
+	/**
+	 * Messages rejected or dropped.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	/**
+	 * Bulk messages dropped to make room for newer ones.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	/**
+	 * Messages spilled to the journal.
+	 */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+	
+	/**
+	 * Stop the workers and reject queued messages; spilled messages stay in the journal for the
+	 * next start.
+	 */
+	public synchronized void close() throws IOException {
+		running = false;
+		for (Thread worker: workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+		consumerLock.lock();
+		try {
+			notFull.signalAll();
+			Task task;
+			while ((task = poll())!=null) {
+				task.future.completeExceptionally(new RejectedExecutionException("SendGrid queue closed"));
+			}
+		} finally {
+			consumerLock.unlock();
+		}
+		if (spillDispatcher!=null) {
+			spillDispatcher.close();
+			spillJournal.close();
+		}
+	}
+	
+	private static final class Task {
+		
+		final Lane lane;
+		
+		final SendGridMessageAdapter email;
+		
+		final long queued = System.nanoTime();
+		
+		final CompletableFuture<Response> future = new CompletableFuture<>();
+		
+		Task(Lane lane, SendGridMessageAdapter email) {
+			this.lane = lane;
+			this.email = email;
+		}
+	
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.helianto.sendgrid.message.sender.retry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker guarding the SendGrid endpoint.
+ * 
+ * Opens after a number of consecutive failures, rejecting requests until the open duration
+ * elapses; then a single trial request is let through, closing the circuit on success or opening 
+ * it again on failure.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final int failureThreshold;
+	
+	private final long openDuration;
+	
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	
+	private final AtomicInteger failures = new AtomicInteger();
+	
+	private final AtomicLong openedAt = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param failureThreshold consecutive failures to open the circuit
+	 * @param openDuration in milliseconds
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		super();
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("Failure threshold must be positive.");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+	
+	/**
+	 * True if a request may proceed.
+	 */
+	public boolean allowRequest() {
+		State current = state.get();
+		if (current==State.CLOSED) {
+			return true;
+		}
+		long opened = openedAt.get();
+		long now = System.currentTimeMillis();
+		if (now - opened < openDuration) {
+			return false;
+		}
+		// one trial per open period, also when a previous trial never reported back
+		if (openedAt.compareAndSet(opened, now)) {
+			state.set(State.HALF_OPEN);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Report a successful request.
+	 */
+	public void onSuccess() {
+		failures.set(0);
+		if (state.get()!=State.CLOSED) {
+			state.set(State.CLOSED);
+		}
+	}
+	
+	/**
+	 * Report a failed request.
+	 */
+	public void onFailure() {
+		if (state.get()==State.HALF_OPEN || failures.incrementAndGet() >= failureThreshold) {
+			openedAt.set(System.currentTimeMillis());
+			state.set(State.OPEN);
+		}
+	}
+	
+	/**
+	 * True while requests are rejected, that is open and within the open duration; unlike
+	 * {@link #allowRequest()} it never lets a trial through.
+	 */
+	public boolean isOpen() {
+		return state.get()!=State.CLOSED && System.currentTimeMillis() - openedAt.get() < openDuration;
+	}
+	
+	public State getState() {
+		return state.get();
+	}
+	
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+	
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+}
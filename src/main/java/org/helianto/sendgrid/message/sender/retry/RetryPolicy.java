@@ -0,0 +1,86 @@
+package org.helianto.sendgrid.message.sender.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+
+/**
+ * Retry policy for SendGrid responses.
+ * 
+ * 429 and 5xx responses, including connection problems reported as 500, are retryable; any other
+ * code is final. Delays follow decorrelated jitter, each one drawn between the base delay and three 
+ * times the previous delay, capped at the maximum delay. A Retry-After longer than the jittered 
+ * delay wins, unless it exceeds the maximum delay, in which case retries stop.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class RetryPolicy {
+	
+	/**
+	 * Single attempt, no retries.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+	
+	private final int maxAttempts;
+	
+	private final long baseDelay;
+	
+	private final long maxDelay;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxAttempts including the first one
+	 * @param baseDelay in milliseconds
+	 * @param maxDelay in milliseconds
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		super();
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("At least one attempt is required.");
+		}
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+	
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+	
+	/**
+	 * True if the request may succeed if repeated.
+	 * 
+	 * @param response
+	 */
+	public boolean isRetryable(Response response) {
+		int code = response.getCode();
+		return code==429 || code>=500;
+	}
+	
+	/**
+	 * Delay before the next attempt, in milliseconds, or -1 if the server asks to wait longer
+	 * than the maximum delay.
+	 * 
+	 * @param previousDelay zero before the first retry
+	 * @param response
+	 */
+	public long nextDelay(long previousDelay, Response response) {
+		long upper = Math.min(maxDelay, Math.max(baseDelay, previousDelay * 3));
+		long delay = upper > baseDelay ? ThreadLocalRandom.current().nextLong(baseDelay, upper + 1) : baseDelay;
+		long retryAfter = response.getRetryAfter();
+		if (retryAfter > maxDelay) {
+			return -1;
+		}
+		return Math.max(delay, retryAfter);
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.helianto.sendgrid.message.status;
+
+/**
+ * Delivery state of a message.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public enum DeliveryState {
+	
+	/**
+	 * Created, not yet accepted by SendGrid.
+	 */
+	QUEUED(0),
+	
+	/**
+	 * Accepted by SendGrid.
+	 */
+	SENT(1),
+	
+	/**
+	 * Refused by SendGrid or not sent.
+	 */
+	FAILED(1),
+	
+	DEFERRED(2),
+	
+	DELIVERED(3),
+	
+	BOUNCED(3),
+	
+	DROPPED(3),
+	
+	OPENED(4),
+	
+	CLICKED(5);
+	
+	private static final DeliveryState[] VALUES = values();
+	
+	/**
+	 * State for a SendGrid webhook event, or null if the event does not change it.
+	 * 
+	 * @param event
+	 */
+	public static DeliveryState forEvent(String event) {
+		if (event==null) {
+			return null;
+		}
+		switch (event) {
+		case "processed": return SENT;
+		case "deferred": return DEFERRED;
+		case "delivered": return DELIVERED;
+		case "bounce": return BOUNCED;
+		case "dropped": return DROPPED;
+		case "open": return OPENED;
+		case "click": return CLICKED;
+		default: return null;
+		}
+	}
+	
+	private final int rank;
+	
+	private DeliveryState(int rank) {
+		this.rank = rank;
+	}
+	
+	/**
+	 * Position in the message lifecycle, deciding between states reached in the same second.
+	 */
+	public int getRank() {
+		return rank;
+	}
+	
+	static DeliveryState valueOf(int ordinal) {
+		return VALUES[ordinal];
+	}
+
+}
@@ -0,0 +1,293 @@
+package org.helianto.sendgrid.message.status;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Latest delivery state per message id, kept off-heap.
+ * 
+ * Entries are fixed size records in direct buffers, so tens of millions of them add nothing to
+ * garbage collection. The table is split in segments, each an open addressing hash table with
+ * linear probing and its own lock; lookups are optimistic and do not block. Probing is bounded:
+ * when the probe window of an id is full, an expired entry or else the least recently updated
+ * one is replaced, so updates stay O(1) when the table is full.
+ * 
+ * Entries expire once not updated for the time to live. An update older than the stored one,
+ * like a webhook event arriving out of order, is ignored; within the same second, as processed
+ * and delivered events often are, the state further in the lifecycle is kept.
+ * 
+ * Record layout: id (two longs), last update in epoch seconds (unsigned int), state (byte), padding.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class DeliveryStatusStore {
+	
+	private static final int RECORD_SIZE = 24;
+	
+	private static final int UPDATED_OFFSET = 16;
+	
+	private static final int STATE_OFFSET = 20;
+	
+	private static final int SEGMENTS = 64;
+	
+	private static final int SEGMENT_BITS = 6;
+	
+	private static final int MAX_PROBE = 64;
+	
+	private final Segment[] segments = new Segment[SEGMENTS];
+	
+	private final long ttlSeconds;
+	
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity entries the store must hold; the table is sized for a 75% load
+	 * @param ttl time to live after the last update, in milliseconds
+	 */
+	public DeliveryStatusStore(long capacity, long ttl) {
+		super();
+		long slots = Long.highestOneBit(Math.max(SEGMENTS * 16L, capacity * 4 / 3) - 1) << 1;
+		long segmentSlots = slots / SEGMENTS;
+		if (segmentSlots * RECORD_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Status store capacity too large: "+capacity);
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment((int) segmentSlots);
+		}
+		this.ttlSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(ttl));
+	}
+	
+	/**
+	 * Random message id, without the contention of {@link UUID#randomUUID()}.
+	 */
+	public static UUID newMessageId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long mostSignificant = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long leastSignificant = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(mostSignificant, leastSignificant);
+	}
+	
+	/**
+	 * Record a state now.
+	 * 
+	 * @param messageId
+	 * @param state
+	 */
+	public boolean update(UUID messageId, DeliveryState state) {
+		return update(messageId, state, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Record a state, unless a more recent one is stored.
+	 * 
+	 * @param messageId
+	 * @param state
+	 * @param timestamp when the state was reached, in epoch milliseconds
+	 * @return false if ignored as older than the stored state, or as reached in the same second
+	 * but earlier in the lifecycle
+	 */
+	public boolean update(UUID messageId, DeliveryState state, long timestamp) {
+		long high = messageId.getMostSignificantBits();
+		long low = messageId.getLeastSignificantBits();
+		if (high==0 && low==0) {
+			throw new IllegalArgumentException("Invalid message id "+messageId);
+		}
+		long hash = hash(high, low);
+		return segments[(int) (hash >>> (64 - SEGMENT_BITS))].put(high, low, (int) hash
+				, (int) TimeUnit.MILLISECONDS.toSeconds(timestamp), (byte) state.ordinal(), now());
+	}
+	
+	/**
+	 * Latest state, or null if unknown or expired.
+	 * 
+	 * @param messageId
+	 */
+	public DeliveryState getState(UUID messageId) {
+		long record = lookup(messageId);
+		return record<0 ? null : DeliveryState.valueOf((int) (record & 0xFF));
+	}
+	
+	/**
+	 * Time of the latest state in epoch milliseconds, or -1 if unknown or expired.
+	 * 
+	 * @param messageId
+	 */
+	public long getUpdated(UUID messageId) {
+		long record = lookup(messageId);
+		return record<0 ? -1 : TimeUnit.SECONDS.toMillis(record >>> 8);
+	}
+	
+	/**
+	 * Update time and state packed as (seconds << 8 | state), or -1.
+	 */
+	private long lookup(UUID messageId) {
+		long high = messageId.getMostSignificantBits();
+		long low = messageId.getLeastSignificantBits();
+		long hash = hash(high, low);
+		return segments[(int) (hash >>> (64 - SEGMENT_BITS))].get(high, low, (int) hash, now());
+	}
+	
+	/**
+	 * Slots in use, expired entries included.
+	 */
+	public long getOccupied() {
+		long occupied = 0;
+		for (Segment segment: segments) {
+			occupied += segment.occupied;
+		}
+		return occupied;
+	}
+	
+	/**
+	 * Live entries replaced because their probe window was full.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	/**
+	 * Off-heap memory, in bytes.
+	 */
+	public long getOffHeapBytes() {
+		long bytes = 0;
+		for (Segment segment: segments) {
+			bytes += segment.buffer.capacity();
+		}
+		return bytes;
+	}
+	
+	private static int now() {
+		return (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	}
+	
+	private static long hash(long high, long low) {
+		long hash = high * 0x9E3779B97F4A7C15L ^ low;
+		hash ^= hash >>> 31;
+		hash *= 0xBF58476D1CE4E5B9L;
+		return hash ^ (hash >>> 29);
+	}
+	
+	/**
+	 * Seconds are stored unsigned, good until 2106.
+	 */
+	private boolean isExpired(int updated, int now) {
+		return Integer.toUnsignedLong(now) - Integer.toUnsignedLong(updated) > ttlSeconds;
+	}
+	
+	private final class Segment {
+		
+		final ByteBuffer buffer;
+		
+		final int mask;
+		
+		final StampedLock lock = new StampedLock();
+		
+		volatile long occupied;
+		
+		Segment(int slots) {
+			this.buffer = ByteBuffer.allocateDirect(slots * RECORD_SIZE);
+			this.mask = slots - 1;
+		}
+		
+		long get(long high, long low, int hash, int now) {
+			long stamp = lock.tryOptimisticRead();
+			long record = find(high, low, hash, now);
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					record = find(high, low, hash, now);
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return record;
+		}
+		
+		private long find(long high, long low, int hash, int now) {
+			for (int i = 0; i < MAX_PROBE; i++) {
+				int offset = ((hash + i) & mask) * RECORD_SIZE;
+				long storedHigh = buffer.getLong(offset);
+				long storedLow = buffer.getLong(offset + 8);
+				if (storedHigh==high && storedLow==low) {
+					int updated = buffer.getInt(offset + UPDATED_OFFSET);
+					if (isExpired(updated, now)) {
+						return -1;
+					}
+					return Integer.toUnsignedLong(updated) << 8 | buffer.get(offset + STATE_OFFSET);
+				}
+				if (storedHigh==0 && storedLow==0) {
+					// slots are never emptied, the id can not be further
+					return -1;
+				}
+			}
+			return -1;
+		}
+		
+		boolean put(long high, long low, int hash, int updated, byte state, int now) {
+			long stamp = lock.writeLock();
+			try {
+				int target = -1;
+				int expired = -1;
+				int oldest = -1;
+				long oldestUpdated = Long.MAX_VALUE;
+				for (int i = 0; i < MAX_PROBE; i++) {
+					int offset = ((hash + i) & mask) * RECORD_SIZE;
+					long storedHigh = buffer.getLong(offset);
+					long storedLow = buffer.getLong(offset + 8);
+					if (storedHigh==high && storedLow==low) {
+						int storedUpdated = buffer.getInt(offset + UPDATED_OFFSET);
+						if (!isExpired(storedUpdated, now)) {
+							int order = Integer.compareUnsigned(updated, storedUpdated);
+							if (order < 0 || order==0 && DeliveryState.valueOf(state).getRank()
+									< DeliveryState.valueOf(buffer.get(offset + STATE_OFFSET)).getRank()) {
+								return false;
+							}
+						}
+						buffer.putInt(offset + UPDATED_OFFSET, updated);
+						buffer.put(offset + STATE_OFFSET, state);
+						return true;
+					}
+					if (storedHigh==0 && storedLow==0) {
+						target = offset;
+						occupied++;
+						break;
+					}
+					int storedUpdated = buffer.getInt(offset + UPDATED_OFFSET);
+					if (expired<0 && isExpired(storedUpdated, now)) {
+						expired = offset;
+					}
+					if (Integer.toUnsignedLong(storedUpdated) < oldestUpdated) {
+						oldestUpdated = Integer.toUnsignedLong(storedUpdated);
+						oldest = offset;
+					}
+				}
+				if (expired>=0) {
+					// reuse before an empty slot keeps probe chains short
+					if (target>=0) {
+						occupied--;
+					}
+					target = expired;
+				}
+				else if (target<0) {
+					target = oldest;
+					evictions.increment();
+				}
+				buffer.putLong(target, high);
+				buffer.putLong(target + 8, low);
+				buffer.putInt(target + UPDATED_OFFSET, updated);
+				buffer.put(target + STATE_OFFSET, state);
+				return true;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+	
+	}
+
+}
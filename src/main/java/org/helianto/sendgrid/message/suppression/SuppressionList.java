@@ -0,0 +1,243 @@
+package org.helianto.sendgrid.message.suppression;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Addresses that must not receive e-mail, like bounces and unsubscribes.
+ * 
+ * A Bloom filter answers most lookups, as most addresses are not suppressed, without touching the
+ * exact set that confirms its positives. Lookups are lock-free; additions are serialized and grow
+ * the filter when the expected number of entries is exceeded. Addresses are compared trimmed and
+ * in lower case.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class SuppressionList {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SuppressionList.class);
+	
+	/**
+	 * Rough per entry cost of the exact set: map node, string and array headers.
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+	
+	private final double falsePositiveRate;
+	
+	private final Set<String> entries = ConcurrentHashMap.newKeySet();
+	
+	private final AtomicLong entryChars = new AtomicLong();
+	
+	private volatile BloomFilter filter;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param expectedEntries
+	 * @param falsePositiveRate share of lookups of non suppressed addresses that reach the exact set
+	 */
+	public SuppressionList(int expectedEntries, double falsePositiveRate) {
+		super();
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		this.filter = new BloomFilter(Math.max(1024, expectedEntries), falsePositiveRate);
+	}
+	
+	/**
+	 * Add every address in a file, one per line; blank lines and lines starting with # are skipped.
+	 * 
+	 * @param file
+	 * @return the number of new entries
+	 */
+	public int load(File file) throws IOException {
+		int added = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine())!=null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#") && add(line)) {
+					added++;
+				}
+			}
+		}
+		logger.info("Loaded {} suppressed addresses from {}, {} in total.", added, file, size());
+		return added;
+	}
+	
+	/**
+	 * True if the address is suppressed.
+	 * 
+	 * @param email
+	 */
+	public boolean contains(String email) {
+		if (email==null) {
+			return false;
+		}
+		String normalized = normalize(email);
+		return filter.mightContain(normalized) && entries.contains(normalized);
+	}
+	
+	/**
+	 * Suppress an address.
+	 * 
+	 * @param email
+	 * @return false if already suppressed
+	 */
+	public synchronized boolean add(String email) {
+		String normalized = normalize(email);
+		if (!entries.add(normalized)) {
+			return false;
+		}
+		entryChars.addAndGet(normalized.length());
+		BloomFilter current = filter;
+		if (entries.size() > current.capacity) {
+			// rebuilt from the set, which already holds the new entry
+			filter = new BloomFilter(current.capacity * 2, falsePositiveRate, entries);
+			logger.debug("Suppression filter grown to {} entries.", current.capacity * 2);
+		}
+		else {
+			current.put(normalized);
+		}
+		return true;
+	}
+	
+	/**
+	 * Suppress many addresses.
+	 * 
+	 * @param emails
+	 * @return the number of new entries
+	 */
+	public synchronized int addAll(Collection<String> emails) {
+		int added = 0;
+		for (String email: emails) {
+			if (add(email)) {
+				added++;
+			}
+		}
+		return added;
+	}
+	
+	/**
+	 * Stop suppressing an address; its filter bits stay, so later lookups are confirmed by the set.
+	 * 
+	 * @param email
+	 * @return false if not suppressed
+	 */
+	public synchronized boolean remove(String email) {
+		String normalized = normalize(email);
+		if (!entries.remove(normalized)) {
+			return false;
+		}
+		entryChars.addAndGet(-normalized.length());
+		return true;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Bloom filter size, in bytes.
+	 */
+	public long getFilterBytes() {
+		return filter.bits.length() * 8L;
+	}
+	
+	/**
+	 * Estimated heap used by the filter and the exact set, in bytes.
+	 */
+	public long getMemoryFootprint() {
+		return getFilterBytes() + (long) entries.size() * ENTRY_OVERHEAD + entryChars.get();
+	}
+	
+	private static String normalize(String email) {
+		return email.trim().toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Bloom filter over 64 bit words, using double hashing of a 64 bit FNV-1a hash.
+	 */
+	static final class BloomFilter {
+		
+		final int capacity;
+		
+		final AtomicLongArray bits;
+		
+		final long bitCount;
+		
+		final int hashCount;
+		
+		BloomFilter(int capacity, double falsePositiveRate) {
+			this.capacity = capacity;
+			long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			int words = (int) Math.min(Integer.MAX_VALUE - 8, (optimalBits + 63) >>> 6);
+			this.bits = new AtomicLongArray(words);
+			this.bitCount = words * 64L;
+			this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+		}
+		
+		BloomFilter(int capacity, double falsePositiveRate, Collection<String> values) {
+			this(capacity, falsePositiveRate);
+			for (String value: values) {
+				put(value);
+			}
+		}
+		
+		void put(String value) {
+			long hash = hash(value);
+			long h1 = hash;
+			long h2 = (hash >>> 32) | (hash << 32);
+			for (int i = 0; i < hashCount; i++) {
+				long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				int word = (int) (index >>> 6);
+				long mask = 1L << index;
+				long current;
+				while (((current = bits.get(word)) & mask)==0 && !bits.compareAndSet(word, current, current | mask)) {
+					// another bit of the same word was set concurrently
+				}
+			}
+		}
+		
+		boolean mightContain(String value) {
+			long hash = hash(value);
+			long h1 = hash;
+			long h2 = (hash >>> 32) | (hash << 32);
+			for (int i = 0; i < hashCount; i++) {
+				long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				if ((bits.get((int) (index >>> 6)) & (1L << index))==0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private static long hash(String value) {
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < value.length(); i++) {
+				hash ^= value.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			// final avalanche, FNV alone spreads short keys poorly over the high bits
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+	
+	}
+
+}
@@ -0,0 +1,14 @@
+-- SendGrid outbox, see org.helianto.sendgrid.message.sender.outbox.MailOutbox
+-- Written for H2 and MySQL; use BIGSERIAL and BYTEA on PostgreSQL.
+CREATE TABLE IF NOT EXISTS sendgrid_outbox (
+	id BIGINT AUTO_INCREMENT PRIMARY KEY,
+	payload BLOB NOT NULL,
+	status SMALLINT NOT NULL,
+	attempts INT NOT NULL,
+	-- epoch milliseconds after which a pending row may be claimed; a claim moves it to the lease end
+	available_at BIGINT NOT NULL,
+	lease_owner VARCHAR(64),
+	created BIGINT NOT NULL
+);
+
+CREATE INDEX sendgrid_outbox_claim ON sendgrid_outbox (status, id);
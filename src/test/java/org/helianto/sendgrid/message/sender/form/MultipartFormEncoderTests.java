@@ -0,0 +1,226 @@
+package org.helianto.sendgrid.message.sender.form;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Parts written by {@link MultipartFormEncoder}, against those of the httpmime builder it replaced.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class MultipartFormEncoderTests {
+
+	private MultipartFormEncoder encoder;
+
+	@Before
+	public void setUp() {
+		encoder = new MultipartFormEncoder(new BufferPool(2, 256, 1024 * 1024));
+	}
+
+	private static SendGridMessageAdapter message(int recipients) {
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		for (int i = 0; i < recipients; i++) {
+			email.addTo("recipient"+i+"@helianto.org", "Recipient "+i);
+		}
+		email.setFrom("sender@helianto.org");
+		email.setFromName("Helianto");
+		email.setSubject("Subject");
+		email.setHtml("<p>Body</p>");
+		email.setText("Body");
+		return email;
+	}
+
+	@Test
+	public void severalRecipients() throws Exception {
+		SendGridMessageAdapter email = message(3);
+		email.addCc("cc@helianto.org");
+		email.addBcc("bcc@helianto.org");
+		email.setReplyTo("reply@helianto.org");
+		email.addHeader("X-Priority", "1");
+		email.setSMTPAPITos(new String[] { "a@helianto.org", "b@helianto.org" });
+		email.addSubstitution("${name}", new String[] { "Ann", "Bob" });
+		assertParts(email);
+	}
+
+	@Test
+	public void beyondIndexTable() throws Exception {
+		SendGridMessageAdapter email = message(150);
+		List<String> parts = assertParts(email);
+		assertTrue(parts.get(2+149).startsWith("form-data; name=\"to[149]\""));
+		assertTrue(parts.get(2+150+149).startsWith("form-data; name=\"toname[149]\""));
+	}
+
+	@Test
+	public void nonLatin1Text() throws Exception {
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		email.addTo("recipient@helianto.org", "Jürgen 山田 😀");
+		email.setFrom("sender@helianto.org");
+		email.setFromName("Zoë Ωmega");
+		email.setSubject("Confirmação de cadastro — 確認");
+		email.setHtml("<p>Olá, 世界 📧</p>");
+		email.setText("Olá, 世界");
+		email.addHeader("X-Name", "Ωmega");
+		email.addSubstitution("${name}", new String[] { "José 山田" });
+		assertParts(email);
+	}
+
+	@Test
+	public void attachments() throws Exception {
+		File file = File.createTempFile("attachment", ".txt");
+		file.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write("Attached file\r\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		SendGridMessageAdapter email = message(1);
+		email.addAttachment("report.txt", file);
+		email.addAttachment("notes.txt", "Attached text");
+		assertParts(email);
+	}
+
+	/**
+	 * Unlike httpmime, which writes quotes in the part name as they are, the encoder escapes them.
+	 */
+	@Test
+	public void attachmentNameEscaped() throws Exception {
+		SendGridMessageAdapter email = message(1);
+		email.addAttachment("notes \"draft\".txt", "Attached text");
+		PooledFormEntity body = encoder.encode("user", "key", email);
+		try {
+			assertTrue(parts(body).contains("form-data; name=\"files[notes \\\"draft\\\".txt]\"\napplication/octet-stream\nbinary\nAttached text"));
+		} finally {
+			body.release();
+		}
+	}
+
+	@Test
+	public void emptySmtpApi() throws Exception {
+		SendGridMessageAdapter email = message(1).dropSMTPAPITos();
+		assertTrue(email.getSMTPAPI().isEmpty());
+		List<String> parts = assertParts(email);
+		for (String part: parts) {
+			assertTrue(!part.startsWith("form-data; name=\"x-smtpapi\""));
+		}
+	}
+
+	/**
+	 * Compare both bodies part by part, and return the parts of the encoded one.
+	 */
+	private List<String> assertParts(SendGridMessageAdapter email) throws Exception {
+		PooledFormEntity body = encoder.encode("user", "key", email);
+		try {
+			List<String> parts = parts(body);
+			assertEquals(parts(httpmime("user", "key", email)), parts);
+			return parts;
+		} finally {
+			body.release();
+		}
+	}
+
+	/**
+	 * The form as SendGridSender built it with httpmime.
+	 */
+	private static HttpEntity httpmime(String username, String password, SendGridMessageAdapter email) {
+		ContentType utf8 = ContentType.create("text/plain", "UTF-8");
+		MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+		builder.addTextBody("api_user", username);
+		builder.addTextBody("api_key", password);
+		String[] tos = email.getTos();
+		for (int i = 0; i < tos.length; i++) {
+			builder.addTextBody(String.format("to[%d]", i), tos[i]);
+		}
+		String[] tonames = email.getToNames();
+		for (int i = 0; i < tonames.length; i++) {
+			builder.addTextBody(String.format("toname[%d]", i), tonames[i], utf8);
+		}
+		String[] ccs = email.getCcs();
+		for (int i = 0; i < ccs.length; i++) {
+			builder.addTextBody(String.format("cc[%d]", i), ccs[i]);
+		}
+		String[] bccs = email.getBccs();
+		for (int i = 0; i < bccs.length; i++) {
+			builder.addTextBody(String.format("bcc[%d]", i), bccs[i]);
+		}
+		for (Map.Entry<String, ContentBody> entry: email.getAttachments().entrySet()) {
+			builder.addPart(String.format("files[%s]", entry.getKey()), entry.getValue());
+		}
+		if (email.getHeaders().size() > 0) {
+			builder.addTextBody("headers", new JSONObject(email.getHeaders()).toString());
+		}
+		if (email.getFrom() != null && !email.getFrom().isEmpty()) {
+			builder.addTextBody("from", email.getFrom());
+		}
+		if (email.getFromName() != null && !email.getFromName().isEmpty()) {
+			builder.addTextBody("fromname", email.getFromName(), utf8);
+		}
+		if (email.getReplyTo() != null && !email.getReplyTo().isEmpty()) {
+			builder.addTextBody("replyto", email.getReplyTo());
+		}
+		if (email.getSubject() != null && !email.getSubject().isEmpty()) {
+			builder.addTextBody("subject", email.getSubject(), utf8);
+		}
+		if (email.getHtml() != null && !email.getHtml().isEmpty()) {
+			builder.addTextBody("html", email.getHtml(), utf8);
+		}
+		if (email.getText() != null && !email.getText().isEmpty()) {
+			builder.addTextBody("text", email.getText(), utf8);
+		}
+		if (!email.getSMTPAPI().isEmpty()) {
+			builder.addPart("x-smtpapi", email.getSMTPAPI().toContentBody());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Parse the body, one string per part with its headers and its raw bytes as ISO-8859-1.
+	 */
+	private static List<String> parts(HttpEntity entity) throws IOException, MessagingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		MimeMultipart multipart = new MimeMultipart(new ByteArrayDataSource(out.toByteArray(), entity.getContentType().getValue()));
+		List<String> parts = new ArrayList<>();
+		for (int i = 0; i < multipart.getCount(); i++) {
+			MimeBodyPart part = (MimeBodyPart) multipart.getBodyPart(i);
+			StringBuilder described = new StringBuilder();
+			described.append(part.getHeader("Content-Disposition", null)).append('\n');
+			described.append(part.getHeader("Content-Type", null)).append('\n');
+			described.append(part.getHeader("Content-Transfer-Encoding", null)).append('\n');
+			described.append(new String(raw(part.getRawInputStream()), StandardCharsets.ISO_8859_1));
+			parts.add(described.toString());
+		}
+		return parts;
+	}
+
+	private static byte[] raw(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read; (read = in.read(buffer)) > 0; ) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+}
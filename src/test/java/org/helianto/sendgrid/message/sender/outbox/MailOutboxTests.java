@@ -0,0 +1,176 @@
+package org.helianto.sendgrid.message.sender.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.SendGridMessageCodec;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.deadline.Deadline;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+/**
+ * Outbox claims, outcomes and leases on an embedded H2 database.
+ * 
+ * @author mauriciofernandesdecastro
+ */
+public class MailOutboxTests {
+	
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+	
+	private MailOutbox outbox;
+	
+	@Before
+	public void setUp() {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:outbox"+DATABASES.incrementAndGet()+";DB_CLOSE_DELAY=-1");
+		dataSource.setUser("sa");
+		DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource("META-INF/sendgrid-outbox.sql")), dataSource);
+		outbox = new MailOutbox(dataSource, false).setMaxAttempts(3);
+	}
+	
+	private void add(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			SendGridMessageAdapter email = new SendGridMessageAdapter();
+			email.addTo("recipient"+i+"@helianto.org");
+			email.setFrom("sender@helianto.org");
+			email.setSubject("Subject "+i);
+			outbox.add(email);
+		}
+	}
+	
+	@Test
+	public void claim() throws Exception {
+		add(5);
+		List<MailOutbox.Entry> first = outbox.claim("node-1", 3, 60000);
+		List<MailOutbox.Entry> second = outbox.claim("node-2", 3, 60000);
+		assertEquals(3, first.size());
+		assertEquals(2, second.size());
+		assertTrue(first.get(2).getId() < second.get(0).getId());
+		assertEquals(0, outbox.claim("node-3", 3, 60000).size());
+		assertEquals("recipient0@helianto.org", SendGridMessageCodec.decode(first.get(0).getPayload()).getTos()[0]);
+		assertEquals(0, first.get(0).getAttempts());
+	}
+	
+	@Test
+	public void complete() throws Exception {
+		add(2);
+		List<MailOutbox.Entry> entries = outbox.claim("node-1", 10, 60000);
+		outbox.complete("node-1", entries.subList(0, 1));
+		outbox.fail("node-1", entries.subList(1, 2));
+		assertEquals(1, outbox.count(MailOutbox.DONE));
+		assertEquals(1, outbox.count(MailOutbox.FAILED));
+		assertEquals(0, outbox.count(MailOutbox.PENDING));
+		assertEquals(1, outbox.purge(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void retry() throws Exception {
+		add(1);
+		outbox.retry("node-1", outbox.claim("node-1", 10, 60000), 0);
+		assertEquals(1, outbox.count(MailOutbox.PENDING));
+		List<MailOutbox.Entry> entries = outbox.claim("node-1", 10, 60000);
+		assertEquals(1, entries.get(0).getAttempts());
+		outbox.retry("node-1", entries, 60000);
+		// not available before the retry delay
+		assertEquals(0, outbox.claim("node-1", 10, 60000).size());
+	}
+	
+	@Test
+	public void retryUntilMaxAttempts() throws Exception {
+		add(1);
+		for (int i = 0; i < 3; i++) {
+			List<MailOutbox.Entry> entries = outbox.claim("node-1", 10, 60000);
+			assertEquals(1, entries.size());
+			assertEquals(i, entries.get(0).getAttempts());
+			outbox.retry("node-1", entries, 0);
+		}
+		assertEquals(0, outbox.claim("node-1", 10, 60000).size());
+		assertEquals(1, outbox.count(MailOutbox.FAILED));
+		assertEquals(0, outbox.count(MailOutbox.PENDING));
+	}
+	
+	@Test
+	public void leaseExpiry() throws Exception {
+		add(1);
+		List<MailOutbox.Entry> expired = outbox.claim("node-1", 10, 1);
+		assertEquals(1, expired.size());
+		Thread.sleep(10);
+		List<MailOutbox.Entry> claimed = outbox.claim("node-2", 10, 60000);
+		assertEquals(1, claimed.size());
+		assertEquals(expired.get(0).getId(), claimed.get(0).getId());
+		// the outcome of the expired lease is ignored
+		outbox.fail("node-1", expired);
+		assertEquals(0, outbox.count(MailOutbox.FAILED));
+		outbox.complete("node-2", claimed);
+		assertEquals(1, outbox.count(MailOutbox.DONE));
+	}
+	
+	@Test
+	public void release() throws Exception {
+		add(1);
+		outbox.release("node-1", outbox.claim("node-1", 10, 60000), 0);
+		List<MailOutbox.Entry> entries = outbox.claim("node-1", 10, 60000);
+		assertEquals(1, entries.size());
+		// released rows keep their attempts
+		assertEquals(0, entries.get(0).getAttempts());
+	}
+	
+	@Test
+	public void dispatchWithinInFlightLimit() throws Exception {
+		add(20);
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		SendGridSender sender = new SendGridSender("user", "password") {
+			@Override
+			public CompletableFuture<Response> sendAsync(SendGridMessageAdapter email, Deadline deadline) {
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				return CompletableFuture.supplyAsync(() -> {
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					inFlight.decrementAndGet();
+					return new Response(200, "success");
+				});
+			}
+		}.setMaxInFlight(8);
+		OutboxDispatcher dispatcher = new OutboxDispatcher(outbox, sender, 2).setBatchSize(20);
+		assertEquals(20, dispatcher.dispatch("node-1"));
+		assertEquals(20, outbox.count(MailOutbox.DONE));
+		assertTrue(maxInFlight.get() <= 4);
+	}
+	
+	@Test
+	public void dispatchReleasesLocalRejections() throws Exception {
+		add(3);
+		SendGridSender sender = new SendGridSender("user", "password") {
+			@Override
+			public CompletableFuture<Response> sendAsync(SendGridMessageAdapter email, Deadline deadline) {
+				CompletableFuture<Response> future = new CompletableFuture<>();
+				future.completeExceptionally(new RejectedExecutionException("Too many SendGrid requests in flight"));
+				return future;
+			}
+		};
+		OutboxDispatcher dispatcher = new OutboxDispatcher(outbox, sender, 1).setPollInterval(0);
+		// rejected locally more often than the maximum attempts, never failed
+		for (int i = 0; i < 5; i++) {
+			assertEquals(3, dispatcher.dispatch("node-1"));
+		}
+		assertEquals(3, outbox.count(MailOutbox.PENDING));
+		assertEquals(0, outbox.claim("node-1", 10, 60000).get(0).getAttempts());
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.helianto.sendgrid.message.sender.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Ring boundaries, wrap-around and concurrent producers.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class MpscRingBufferTests {
+
+	@Test
+	public void capacity() {
+		assertEquals(1, new MpscRingBuffer<Integer>(1).getCapacity());
+		assertEquals(8, new MpscRingBuffer<Integer>(5).getCapacity());
+		assertEquals(8, new MpscRingBuffer<Integer>(8).getCapacity());
+		try {
+			new MpscRingBuffer<Integer>(0);
+			fail("Capacity 0 accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void emptyAndFull() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertEquals(4, ring.size());
+		assertFalse(ring.offer(4));
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(4));
+		assertFalse(ring.offer(5));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(Integer.valueOf(i), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void wrapAround() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+		int next = 0;
+		int expected = 0;
+		// partial laps leave head and tail at every offset of the ring
+		for (int lap = 0; lap < 20; lap++) {
+			for (int i = 0; i < 3; i++) {
+				assertTrue(ring.offer(next++));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertEquals(Integer.valueOf(expected++), ring.poll());
+			}
+			assertNull(ring.poll());
+		}
+		// full laps
+		for (int lap = 0; lap < 5; lap++) {
+			for (int i = 0; i < 4; i++) {
+				assertTrue(ring.offer(next++));
+			}
+			assertFalse(ring.offer(-1));
+			for (int i = 0; i < 4; i++) {
+				assertEquals(Integer.valueOf(expected++), ring.poll());
+			}
+		}
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void nullRejected() {
+		try {
+			new MpscRingBuffer<Integer>(2).offer(null);
+			fail("Null accepted");
+		} catch (NullPointerException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void concurrentProducers() throws Exception {
+		final int producers = 4;
+		final int count = 20000;
+		final MpscRingBuffer<long[]> ring = new MpscRingBuffer<>(64);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < count; i++) {
+					long[] element = { producer, i };
+					while (!ring.offer(element)) {
+						Thread.yield();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		long[] last = new long[producers];
+		Arrays.fill(last, -1);
+		for (int received = 0; received < producers * count; ) {
+			long[] element = ring.poll();
+			if (element==null) {
+				Thread.yield();
+				continue;
+			}
+			// each producer's elements arrive in the order offered
+			assertEquals(last[(int) element[0]] + 1, element[1]);
+			last[(int) element[0]] = element[1];
+			received++;
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertNull(ring.poll());
+		for (int p = 0; p < producers; p++) {
+			assertEquals(count - 1, last[p]);
+		}
+	}
+
+}
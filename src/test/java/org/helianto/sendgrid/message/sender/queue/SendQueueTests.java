@@ -0,0 +1,200 @@
+package org.helianto.sendgrid.message.sender.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.helianto.sendgrid.message.SendGridMessageAdapter;
+import org.helianto.sendgrid.message.sender.SendGridSender;
+import org.helianto.sendgrid.message.sender.SendGridSender.Response;
+import org.helianto.sendgrid.message.sender.lane.Lane;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rejection policies of a full queue, with its only worker held inside a send.
+ *
+ * @author mauriciofernandesdecastro
+ */
+public class SendQueueTests {
+
+	private CountDownLatch sending;
+
+	private CountDownLatch release;
+
+	private SendGridSender sender;
+
+	private SendQueue queue;
+
+	@Before
+	public void setUp() {
+		sending = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		sender = new SendGridSender("user", "key") {
+			@Override
+			public Response send(SendGridMessageAdapter email) {
+				sending.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new Response(200, email.getSubject());
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		release.countDown();
+		if (queue!=null) {
+			queue.close();
+		}
+		sender.close();
+	}
+
+	private static SendGridMessageAdapter message(String subject) {
+		SendGridMessageAdapter email = new SendGridMessageAdapter();
+		email.addTo("recipient@helianto.org");
+		email.setFrom("sender@helianto.org");
+		email.setSubject(subject);
+		return email;
+	}
+
+	/**
+	 * Start a queue of two per lane and hold its worker, so that both lanes are empty.
+	 */
+	private CompletableFuture<Response> start(RejectionPolicy policy) throws InterruptedException {
+		queue = new SendQueue(sender, 2, 1, policy, null);
+		queue.start();
+		CompletableFuture<Response> held = queue.submit(Lane.BULK, message("held"));
+		assertTrue(sending.await(5, TimeUnit.SECONDS));
+		return held;
+	}
+
+	private static void assertRejected(CompletableFuture<Response> future) throws InterruptedException {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Not rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		} catch (TimeoutException e) {
+			fail("Not completed");
+		}
+	}
+
+	private static void assertSent(String subject, CompletableFuture<Response> future) throws Exception {
+		Response response = future.get(5, TimeUnit.SECONDS);
+		assertEquals(200, response.getCode());
+		assertEquals(subject, response.getMessage());
+	}
+
+	@Test
+	public void notRunning() throws Exception {
+		queue = new SendQueue(sender, 2, 1, RejectionPolicy.REJECT, null);
+		assertRejected(queue.submit(Lane.BULK, message("early")));
+		assertEquals(1, queue.getRejectedCount());
+	}
+
+	@Test
+	public void reject() throws Exception {
+		CompletableFuture<Response> held = start(RejectionPolicy.REJECT);
+		CompletableFuture<Response> first = queue.submit(Lane.BULK, message("first"));
+		CompletableFuture<Response> second = queue.submit(Lane.BULK, message("second"));
+		assertEquals(2, queue.getQueueDepth(Lane.BULK));
+		assertRejected(queue.submit(Lane.BULK, message("third")));
+		// a full bulk lane leaves room in the transactional one
+		CompletableFuture<Response> transactional = queue.submit(Lane.TRANSACTIONAL, message("transactional"));
+		assertEquals(1, queue.getRejectedCount());
+		assertEquals(0, queue.getDroppedCount());
+		release.countDown();
+		assertSent("held", held);
+		assertSent("first", first);
+		assertSent("second", second);
+		assertSent("transactional", transactional);
+	}
+
+	@Test
+	public void blockTimeout() throws Exception {
+		start(RejectionPolicy.BLOCK);
+		queue.setBlockTimeout(100);
+		queue.submit(Lane.BULK, message("first"));
+		queue.submit(Lane.BULK, message("second"));
+		long started = System.nanoTime();
+		CompletableFuture<Response> third = queue.submit(Lane.BULK, message("third"));
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		assertRejected(third);
+		assertTrue("waited "+waited+" ms", waited >= 100);
+		assertEquals(1, queue.getRejectedCount());
+	}
+
+	@Test
+	public void blockUntilRoom() throws Exception {
+		start(RejectionPolicy.BLOCK);
+		queue.setBlockTimeout(5000);
+		queue.submit(Lane.BULK, message("first"));
+		queue.submit(Lane.BULK, message("second"));
+		new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				return;
+			}
+			release.countDown();
+		}).start();
+		CompletableFuture<Response> third = queue.submit(Lane.BULK, message("third"));
+		assertSent("third", third);
+		assertEquals(0, queue.getRejectedCount());
+	}
+
+	@Test
+	public void dropOldestBulk() throws Exception {
+		CompletableFuture<Response> held = start(RejectionPolicy.DROP_OLDEST_BULK);
+		CompletableFuture<Response> transactional1 = queue.submit(Lane.TRANSACTIONAL, message("transactional1"));
+		CompletableFuture<Response> transactional2 = queue.submit(Lane.TRANSACTIONAL, message("transactional2"));
+		CompletableFuture<Response> first = queue.submit(Lane.BULK, message("first"));
+		CompletableFuture<Response> second = queue.submit(Lane.BULK, message("second"));
+		CompletableFuture<Response> third = queue.submit(Lane.BULK, message("third"));
+		// exactly one bulk message makes room, queued transactional ones stay
+		assertRejected(first);
+		assertFalse(second.isDone());
+		assertFalse(third.isDone());
+		assertFalse(transactional1.isDone());
+		assertFalse(transactional2.isDone());
+		assertEquals(2, queue.getQueueDepth(Lane.BULK));
+		assertEquals(2, queue.getQueueDepth(Lane.TRANSACTIONAL));
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(1, queue.getRejectedCount());
+		// a transactional arrival never evicts, it is rejected
+		assertRejected(queue.submit(Lane.TRANSACTIONAL, message("transactional3")));
+		assertEquals(2, queue.getQueueDepth(Lane.BULK));
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(2, queue.getRejectedCount());
+		release.countDown();
+		assertSent("held", held);
+		assertSent("transactional1", transactional1);
+		assertSent("transactional2", transactional2);
+		assertSent("second", second);
+		assertSent("third", third);
+	}
+
+	@Test
+	public void closeRejectsQueued() throws Exception {
+		start(RejectionPolicy.REJECT);
+		CompletableFuture<Response> queued = queue.submit(Lane.BULK, message("queued"));
+		queue.close();
+		assertRejected(queued);
+		assertRejected(queue.submit(Lane.BULK, message("late")));
+	}
+
+}